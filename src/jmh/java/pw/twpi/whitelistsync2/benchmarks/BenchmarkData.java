@@ -0,0 +1,68 @@
+package pw.twpi.whitelistsync2.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generated players for the benchmarks. A fixed seed keeps runs comparable.
+ */
+public class BenchmarkData {
+
+    private static final long SEED = 20210515L;
+
+    // Random version 4 UUIDs in the canonical form Mojang and the database use
+    public static String[] uuids(int count) {
+        Random random = new Random(SEED);
+        String[] uuids = new String[count];
+        for (int i = 0; i < count; i++) {
+            long msb = (random.nextLong() & ~0xF000L) | 0x4000L;
+            long lsb = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+            uuids[i] = new UUID(msb, lsb).toString();
+        }
+        return uuids;
+    }
+
+    public static String name(int i) {
+        return "Player_" + i;
+    }
+
+    public static ArrayList<WhitelistedPlayer> whitelistedPlayers(String[] uuids) {
+        ArrayList<WhitelistedPlayer> players = new ArrayList<>(uuids.length);
+        for (int i = 0; i < uuids.length; i++) {
+            players.add(new WhitelistedPlayer(uuids[i], name(i), true));
+        }
+        return players;
+    }
+
+    // Writes a whitelist.json laid out like the one vanilla saves
+    public static void writeWhitelistJson(Path file, String[] uuids) throws IOException {
+        JsonArray entries = new JsonArray();
+        for (int i = 0; i < uuids.length; i++) {
+            JsonObject entry = new JsonObject();
+            entry.addProperty("uuid", uuids[i]);
+            entry.addProperty("name", name(i));
+            entries.add(entry);
+        }
+        Files.write(file, entries.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Temporary server directory holding a whitelist.json with the given players
+    public static Path serverDirectory(String[] uuids) throws IOException {
+        Path directory = Files.createTempDirectory("whitelistsync2-jmh");
+        directory.toFile().deleteOnExit();
+        Path whitelist = directory.resolve("whitelist.json");
+        writeWhitelistJson(whitelist, uuids);
+        whitelist.toFile().deleteOnExit();
+        return directory;
+    }
+
+}
@@ -0,0 +1,50 @@
+package pw.twpi.whitelistsync2.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pw.twpi.whitelistsync2.Utilities;
+import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting the reply to /wl list.
+ *
+ * Runs single shots so the largest list doesn't need many iterations. /wl list itself only formats one page,
+ * the large sizes cover FormatWhitelistedPlayersOutput on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class FormatOutputBenchmark {
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int size;
+
+    private ArrayList<WhitelistedPlayer> players;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        players = BenchmarkData.whitelistedPlayers(BenchmarkData.uuids(size));
+    }
+
+    @Benchmark
+    public String formatWhitelistedPlayers() {
+        return Utilities.FormatWhitelistedPlayersOutput(players);
+    }
+
+}
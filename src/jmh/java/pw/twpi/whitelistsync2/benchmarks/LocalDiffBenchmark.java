@@ -0,0 +1,99 @@
+package pw.twpi.whitelistsync2.benchmarks;
+
+import com.mojang.authlib.GameProfile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pw.twpi.whitelistsync2.WhitelistSync2;
+import pw.twpi.whitelistsync2.services.LocalStateProvider;
+import pw.twpi.whitelistsync2.services.UuidSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The database to local diff of a full sync: every database row is checked against the UUID index of the
+ * local list, and rows that differ become pending changes. One row in a hundred differs.
+ * The rows are held in arrays, so the JDBC driver is not part of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class LocalDiffBenchmark {
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int size;
+
+    private String[] rowUuids;
+    private String[] rowNames;
+    private int[] rowStates;
+    private LocalStateProvider localState;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String[] uuids = BenchmarkData.uuids(size);
+
+        // The local whitelist is missing every 100th player the database has whitelisted
+        String[] local = Arrays.stream(uuids).filter(uuid -> Math.floorMod(uuid.hashCode(), 100) != 0).toArray(String[]::new);
+        WhitelistSync2.SERVER_FILEPATH = BenchmarkData.serverDirectory(local).toString();
+
+        rowUuids = uuids;
+        rowNames = new String[size];
+        rowStates = new int[size];
+        for (int i = 0; i < size; i++) {
+            rowNames[i] = BenchmarkData.name(i);
+            rowStates[i] = 1;
+        }
+
+        localState = new LocalStateProvider();
+        localState.getWhitelistedUuids();
+    }
+
+    // Same steps as readWhitelistTableChanges in the services, once the index is built
+    @Benchmark
+    public List<LocalStateProvider.PendingChange> diff() {
+        UuidSet localWhitelisted = localState.getWhitelistedUuids();
+        List<LocalStateProvider.PendingChange> changes = new ArrayList<>();
+
+        for (int i = 0; i < rowUuids.length; i++) {
+            long msb = UuidSet.mostSignificantBits(rowUuids[i]);
+            long lsb = UuidSet.leastSignificantBits(rowUuids[i]);
+
+            if ((rowStates[i] == 1) == localWhitelisted.contains(msb, lsb)) {
+                continue;
+            }
+
+            GameProfile player = new GameProfile(new UUID(msb, lsb), rowNames[i]);
+            changes.add(new LocalStateProvider.PendingChange(player, rowStates[i] == 1));
+        }
+
+        return changes;
+    }
+
+    // Building the index, paid once each time whitelist.json changes
+    @Benchmark
+    public UuidSet buildIndex() {
+        UuidSet index = new UuidSet(rowUuids.length);
+        for (String uuid : rowUuids) {
+            index.add(uuid);
+        }
+        return index;
+    }
+
+}
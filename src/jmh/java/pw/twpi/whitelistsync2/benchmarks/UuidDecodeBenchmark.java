@@ -0,0 +1,86 @@
+package pw.twpi.whitelistsync2.benchmarks;
+
+import com.mojang.authlib.GameProfile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import pw.twpi.whitelistsync2.services.UuidSet;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding the uuid and name columns of database rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class UuidDecodeBenchmark {
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int size;
+
+    private String[] uuids;
+    private byte[][] binaryUuids;
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        uuids = BenchmarkData.uuids(size);
+        binaryUuids = new byte[size][];
+        names = new String[size];
+        for (int i = 0; i < size; i++) {
+            binaryUuids[i] = UuidSet.toBytes(UuidSet.mostSignificantBits(uuids[i]), UuidSet.leastSignificantBits(uuids[i]));
+            names[i] = BenchmarkData.name(i);
+        }
+    }
+
+    // The allocation free decoding used for the diff
+    @Benchmark
+    public void uuidSetDecode(Blackhole blackhole) {
+        for (String uuid : uuids) {
+            blackhole.consume(UuidSet.mostSignificantBits(uuid));
+            blackhole.consume(UuidSet.leastSignificantBits(uuid));
+        }
+    }
+
+    // Decoding with uuidStorage set to BINARY
+    @Benchmark
+    public void binaryDecode(Blackhole blackhole) {
+        for (byte[] uuid : binaryUuids) {
+            blackhole.consume(UuidSet.mostSignificantBits(uuid));
+            blackhole.consume(UuidSet.leastSignificantBits(uuid));
+        }
+    }
+
+    // Baseline
+    @Benchmark
+    public void uuidFromString(Blackhole blackhole) {
+        for (String uuid : uuids) {
+            blackhole.consume(UUID.fromString(uuid));
+        }
+    }
+
+    // A row turned into the profile that is applied to the local list
+    @Benchmark
+    public void decodeRows(Blackhole blackhole) {
+        for (int i = 0; i < uuids.length; i++) {
+            UUID uuid = new UUID(UuidSet.mostSignificantBits(uuids[i]), UuidSet.leastSignificantBits(uuids[i]));
+            blackhole.consume(new GameProfile(uuid, names[i]));
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package pw.twpi.whitelistsync2.json;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pw.twpi.whitelistsync2.WhitelistSync2;
+import pw.twpi.whitelistsync2.benchmarks.BenchmarkData;
+import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading whitelist.json after it changed: reading the file, hashing, parsing and converting the entries.
+ * Lives in the json package to reach the converter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xms4g", "-Xmx4g" })
+public class JsonListParseBenchmark {
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int size;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        WhitelistSync2.SERVER_FILEPATH = BenchmarkData.serverDirectory(BenchmarkData.uuids(size)).toString();
+    }
+
+    @Benchmark
+    public List<WhitelistedPlayer> parseWhitelist() {
+        // A new cache every time, so the file is always parsed
+        return new CachedJsonFile<>("whitelist.json", WhitelistedPlayersFileUtilities::toWhitelistedPlayer).get();
+    }
+
+}
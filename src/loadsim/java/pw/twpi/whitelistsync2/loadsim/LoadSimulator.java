@@ -0,0 +1,413 @@
+package pw.twpi.whitelistsync2.loadsim;
+
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import com.mojang.authlib.GameProfile;
+import pw.twpi.whitelistsync2.Config;
+import pw.twpi.whitelistsync2.WhitelistSync2;
+import pw.twpi.whitelistsync2.services.BaseService;
+import pw.twpi.whitelistsync2.services.LocalStateProvider;
+import pw.twpi.whitelistsync2.services.MySqlService;
+import pw.twpi.whitelistsync2.services.SqLiteService;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless end to end load test of the sync engine.
+ *
+ * Starts a number of simulated servers sharing one database, each with its own in-memory whitelist and sync
+ * loop, makes random whitelist changes on random servers through BaseService at a set rate, and reports how
+ * long changes take to reach the other servers, database queries per second, and CPU time and allocation
+ * per sync. Runs against a shared SQLite file and against MySQL, by default an embedded MariaDB.
+ *
+ * Usage: ./gradlew loadSim -PloadSimArgs="--servers 8 --players 100000 --rate 200 --duration 120"
+ * Options (defaults in brackets):
+ *   --backend sqlite|mysql|both [both]
+ *   --servers number of simulated servers [4]
+ *   --players number of players changes are picked from [10000]
+ *   --rate whitelist changes per second over all servers [50]
+ *   --duration seconds of changes to measure [60]
+ *   --interval milliseconds between syncs of each server [1000]
+ *   --writers threads making changes [4]
+ *   --journal whether syncs tail the change journal [true]
+ *   --uuids text|binary how uuids are stored [text]
+ *   --mysql host:port of an existing MySQL server to use instead of the embedded one
+ *   --mysqlUser, --mysqlPassword login for --mysql [root, empty]
+ */
+public class LoadSimulator {
+
+    // How long the servers get to agree with the database after the changes stop
+    private static final long SETTLE_TIMEOUT_MILLIS = 60000;
+
+    private final Map<String, String> options;
+
+    // Per run
+    private GameProfile[] players;
+    private final Map<UUID, Expected> expected = new ConcurrentHashMap<>();
+    private final LatencyRecorder latency = new LatencyRecorder();
+    private volatile boolean measuring;
+
+    private LoadSimulator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        options.put("backend", "both");
+        options.put("servers", "4");
+        options.put("players", "10000");
+        options.put("rate", "50");
+        options.put("duration", "60");
+        options.put("interval", "1000");
+        options.put("writers", "4");
+        options.put("journal", "true");
+        options.put("uuids", "text");
+        options.put("mysqlUser", "root");
+        options.put("mysqlPassword", "");
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected an option, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        Path workDirectory = Files.createTempDirectory("whitelistsync2-loadsim");
+        WhitelistSync2.SERVER_ID = "loadsim";
+        WhitelistSync2.SERVER_FILEPATH = workDirectory.toString();
+        Config.loadConfig(Config.SERVER_CONFIG, workDirectory.resolve("whitelistSync.toml"));
+        Config.SYNC_OP_LIST.set(false);
+        Config.USE_CHANGE_JOURNAL.set(Boolean.parseBoolean(options.get("journal")));
+        Config.UUID_STORAGE.set(Config.UuidStorage.valueOf(options.get("uuids").toUpperCase()));
+
+        String backend = options.get("backend");
+        if (backend.equals("sqlite") || backend.equals("both")) {
+            new LoadSimulator(options).runSqlite(workDirectory);
+        }
+        if (backend.equals("mysql") || backend.equals("both")) {
+            new LoadSimulator(options).runMySql();
+        }
+
+        System.exit(0);
+    }
+
+    private void runSqlite(Path workDirectory) throws Exception {
+        Config.DATABASE_MODE.set(Config.DatabaseMode.SQLITE);
+        Config.SQLITE_DATABASE_PATH.set(workDirectory.resolve("whitelistSync.db").toString());
+
+        run("SQLite", SqLiteService::new, null);
+    }
+
+    private void runMySql() throws Exception {
+        DB embedded = null;
+        String address = options.get("mysql");
+        String user = options.get("mysqlUser");
+        String password = options.get("mysqlPassword");
+
+        if (address == null) {
+            DBConfigurationBuilder builder = DBConfigurationBuilder.newBuilder();
+            builder.setPort(0);
+            embedded = DB.newEmbeddedDB(builder.build());
+            embedded.start();
+            address = "localhost:" + embedded.getConfiguration().getPort();
+            user = "root";
+            password = "";
+        }
+
+        String[] hostAndPort = address.split(":");
+        Config.DATABASE_MODE.set(Config.DatabaseMode.MYSQL);
+        Config.MYSQL_IP.set(hostAndPort[0]);
+        Config.MYSQL_PORT.set(hostAndPort.length > 1 ? Integer.parseInt(hostAndPort[1]) : 3306);
+        Config.MYSQL_USERNAME.set(user);
+        Config.MYSQL_PASSWORD.set(password);
+        Config.MYSQL_DB_NAME.set("WhitelistSyncLoadSim" + System.currentTimeMillis());
+
+        String url = "jdbc:mysql://" + address + "/?useSSL=false&serverTimezone=UTC";
+        try {
+            run(embedded != null ? "MySQL (embedded MariaDB)" : "MySQL " + address, MySqlService::new,
+                    DriverManager.getConnection(url, user, password));
+        } finally {
+            if (embedded != null) {
+                embedded.stop();
+            }
+        }
+    }
+
+    private interface ServiceFactory {
+        BaseService create(LocalStateProvider localState);
+    }
+
+    /**
+     * @param statusConnection used to read the server's query counter, null if the database has none
+     */
+    private void run(String backend, ServiceFactory factory, Connection statusConnection) throws Exception {
+        int serverCount = intOption("servers");
+        int playerCount = intOption("players");
+        int rate = intOption("rate");
+        int duration = intOption("duration");
+        long interval = intOption("interval");
+
+        System.out.println();
+        System.out.println("== " + backend + " | " + serverCount + " servers | " + playerCount + " players | "
+                + rate + " changes/s | " + duration + "s | sync every " + interval + "ms ==");
+
+        // Simulated servers
+        List<SimulatedServer> servers = new ArrayList<>();
+        for (int i = 0; i < serverCount; i++) {
+            int id = i;
+            SimulatedLocalState localState = new SimulatedLocalState((uuid, state) -> onSynced(id, uuid, state));
+            BaseService service = factory.create(localState);
+            if (!service.initializeDatabase()) {
+                throw new IllegalStateException("Failed to set up the database for simulated server " + i);
+            }
+            servers.add(new SimulatedServer(i, service, localState, interval));
+        }
+
+        // Half of the players start out whitelisted
+        populate(servers.get(0).service, playerCount);
+
+        for (SimulatedServer server : servers) {
+            server.start();
+        }
+        long initialSync = awaitConvergence(servers);
+        if (initialSync < 0) {
+            System.out.println("Servers did not pick up the initial whitelist, giving up.");
+            stopAll(servers);
+            return;
+        }
+        System.out.println("Initial whitelist reached every server in " + initialSync + "ms");
+
+        // Measured phase
+        long[] cyclesBefore = new long[serverCount];
+        long cpuBefore = 0;
+        long allocatedBefore = 0;
+        for (SimulatedServer server : servers) {
+            cyclesBefore[server.id] = server.getCycles();
+            cpuBefore += server.getCpuNanos();
+            allocatedBefore += server.getAllocatedBytes();
+        }
+        long queriesBefore = queryCount(statusConnection);
+
+        measuring = true;
+        long startTime = System.currentTimeMillis();
+        long[] mutationCounts = makeChanges(servers, rate, duration);
+        long changeTime = System.currentTimeMillis() - startTime;
+
+        long settleTime = awaitConvergence(servers);
+        measuring = false;
+        long measuredTime = System.currentTimeMillis() - startTime;
+
+        long queries = queryCount(statusConnection) - queriesBefore;
+        long cycles = 0;
+        long failedCycles = 0;
+        long cpu = -cpuBefore;
+        long allocated = -allocatedBefore;
+        for (SimulatedServer server : servers) {
+            cycles += server.getCycles() - cyclesBefore[server.id];
+            failedCycles += server.getFailedCycles();
+            cpu += server.getCpuNanos();
+            allocated += server.getAllocatedBytes();
+        }
+
+        stopAll(servers);
+        if (statusConnection != null) {
+            statusConnection.close();
+        }
+
+        // Report
+        System.out.println(String.format("Changes:     %d written, %d failed, %.1f/s achieved",
+                mutationCounts[0], mutationCounts[1], mutationCounts[0] * 1000.0 / changeTime));
+        if (settleTime >= 0) {
+            System.out.println("Converged:   " + settleTime + "ms after the last change");
+        } else {
+            System.out.println("Converged:   NO, " + countDiverged(servers) + " player states still differ after "
+                    + SETTLE_TIMEOUT_MILLIS / 1000 + "s");
+        }
+        System.out.println(String.format("Propagation: p50 %dms | p90 %dms | p99 %dms | max %dms | %d samples",
+                latency.percentile(50), latency.percentile(90), latency.percentile(99), latency.percentile(100), latency.count()));
+        System.out.println(String.format("Syncs:       %d (%d failed), %.1f/s",
+                cycles, failedCycles, cycles * 1000.0 / measuredTime));
+        if (statusConnection != null) {
+            System.out.println(String.format("Queries:     %.1f/s on the database server", queries * 1000.0 / measuredTime));
+        } else {
+            System.out.println(String.format("Queries:     n/a, %.1f service calls/s",
+                    (cycles + mutationCounts[0] + mutationCounts[1]) * 1000.0 / measuredTime));
+        }
+        if (cycles > 0) {
+            System.out.println(String.format("Per sync:    %.3fms CPU | %.1fKB allocated",
+                    cpu / 1e6 / cycles, allocated / 1024.0 / cycles));
+        }
+    }
+
+    // Writes the starting whitelist through the first server
+    private void populate(BaseService service, int playerCount) {
+        Random random = new Random(playerCount);
+        players = new GameProfile[playerCount];
+        List<LocalStateProvider.PendingChange> batch = new ArrayList<>();
+
+        for (int i = 0; i < playerCount; i++) {
+            players[i] = new GameProfile(new UUID(random.nextLong(), random.nextLong()), "Player_" + i);
+            boolean whitelisted = i % 2 == 0;
+            expected.put(players[i].getId(), new Expected(whitelisted, System.currentTimeMillis(), -1));
+
+            batch.add(new LocalStateProvider.PendingChange(players[i], whitelisted));
+            if (batch.size() == 1000 || i == playerCount - 1) {
+                if (service.writeWhitelistStates(batch) != BaseService.WriteResult.WRITTEN) {
+                    throw new IllegalStateException("Failed to write the starting whitelist");
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    // Returns the number of changes written and failed
+    private long[] makeChanges(List<SimulatedServer> servers, int rate, int duration) throws InterruptedException {
+        AtomicLong written = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        ExecutorService writers = Executors.newFixedThreadPool(intOption("writers"));
+        ScheduledExecutorService pacer = Executors.newSingleThreadScheduledExecutor();
+
+        pacer.scheduleAtFixedRate(() -> writers.execute(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            SimulatedServer server = servers.get(random.nextInt(servers.size()));
+            GameProfile player = players[random.nextInt(players.length)];
+
+            // One change per player at a time, so the expected state matches the order the database saw
+            synchronized (player) {
+                boolean state = !expected.get(player.getId()).state;
+                boolean success = state ? server.service.addWhitelistPlayer(player) : server.service.removeWhitelistPlayer(player);
+                if (success) {
+                    expected.put(player.getId(), new Expected(state, System.currentTimeMillis(), server.id));
+                    server.localState.setWhitelisted(player, state);
+                    written.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+            }
+        }), 0, TimeUnit.SECONDS.toNanos(1) / rate, TimeUnit.NANOSECONDS);
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+        pacer.shutdownNow();
+        writers.shutdown();
+        writers.awaitTermination(1, TimeUnit.MINUTES);
+
+        return new long[] { written.get(), failed.get() };
+    }
+
+    private void onSynced(int serverId, UUID uuid, boolean state) {
+        Expected change = expected.get(uuid);
+        if (measuring && change != null && change.state == state && change.origin >= 0 && change.origin != serverId) {
+            latency.record(System.currentTimeMillis() - change.writtenAt);
+        }
+    }
+
+    // Waits until every server's whitelist matches the database, returns how long that took or -1 on timeout
+    private long awaitConvergence(List<SimulatedServer> servers) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        while (System.currentTimeMillis() - startTime < SETTLE_TIMEOUT_MILLIS) {
+            if (countDiverged(servers) == 0) {
+                return System.currentTimeMillis() - startTime;
+            }
+            Thread.sleep(50);
+        }
+        return -1;
+    }
+
+    private long countDiverged(List<SimulatedServer> servers) {
+        long diverged = 0;
+        for (SimulatedServer server : servers) {
+            for (GameProfile player : players) {
+                if (server.localState.isWhitelisted(player.getId()) != expected.get(player.getId()).state) {
+                    diverged++;
+                }
+            }
+        }
+        return diverged;
+    }
+
+    private static void stopAll(List<SimulatedServer> servers) throws InterruptedException {
+        for (SimulatedServer server : servers) {
+            server.stop();
+            server.service.shutdown();
+        }
+    }
+
+    // Statements the database server has run, or 0 if there is no server to ask
+    private static long queryCount(Connection statusConnection) throws SQLException {
+        if (statusConnection == null) {
+            return 0;
+        }
+
+        try (Statement stmt = statusConnection.createStatement();
+             ResultSet rs = stmt.executeQuery("SHOW GLOBAL STATUS LIKE 'Questions'")) {
+            return rs.next() ? rs.getLong(2) : 0;
+        }
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    // Last change written for a player
+    private static class Expected {
+        final boolean state;
+        final long writtenAt;
+        // Server that wrote it, -1 for the starting whitelist
+        final int origin;
+
+        Expected(boolean state, long writtenAt, int origin) {
+            this.state = state;
+            this.writtenAt = writtenAt;
+            this.origin = origin;
+        }
+    }
+
+    // Propagation latencies in milliseconds
+    private static class LatencyRecorder {
+        private long[] samples = new long[1024];
+        private int count;
+
+        synchronized void record(long millis) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = millis;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized long percentile(int percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package pw.twpi.whitelistsync2.loadsim;
+
+import com.mojang.authlib.GameProfile;
+import net.minecraft.server.MinecraftServer;
+import pw.twpi.whitelistsync2.models.OppedPlayer;
+import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
+import pw.twpi.whitelistsync2.services.LocalStateProvider;
+import pw.twpi.whitelistsync2.services.UuidSet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * In-memory whitelist of one simulated server, standing in for whitelist.json and the live PlayerList.
+ * The op list is always empty.
+ */
+class SimulatedLocalState extends LocalStateProvider {
+
+    // Guarded by this
+    private final Map<UUID, String> whitelisted = new HashMap<>();
+    private UuidSet index;
+
+    // Told about every player a sync changed
+    private final BiConsumer<UUID, Boolean> onSynced;
+
+    SimulatedLocalState(BiConsumer<UUID, Boolean> onSynced) {
+        this.onSynced = onSynced;
+    }
+
+    // A change made by a command on this server
+    synchronized void setWhitelisted(GameProfile player, boolean state) {
+        if (state) {
+            whitelisted.put(player.getId(), player.getName());
+        } else {
+            whitelisted.remove(player.getId());
+        }
+        index = null;
+    }
+
+    synchronized boolean isWhitelisted(UUID uuid) {
+        return whitelisted.containsKey(uuid);
+    }
+
+    synchronized int size() {
+        return whitelisted.size();
+    }
+
+    @Override
+    public synchronized ArrayList<WhitelistedPlayer> getWhitelistedPlayers() {
+        ArrayList<WhitelistedPlayer> players = new ArrayList<>(whitelisted.size());
+        whitelisted.forEach((uuid, name) -> players.add(new WhitelistedPlayer(uuid.toString(), name, true)));
+        return players;
+    }
+
+    @Override
+    public ArrayList<OppedPlayer> getOppedPlayers() {
+        return new ArrayList<>();
+    }
+
+    // Rebuilt after local changes, like the real index is after whitelist.json is saved
+    @Override
+    public synchronized UuidSet getWhitelistedUuids() {
+        if (index == null) {
+            index = new UuidSet(whitelisted.size());
+            for (UUID uuid : whitelisted.keySet()) {
+                index.add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            }
+        }
+        return index;
+    }
+
+    @Override
+    public UuidSet getOppedUuids() {
+        return new UuidSet(0);
+    }
+
+    @Override
+    public int applyWhitelistChanges(MinecraftServer server, List<PendingChange> changes) {
+        List<PendingChange> applied = new ArrayList<>();
+
+        synchronized (this) {
+            for (PendingChange change : changes) {
+                boolean current = whitelisted.containsKey(change.player.getId());
+                if (change.state != current) {
+                    setWhitelisted(change.player, change.state);
+                    applied.add(change);
+                }
+            }
+        }
+
+        for (PendingChange change : applied) {
+            onSynced.accept(change.player.getId(), change.state);
+        }
+        return applied.size();
+    }
+
+    @Override
+    public int applyOpChanges(MinecraftServer server, List<PendingChange> changes) {
+        return 0;
+    }
+
+    // No server thread to hop to
+    @Override
+    public int applyChanges(MinecraftServer server, List<PendingChange> whitelistChanges, List<PendingChange> opChanges) {
+        return applyWhitelistChanges(server, whitelistChanges) + applyOpChanges(server, opChanges);
+    }
+
+}
@@ -0,0 +1,93 @@
+package pw.twpi.whitelistsync2.loadsim;
+
+import pw.twpi.whitelistsync2.WhitelistSync2;
+import pw.twpi.whitelistsync2.services.BaseService;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * One simulated server: a database service with its own in-memory whitelist, synced by a loop that
+ * does what the sync scheduler does at a fixed interval. Records CPU time and allocation of each sync.
+ */
+class SimulatedServer {
+
+    final int id;
+    final BaseService service;
+    final SimulatedLocalState localState;
+
+    private final long syncIntervalMillis;
+    private Thread syncThread;
+    private volatile boolean running;
+
+    // Written by the sync thread only
+    private volatile long cycles;
+    private volatile long failedCycles;
+    private volatile long cpuNanos;
+    private volatile long allocatedBytes;
+
+    SimulatedServer(int id, BaseService service, SimulatedLocalState localState, long syncIntervalMillis) {
+        this.id = id;
+        this.service = service;
+        this.localState = localState;
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    void start() {
+        running = true;
+        syncThread = new Thread(this::syncLoop, "LoadSim-Sync-" + id);
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    void stop() throws InterruptedException {
+        running = false;
+        if (syncThread != null) {
+            syncThread.interrupt();
+            syncThread.join(10000);
+        }
+    }
+
+    private void syncLoop() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        while (running) {
+            long cpuBefore = threads.getCurrentThreadCpuTime();
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+
+            int changes = service.copyDatabaseToLocal(null, false);
+
+            cpuNanos += threads.getCurrentThreadCpuTime() - cpuBefore;
+            allocatedBytes += threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            cycles++;
+            if (changes < 0) {
+                failedCycles++;
+            }
+
+            try {
+                Thread.sleep(syncIntervalMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        WhitelistSync2.LOGGER.debug("Simulated server " + id + " stopped after " + cycles + " syncs.");
+    }
+
+    long getCycles() {
+        return cycles;
+    }
+
+    long getFailedCycles() {
+        return failedCycles;
+    }
+
+    long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+}
@@ -8,6 +8,8 @@ import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.config.ModConfig;
 
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
 
 @Mod.EventBusSubscriber
 public class Config {
@@ -17,9 +19,23 @@ public class Config {
         SQLITE
     }
 
+    public enum UuidStorage {
+        TEXT,
+        BINARY
+    }
+
+    public enum SqliteSynchronous {
+        OFF,
+        NORMAL,
+        FULL,
+        EXTRA
+    }
+
     public static final String CATEGORY_GENERAL = "general";
     public static final String CATEGORY_MYSQL = "mySQL";
     public static final String CATEGORY_SQLITE = "sqlite";
+    public static final String CATEGORY_DOORBELL = "doorbell";
+    public static final String CATEGORY_METRICS = "metrics";
 
     private static final ForgeConfigSpec.Builder SERVER_BUILDER
             = new ForgeConfigSpec.Builder();
@@ -30,6 +46,19 @@ public class Config {
     // General Settings
     public static ForgeConfigSpec.EnumValue<DatabaseMode> DATABASE_MODE;
     public static ForgeConfigSpec.BooleanValue SYNC_OP_LIST;
+    public static ForgeConfigSpec.IntValue BULK_COPY_CHUNK_SIZE;
+    public static ForgeConfigSpec.IntValue SYNC_INTERVAL_MIN;
+    public static ForgeConfigSpec.ConfigValue<String> SERVER_ID;
+    public static ForgeConfigSpec.BooleanValue USE_CHANGE_JOURNAL;
+    public static ForgeConfigSpec.IntValue CHANGE_JOURNAL_RETENTION;
+    public static ForgeConfigSpec.IntValue ASYNC_THREADS;
+    public static ForgeConfigSpec.IntValue ASYNC_QUEUE_SIZE;
+    public static ForgeConfigSpec.IntValue COMMAND_TIMEOUT;
+    public static ForgeConfigSpec.IntValue WRITE_BATCH_SIZE;
+    public static ForgeConfigSpec.IntValue WRITE_BATCH_DELAY;
+    public static ForgeConfigSpec.BooleanValue USE_OUTBOX;
+    public static ForgeConfigSpec.IntValue LIST_PAGE_SIZE;
+    public static ForgeConfigSpec.EnumValue<UuidStorage> UUID_STORAGE;
 
     // MYSQL Settings
     public static ForgeConfigSpec.IntValue MYSQL_SYNC_TIMER;
@@ -38,10 +67,38 @@ public class Config {
     public static ForgeConfigSpec.IntValue MYSQL_PORT;
     public static ForgeConfigSpec.ConfigValue<String> MYSQL_USERNAME;
     public static ForgeConfigSpec.ConfigValue<String> MYSQL_PASSWORD;
+    public static ForgeConfigSpec.IntValue MYSQL_POOL_MAX_SIZE;
+    public static ForgeConfigSpec.IntValue MYSQL_POOL_MIN_IDLE;
+    public static ForgeConfigSpec.IntValue MYSQL_POOL_CONNECTION_TIMEOUT;
+    public static ForgeConfigSpec.IntValue MYSQL_POOL_IDLE_TIMEOUT;
+    public static ForgeConfigSpec.IntValue MYSQL_POOL_MAX_LIFETIME;
+    public static ForgeConfigSpec.IntValue MYSQL_POOL_KEEPALIVE_TIME;
+    public static ForgeConfigSpec.IntValue MYSQL_POOL_LEAK_DETECTION_THRESHOLD;
+    public static ForgeConfigSpec.IntValue MYSQL_CONNECT_TIMEOUT;
+    public static ForgeConfigSpec.IntValue MYSQL_SOCKET_TIMEOUT;
+    public static ForgeConfigSpec.IntValue MYSQL_QUERY_TIMEOUT;
+    public static ForgeConfigSpec.IntValue MYSQL_RETRY_ATTEMPTS;
+    public static ForgeConfigSpec.IntValue MYSQL_BREAKER_THRESHOLD;
+    public static ForgeConfigSpec.IntValue MYSQL_BREAKER_COOL_DOWN;
 
     // SQLITE Settings
     public static ForgeConfigSpec.ConfigValue<String> SQLITE_DATABASE_PATH;
     public static ForgeConfigSpec.IntValue SQLITE_SERVER_SYNC_TIMER;
+    public static ForgeConfigSpec.EnumValue<SqliteSynchronous> SQLITE_SYNCHRONOUS;
+    public static ForgeConfigSpec.IntValue SQLITE_BUSY_TIMEOUT;
+    public static ForgeConfigSpec.IntValue SQLITE_MMAP_SIZE;
+    public static ForgeConfigSpec.IntValue SQLITE_CACHE_SIZE;
+    public static ForgeConfigSpec.BooleanValue SQLITE_WATCH_DATABASE;
+    public static ForgeConfigSpec.IntValue SQLITE_WATCH_DEBOUNCE;
+
+    // Doorbell Settings
+    public static ForgeConfigSpec.BooleanValue DOORBELL_ENABLED;
+    public static ForgeConfigSpec.IntValue DOORBELL_PORT;
+    public static ForgeConfigSpec.ConfigValue<List<? extends String>> DOORBELL_PEERS;
+
+    // Metrics Settings
+    public static ForgeConfigSpec.BooleanValue METRICS_ENABLED;
+    public static ForgeConfigSpec.IntValue METRICS_PORT;
 
 
     static {
@@ -68,6 +125,22 @@ public class Config {
         setupSqliteConfig();
         SERVER_BUILDER.pop();
 
+        // Doorbell Config
+        SERVER_BUILDER.comment(
+                "Sync doorbell configuration. When enabled, servers notify each other over UDP after a change " +
+                        "so peers sync right away instead of waiting for their timer."
+        ).push(CATEGORY_DOORBELL);
+        setupDoorbellConfig();
+        SERVER_BUILDER.pop();
+
+        // Metrics Config
+        SERVER_BUILDER.comment(
+                "Metrics configuration. The same metrics shown by /wl stats can be served over HTTP in the " +
+                        "Prometheus text format."
+        ).push(CATEGORY_METRICS);
+        setupMetricsConfig();
+        SERVER_BUILDER.pop();
+
         SERVER_CONFIG = SERVER_BUILDER.build();
     }
 
@@ -76,11 +149,50 @@ public class Config {
                 .defineEnum("databaseMode", DatabaseMode.SQLITE);
         SYNC_OP_LIST = SERVER_BUILDER.comment("Option on whether to sync the server's op list to the database.")
                 .define("syncOpList", false);
+        BULK_COPY_CHUNK_SIZE = SERVER_BUILDER.comment("Number of players written per transaction when pushing a local list " +
+                "to the database with copyServerToDatabase.")
+                .defineInRange("bulkCopyChunkSize", 1000, 1, 100000);
+        SYNC_INTERVAL_MIN = SERVER_BUILDER.comment("Shortest time interval in seconds between polls. The server polls this often " +
+                "right after seeing changes and slows down to the mySQL or Sqlite sync timer while nothing changes.")
+                .defineInRange("syncIntervalMin", 5, 1, Integer.MAX_VALUE);
+        SERVER_ID = SERVER_BUILDER.comment("Name recorded with this server's changes in the change journal. " +
+                "Leave blank to generate one each time the server starts.")
+                .define("serverId", "");
+        USE_CHANGE_JOURNAL = SERVER_BUILDER.comment("Option on whether regular syncs read only new entries from the change journal " +
+                "instead of the whitelist and op tables. All servers sharing the database must run a version that writes the journal.")
+                .define("useChangeJournal", true);
+        CHANGE_JOURNAL_RETENTION = SERVER_BUILDER.comment("Time in hours change journal entries are kept before being deleted.")
+                .defineInRange("changeJournalRetention", 168, 1, Integer.MAX_VALUE);
+        ASYNC_THREADS = SERVER_BUILDER.comment("Number of threads running database calls for commands.")
+                .defineInRange("asyncThreads", 2, 1, 16);
+        ASYNC_QUEUE_SIZE = SERVER_BUILDER.comment("Number of database calls that can wait for a thread. " +
+                "Commands are turned away with a busy message when it is full.")
+                .defineInRange("asyncQueueSize", 64, 1, 10000);
+        COMMAND_TIMEOUT = SERVER_BUILDER.comment("Time in seconds a command waits for the database before telling the sender " +
+                "it will finish in the background.")
+                .defineInRange("commandTimeout", 30, 1, Integer.MAX_VALUE);
+        WRITE_BATCH_SIZE = SERVER_BUILDER.comment("Number of queued player changes that are written to the database right away " +
+                "in one transaction.")
+                .defineInRange("writeBatchSize", 100, 1, 10000);
+        WRITE_BATCH_DELAY = SERVER_BUILDER.comment("Time in milliseconds player changes are held so changes made close together " +
+                "are written in one transaction. 0 writes them right away.")
+                .defineInRange("writeBatchDelay", 50, 0, 10000);
+        USE_OUTBOX = SERVER_BUILDER.comment("Option on whether player changes are saved to whitelistSync-outbox.log in the server " +
+                "directory before they are written to the database. Commands then finish right away, and changes made while the " +
+                "database is down are written once it is back.")
+                .define("useOutbox", true);
+        LIST_PAGE_SIZE = SERVER_BUILDER.comment("Number of players shown per page by /wl list and /wlop list.")
+                .defineInRange("listPageSize", 50, 5, 500);
+        UUID_STORAGE = SERVER_BUILDER.comment("How player uuids are stored in the database. BINARY stores them as 16 bytes instead " +
+                "of text, which makes the tables and their indexes smaller so syncs read fewer pages. Existing tables are converted " +
+                "when the server starts while other servers keep using them, restart the other servers afterwards. All servers " +
+                "sharing the database must run a version that supports BINARY. Converted tables are never converted back.")
+                .defineEnum("uuidStorage", UuidStorage.TEXT);
     }
 
     private static void setupMySQLConfig() {
-        MYSQL_SYNC_TIMER = SERVER_BUILDER.comment("Time Interval in seconds for when the server " +
-                "polls the whitelist changes from the mySQL database. " +
+        MYSQL_SYNC_TIMER = SERVER_BUILDER.comment("Longest time Interval in seconds for when the server " +
+                "polls the whitelist changes from the mySQL database. Polls are more frequent while changes are coming in. " +
                 "(Warning! Time lower than 5 sec may effect performace.)")
                 .defineInRange("mysqlSyncTimer", 60, 1, Integer.MAX_VALUE);
         MYSQL_DB_NAME = SERVER_BUILDER.comment("Name for your mySQL database (No spaces!).")
@@ -93,15 +205,75 @@ public class Config {
                 .define("mysqlUsername", "root");
         MYSQL_PASSWORD = SERVER_BUILDER.comment("Password for your mySQL server.")
                 .define("mysqlPassword", "password");
+        MYSQL_POOL_MAX_SIZE = SERVER_BUILDER.comment("Maximum number of pooled connections this server keeps open to the mySQL database.")
+                .defineInRange("mysqlPoolMaxSize", 4, 1, 100);
+        MYSQL_POOL_MIN_IDLE = SERVER_BUILDER.comment("Minimum number of idle connections kept ready in the pool.")
+                .defineInRange("mysqlPoolMinIdle", 1, 0, 100);
+        MYSQL_POOL_CONNECTION_TIMEOUT = SERVER_BUILDER.comment("Time in seconds to wait for a connection from the pool before giving up.")
+                .defineInRange("mysqlPoolConnectionTimeout", 10, 1, 600);
+        MYSQL_POOL_IDLE_TIMEOUT = SERVER_BUILDER.comment("Time in seconds an idle connection above the minimum is kept before being closed.")
+                .defineInRange("mysqlPoolIdleTimeout", 600, 10, Integer.MAX_VALUE);
+        MYSQL_POOL_MAX_LIFETIME = SERVER_BUILDER.comment("Maximum lifetime in seconds of a pooled connection. " +
+                "Keep this a bit lower than the wait_timeout of your mySQL server.")
+                .defineInRange("mysqlPoolMaxLifetime", 1800, 60, Integer.MAX_VALUE);
+        MYSQL_POOL_KEEPALIVE_TIME = SERVER_BUILDER.comment("Time Interval in seconds for validating idle pooled connections.")
+                .defineInRange("mysqlPoolKeepaliveTime", 300, 30, Integer.MAX_VALUE);
+        MYSQL_POOL_LEAK_DETECTION_THRESHOLD = SERVER_BUILDER.comment("Time in seconds a connection may be held before a possible leak is logged. (0 to disable)")
+                .defineInRange("mysqlPoolLeakDetectionThreshold", 120, 0, Integer.MAX_VALUE);
+        MYSQL_CONNECT_TIMEOUT = SERVER_BUILDER.comment("Time in seconds to wait for a new connection to the mySQL server.")
+                .defineInRange("mysqlConnectTimeout", 5, 1, 600);
+        MYSQL_SOCKET_TIMEOUT = SERVER_BUILDER.comment("Time in seconds to wait for the mySQL server to answer before dropping the connection. " +
+                "Keep this higher than the query timeout.")
+                .defineInRange("mysqlSocketTimeout", 60, 1, 3600);
+        MYSQL_QUERY_TIMEOUT = SERVER_BUILDER.comment("Time in seconds a single statement may run before it is cancelled.")
+                .defineInRange("mysqlQueryTimeout", 30, 1, 3600);
+        MYSQL_RETRY_ATTEMPTS = SERVER_BUILDER.comment("Number of times a database call is retried after a lost connection, timeout or deadlock.")
+                .defineInRange("mysqlRetryAttempts", 2, 0, 10);
+        MYSQL_BREAKER_THRESHOLD = SERVER_BUILDER.comment("Number of failed database calls in a row after which calls are skipped " +
+                "until the database answers again.")
+                .defineInRange("mysqlBreakerThreshold", 5, 1, 1000);
+        MYSQL_BREAKER_COOL_DOWN = SERVER_BUILDER.comment("Time in seconds between attempts to reach the database while calls are being skipped.")
+                .defineInRange("mysqlBreakerCoolDown", 30, 1, 3600);
     }
 
     private static void setupSqliteConfig() {
         SQLITE_DATABASE_PATH = SERVER_BUILDER.comment("Insert System Path for your SQLite database file. " +
                 "This should be the same for all your servers you want to sync!")
                 .define("sqliteDatabasePath", "./whitelistSync.db");
-        SQLITE_SERVER_SYNC_TIMER = SERVER_BUILDER.comment("Time Interval in seconds for when the server " +
-                "polls the whitelist changes from the database. (Only used in INTERVAL Sqlite Mode!)")
+        SQLITE_SERVER_SYNC_TIMER = SERVER_BUILDER.comment("Longest time Interval in seconds for when the server " +
+                "polls the whitelist changes from the database. Polls are more frequent while changes are coming in.")
                 .defineInRange("sqliteServerSyncTimer", 60, 1, Integer.MAX_VALUE);
+        SQLITE_SYNCHRONOUS = SERVER_BUILDER.comment("SQLite synchronous level. NORMAL is safe with WAL journaling " +
+                "and avoids an fsync on every commit.")
+                .defineEnum("sqliteSynchronous", SqliteSynchronous.NORMAL);
+        SQLITE_BUSY_TIMEOUT = SERVER_BUILDER.comment("Time in milliseconds to wait for another server's lock on the database before failing.")
+                .defineInRange("sqliteBusyTimeout", 5000, 0, Integer.MAX_VALUE);
+        SQLITE_MMAP_SIZE = SERVER_BUILDER.comment("Size in megabytes of the database that SQLite may memory map. (0 to disable)")
+                .defineInRange("sqliteMmapSize", 64, 0, 4096);
+        SQLITE_CACHE_SIZE = SERVER_BUILDER.comment("Size in kilobytes of the SQLite page cache.")
+                .defineInRange("sqliteCacheSize", 8192, 64, Integer.MAX_VALUE);
+        SQLITE_WATCH_DATABASE = SERVER_BUILDER.comment("Option on whether to sync as soon as another server writes to the database file. " +
+                "The sync timer is still used as a fallback. Only works if the database is on a local disk.")
+                .define("sqliteWatchDatabase", true);
+        SQLITE_WATCH_DEBOUNCE = SERVER_BUILDER.comment("Time in milliseconds the database file must be quiet after a write before syncing.")
+                .defineInRange("sqliteWatchDebounce", 100, 0, 10000);
+    }
+
+    private static void setupDoorbellConfig() {
+        DOORBELL_ENABLED = SERVER_BUILDER.comment("Option on whether to ring peers after changes and listen for their rings.")
+                .define("doorbellEnabled", false);
+        DOORBELL_PORT = SERVER_BUILDER.comment("UDP port this server listens on for rings.")
+                .defineInRange("doorbellPort", 25580, 1, 65535);
+        DOORBELL_PEERS = SERVER_BUILDER.comment("Other servers to ring, as host:port. Rings are only accepted from these hosts.")
+                .defineList("doorbellPeers", Collections.emptyList(), peer -> peer instanceof String);
+    }
+
+    private static void setupMetricsConfig() {
+        METRICS_ENABLED = SERVER_BUILDER.comment("Option on whether to serve metrics at http://127.0.0.1:<metricsPort>/metrics. " +
+                "Only reachable from the machine the server runs on.")
+                .define("metricsEnabled", false);
+        METRICS_PORT = SERVER_BUILDER.comment("TCP port the metrics are served on.")
+                .defineInRange("metricsPort", 9225, 1, 65535);
     }
 
 
@@ -1,58 +1,97 @@
 package pw.twpi.whitelistsync2;
 
+import net.minecraft.util.text.IFormattableTextComponent;
+import net.minecraft.util.text.ITextComponent;
+import net.minecraft.util.text.StringTextComponent;
+import net.minecraft.util.text.TextFormatting;
+import net.minecraft.util.text.event.ClickEvent;
+import net.minecraft.util.text.event.HoverEvent;
 import pw.twpi.whitelistsync2.models.OppedPlayer;
 import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
 
 public class Utilities {
 
-    public static String FormatOppedPlayersOutput(ArrayList<OppedPlayer> oppedPlayers) {
-        String outstr = "";
+    // Names per line in list output
+    private static final int NAMES_PER_LINE = 5;
 
+    public static String FormatOppedPlayersOutput(ArrayList<OppedPlayer> oppedPlayers) {
         if(oppedPlayers.isEmpty()) {
-            outstr = "Op list is empty";
-        } else {
-            for(int i = 0; i < oppedPlayers.size(); i++) {
-
-                if(i % 5 == 0 && i != 0) {
-                    outstr += "\n";
-                }
+            return "Op list is empty";
+        }
 
-                if(i == oppedPlayers.size() - 1) {
-                    outstr += oppedPlayers.get(i).getName();
-                } else {
-                    outstr += oppedPlayers.get(i).getName() + ", ";
-                }
+        return FormatNames(oppedPlayers, OppedPlayer::getName);
+    }
 
-            }
+    public static String FormatWhitelistedPlayersOutput(ArrayList<WhitelistedPlayer> whitelistedPlayers) {
+        if(whitelistedPlayers.isEmpty()) {
+            return "Whitelist is empty";
         }
 
-        return outstr;
+        return FormatNames(whitelistedPlayers, WhitelistedPlayer::getName);
     }
 
-    public static String FormatWhitelistedPlayersOutput(ArrayList<WhitelistedPlayer> whitelistedPlayers) {
-        String outstr = "";
+    /**
+     * One page of a list command's reply: a header with the total, the names, and clickable links to the
+     * pages either side of it.
+     * @param command the list command, e.g. "/wl list". The links run it with "before <first name> <first uuid>"
+     *                or "after <last name> <last uuid>".
+     * @param uuids the uuids of the players in names, in the same order
+     */
+    public static ITextComponent FormatPlayerPage(String title, String emptyMessage, String command, List<String> names,
+                                                  List<String> uuids, int total, boolean hasPrevious, boolean hasNext) {
+        if(total == 0) {
+            return new StringTextComponent(emptyMessage);
+        }
+        if(names.isEmpty()) {
+            return new StringTextComponent(title + " (" + total + " total): no players on this page.");
+        }
 
-        if(whitelistedPlayers.isEmpty()) {
-            outstr = "Whitelist is empty";
-        } else {
-            for(int i = 0; i < whitelistedPlayers.size(); i++) {
+        IFormattableTextComponent page = new StringTextComponent(title + " (" + total + " total):\n" + FormatNames(names, name -> name));
 
-                if(i % 5 == 0 && i != 0) {
-                    outstr += "\n";
-                }
+        if(hasPrevious || hasNext) {
+            page.append("\n");
+            if(hasPrevious) {
+                page.append(PageLink("[< Previous]", command + " before " + names.get(0) + " " + uuids.get(0)));
+            }
+            if(hasPrevious && hasNext) {
+                page.append("  ");
+            }
+            if(hasNext) {
+                page.append(PageLink("[Next >]", command + " after " + names.get(names.size() - 1) + " " + uuids.get(uuids.size() - 1)));
+            }
+        }
 
-                if(i == whitelistedPlayers.size() - 1) {
-                    outstr += whitelistedPlayers.get(i).getName();
-                } else {
-                    outstr += whitelistedPlayers.get(i).getName() + ", ";
-                }
+        return page;
+    }
 
+    // Comma separated names, a few to a line, built in one pass
+    private static <T> String FormatNames(List<T> players, Function<T, String> getName) {
+        StringBuilder out = new StringBuilder(players.size() * 18);
+
+        for(int i = 0; i < players.size(); i++) {
+            if(i % NAMES_PER_LINE == 0 && i != 0) {
+                out.append('\n');
+            }
+
+            out.append(getName.apply(players.get(i)));
+            if(i != players.size() - 1) {
+                out.append(", ");
             }
         }
 
-        return outstr;
+        return out.toString();
+    }
+
+    private static ITextComponent PageLink(String label, String command) {
+        return new StringTextComponent(label)
+                .withStyle(style -> style
+                        .withClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, command))
+                        .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, new StringTextComponent(command))))
+                .withStyle(TextFormatting.AQUA);
     }
 
 }
@@ -7,15 +7,25 @@ import net.minecraftforge.fml.ModLoadingContext;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.config.ModConfig;
 import net.minecraftforge.fml.event.server.FMLServerStartingEvent;
+import net.minecraftforge.fml.event.server.FMLServerStoppingEvent;
 import net.minecraftforge.fml.loading.FMLPaths;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import pw.twpi.whitelistsync2.commands.op.OpCommands;
 import pw.twpi.whitelistsync2.commands.whitelist.WhitelistCommands;
+import pw.twpi.whitelistsync2.services.AsyncService;
 import pw.twpi.whitelistsync2.services.BaseService;
+import pw.twpi.whitelistsync2.services.MeteredService;
+import pw.twpi.whitelistsync2.services.Metrics;
+import pw.twpi.whitelistsync2.services.MetricsServer;
 import pw.twpi.whitelistsync2.services.MySqlService;
 import pw.twpi.whitelistsync2.services.SqLiteService;
-import pw.twpi.whitelistsync2.services.SyncThread;
+import pw.twpi.whitelistsync2.services.SyncDoorbell;
+import pw.twpi.whitelistsync2.services.SyncScheduler;
+import pw.twpi.whitelistsync2.services.WriteBehindQueue;
+
+import java.nio.file.Paths;
+import java.util.UUID;
 
 @Mod(WhitelistSync2.MODID)
 public class WhitelistSync2
@@ -23,9 +33,20 @@ public class WhitelistSync2
     public static final String MODID = "whitelistsync2";
     public static final Logger LOGGER = LogManager.getLogger(MODID);
     public static String SERVER_FILEPATH;
+    // Origin recorded in the change journal
+    public static String SERVER_ID;
 
     // Database Service
     public static BaseService whitelistService;
+    // Runs database calls for commands off the server thread
+    public static AsyncService asyncService;
+    private SyncScheduler syncScheduler;
+
+    // Sync doorbell, null when disabled
+    public static SyncDoorbell doorbell;
+
+    // Metrics HTTP server, null when disabled
+    private MetricsServer metricsServer;
 
     public WhitelistSync2() {
         // Register config
@@ -45,14 +66,24 @@ public class WhitelistSync2
         // Server filepath
         SERVER_FILEPATH = event.getServer().getServerDirectory().getPath();
 
+        // Server id for the change journal
+        String serverId = Config.SERVER_ID.get().trim();
+        if (serverId.isEmpty()) {
+            serverId = UUID.randomUUID().toString().substring(0, 8);
+        }
+        SERVER_ID = serverId.length() > 64 ? serverId.substring(0, 64) : serverId;
+
         LOGGER.info("----------------------------------------------");
         LOGGER.info("---------------WHITELIST SYNC 2---------------");
         LOGGER.info("----------------------------------------------");
 
+        Metrics.reset();
+
+        // Services are wrapped so every call is timed for /wl stats
         if (Config.DATABASE_MODE.get() == Config.DatabaseMode.SQLITE) {
-            whitelistService = new SqLiteService();
+            whitelistService = new MeteredService(new SqLiteService());
         } else if (Config.DATABASE_MODE.get() == Config.DatabaseMode.MYSQL) {
-            whitelistService = new MySqlService();
+            whitelistService = new MeteredService(new MySqlService());
         } else {
             LOGGER.error("Please check what WHITELIST_MODE is set in the config and make sure it is set to a supported mode.");
             setupSuccessful = false;
@@ -62,6 +93,12 @@ public class WhitelistSync2
             LOGGER.error("Error initializing whitelist sync database. Disabling mod functionality. Please correct errors and restart.");
         } else {
             // Database is setup!
+            asyncService = new AsyncService(whitelistService, Config.ASYNC_THREADS.get(), Config.ASYNC_QUEUE_SIZE.get(),
+                    Config.WRITE_BATCH_SIZE.get(), Config.WRITE_BATCH_DELAY.get());
+            if (Config.USE_OUTBOX.get()) {
+                asyncService.getWriteQueue().openOutbox(Paths.get(SERVER_FILEPATH, "whitelistSync-outbox.log"));
+            }
+            StartMetrics();
 
             // Check if whitelisting is enabled.
             if (!event.getServer().getPlayerList().isUsingWhitelist()) {
@@ -89,9 +126,68 @@ public class WhitelistSync2
         LOGGER.info("----------------------------------------------");
     }
 
+    @SubscribeEvent
+    public void onServerStopping(FMLServerStoppingEvent event) {
+        if (metricsServer != null) {
+            metricsServer.close();
+            metricsServer = null;
+        }
+
+        if (doorbell != null) {
+            doorbell.close();
+            doorbell = null;
+        }
+
+        // Let a running sync finish before the service closes its connections
+        if (syncScheduler != null) {
+            syncScheduler.stop();
+            syncScheduler = null;
+        }
+
+        // Same for commands still waiting on the database
+        if (asyncService != null) {
+            asyncService.shutdown();
+            asyncService = null;
+        }
+
+        if (whitelistService != null) {
+            whitelistService.shutdown();
+        }
+    }
+
     public void StartSyncThread(MinecraftServer server, BaseService service) {
-        Thread sync = new Thread(new SyncThread(server, service));
+        SyncScheduler sync = new SyncScheduler(server, service);
         sync.start();
+        syncScheduler = sync;
         LOGGER.info("Sync Thread Started!");
+
+        if (Config.DOORBELL_ENABLED.get()) {
+            SyncDoorbell bell = new SyncDoorbell(Config.DOORBELL_PORT.get(), Config.DOORBELL_PEERS.get(), sync::wake);
+            if (bell.start()) {
+                doorbell = bell;
+            } else {
+                LOGGER.error("Sync doorbell disabled, changes from other servers arrive on the sync timer only.");
+            }
+        }
+    }
+
+    // Adds the write queue and database health to the metrics and serves them if enabled
+    public void StartMetrics() {
+        BaseService service = whitelistService;
+        WriteBehindQueue writeQueue = asyncService.getWriteQueue();
+        Metrics.gauge("database_available", "Database available (1 yes, 0 no)", () -> service.isAvailable() ? 1 : 0);
+        Metrics.gauge("outbox_depth", "Player changes waiting in the outbox", writeQueue::getOutboxDepth);
+        Metrics.gauge("outbox_replay_lag_seconds", "Seconds the oldest outbox change has waited", () -> writeQueue.getReplayLagMillis() / 1000.0);
+        Metrics.gauge("write_batch_size_average", "Average player changes per write batch", writeQueue::getAverageBatchSize);
+        Metrics.gauge("write_coalescing_ratio", "Player changes queued per row written", writeQueue::getCoalescingRatio);
+
+        if (Config.METRICS_ENABLED.get()) {
+            MetricsServer server = new MetricsServer(Config.METRICS_PORT.get());
+            if (server.start()) {
+                metricsServer = server;
+            } else {
+                LOGGER.error("Metrics server disabled, metrics are only shown by /wl stats.");
+            }
+        }
     }
 }
@@ -0,0 +1,60 @@
+package pw.twpi.whitelistsync2.commands;
+
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.minecraft.command.CommandSource;
+import net.minecraft.util.text.StringTextComponent;
+import net.minecraft.util.text.TextComponentUtils;
+import pw.twpi.whitelistsync2.Config;
+import pw.twpi.whitelistsync2.WhitelistSync2;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Helpers for commands whose database work runs on the async service.
+ * Results are always handed back on the server thread, where the local lists and the command source may be used.
+ */
+public class AsyncCommand {
+
+    // Long running commands tell the sender they are still working after this long
+    private static final long PROGRESS_DELAY_MILLIS = 2000;
+
+    /**
+     * Waits for the work without blocking, then runs onResult on the server thread.
+     * Timeouts, a full queue and unexpected errors are reported to the sender instead.
+     * @param description what is being done, e.g. "Adding Notch to the whitelist"
+     */
+    public static <T> void whenDone(CommandSource source, String description, CompletableFuture<T> work, Consumer<T> onResult) {
+        WhitelistSync2.asyncService.ifStillRunning(work, PROGRESS_DELAY_MILLIS, () -> source.getServer().execute(() ->
+                source.sendSuccess(new StringTextComponent(description + "..."), false)));
+
+        WhitelistSync2.asyncService.withTimeout(work, Config.COMMAND_TIMEOUT.get()).whenComplete((result, error) ->
+                source.getServer().execute(() -> {
+                    if (error == null) {
+                        onResult.accept(result);
+                        return;
+                    }
+
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if (cause instanceof TimeoutException) {
+                        source.sendFailure(new StringTextComponent(description + " is taking too long, it will finish in the background. " +
+                                "Check the console for the result."));
+                    } else if (cause instanceof RejectedExecutionException) {
+                        source.sendFailure(new StringTextComponent("The database is busy, please try again in a moment."));
+                    } else {
+                        WhitelistSync2.LOGGER.error(description + " failed.");
+                        WhitelistSync2.LOGGER.error(cause.getMessage(), cause);
+                        source.sendFailure(new StringTextComponent(description + " failed, please check console for details."));
+                    }
+                }));
+    }
+
+    // Sends the message of a command error to the sender, for errors found after run() has returned
+    public static void fail(CommandSource source, CommandSyntaxException error) {
+        source.sendFailure(TextComponentUtils.fromMessage(error.getRawMessage()));
+    }
+
+}
@@ -18,6 +18,7 @@ import net.minecraft.server.management.WhitelistEntry;
 import net.minecraft.util.text.StringTextComponent;
 import net.minecraft.util.text.TextComponentUtils;
 import pw.twpi.whitelistsync2.WhitelistSync2;
+import pw.twpi.whitelistsync2.commands.AsyncCommand;
 
 import java.util.Collection;
 
@@ -49,7 +50,8 @@ public class CommandDeop implements Command<CommandSource> {
     @Override
     public int run(CommandContext<CommandSource> context) throws CommandSyntaxException {
         Collection<GameProfile> players = GameProfileArgument.getGameProfiles(context, "players");
-        PlayerList playerList = context.getSource().getServer().getPlayerList();
+        CommandSource source = context.getSource();
+        PlayerList playerList = source.getServer().getPlayerList();
 
         int i = 0;
 
@@ -58,24 +60,25 @@ public class CommandDeop implements Command<CommandSource> {
             String playerName = TextComponentUtils.getDisplayName(gameProfile).getString();
 
             if (playerList.isOp(gameProfile)) {
-                if(WhitelistSync2.whitelistService.removeOppedPlayer(gameProfile)) {
-                    playerList.deop(gameProfile);
-                    context.getSource().sendSuccess(new StringTextComponent(String.format("Deopped %s from database.", playerName)), true);
-                    ++i;
-                    // Everything is kosher
-                } else {
-                    // If something happens with the database stuff
-                    throw DB_ERROR.create(playerName);
-                }
+                AsyncCommand.whenDone(source, "Deopping " + playerName + " in the database",
+                        WhitelistSync2.asyncService.removeOppedPlayer(gameProfile), success -> {
+                    if(success) {
+                        playerList.deop(gameProfile);
+                        source.sendSuccess(new StringTextComponent(String.format("Deopped %s from database.", playerName)), true);
+                        source.getServer().kickUnlistedPlayers(source);
+                        // Everything is kosher
+                    } else {
+                        // If something happens with the database stuff
+                        AsyncCommand.fail(source, DB_ERROR.create(playerName));
+                    }
+                });
+                ++i;
             } else {
-                // Player is not whitelisted
-                context.getSource().sendSuccess(new StringTextComponent(String.format("%s is not opped.", playerName)), true);
+                // Player is not opped
+                source.sendSuccess(new StringTextComponent(String.format("%s is not opped.", playerName)), true);
             }
         }
 
-        if (i > 0) {
-            context.getSource().getServer().kickUnlistedPlayers(context.getSource());
-        }
         return i;
     }
 }
@@ -18,6 +18,7 @@ import net.minecraft.server.management.WhitelistEntry;
 import net.minecraft.util.text.StringTextComponent;
 import net.minecraft.util.text.TextComponentUtils;
 import pw.twpi.whitelistsync2.WhitelistSync2;
+import pw.twpi.whitelistsync2.commands.AsyncCommand;
 
 import java.util.Collection;
 
@@ -61,7 +62,8 @@ public class CommandOp implements Command<CommandSource> {
     @Override
     public int run(CommandContext<CommandSource> context) throws CommandSyntaxException {
         Collection<GameProfile> players = GameProfileArgument.getGameProfiles(context, "players");
-        PlayerList playerList = context.getSource().getServer().getPlayerList();
+        CommandSource source = context.getSource();
+        PlayerList playerList = source.getServer().getPlayerList();
         int i = 0;
 
         for(GameProfile gameProfile : players) {
@@ -69,20 +71,23 @@ public class CommandOp implements Command<CommandSource> {
             String playerName = TextComponentUtils.getDisplayName(gameProfile).getString();
 
             if(!playerList.isOp(gameProfile)) {
-                // Add player to whitelist service
-                if(WhitelistSync2.whitelistService.addOppedPlayer(gameProfile)) {
-                    playerList.op(gameProfile);
+                // Add player to op service, the local op list follows once the database has it
+                AsyncCommand.whenDone(source, "Opping " + playerName + " in the database",
+                        WhitelistSync2.asyncService.addOppedPlayer(gameProfile), success -> {
+                    if(success) {
+                        playerList.op(gameProfile);
 
-                    context.getSource().sendSuccess(new StringTextComponent(String.format("Opped %s in database.", playerName)), true);
-                    ++i;
-                    // Everything is kosher!
-                } else {
-                    // If something happens with the database stuff
-                    throw DB_ERROR.create(playerName);
-                }
+                        source.sendSuccess(new StringTextComponent(String.format("Opped %s in database.", playerName)), true);
+                        // Everything is kosher!
+                    } else {
+                        // If something happens with the database stuff
+                        AsyncCommand.fail(source, DB_ERROR.create(playerName));
+                    }
+                });
+                ++i;
             } else {
-                // Player already whitelisted
-                context.getSource().sendSuccess(new StringTextComponent(String.format("%s is already opped.", playerName)), true);
+                // Player already opped
+                source.sendSuccess(new StringTextComponent(String.format("%s is already opped.", playerName)), true);
             }
         }
 
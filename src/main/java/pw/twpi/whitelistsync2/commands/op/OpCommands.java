@@ -16,6 +16,8 @@ public class OpCommands {
                     .then(CommandDeop.register(dispatcher))
                     .then(CommandSync.register(dispatcher))
                     .then(CommandCopyToDatabase.register(dispatcher))
+                    .then(CommandVerify.register(dispatcher))
+                    .then(CommandRepair.register(dispatcher))
         );
 
     }
@@ -20,6 +20,7 @@ import net.minecraft.util.text.StringTextComponent;
 import net.minecraft.util.text.TextComponentUtils;
 import net.minecraft.util.text.TranslationTextComponent;
 import pw.twpi.whitelistsync2.WhitelistSync2;
+import pw.twpi.whitelistsync2.commands.AsyncCommand;
 
 import java.util.Collection;
 
@@ -63,7 +64,8 @@ public class CommandAdd implements Command<CommandSource> {
     @Override
     public int run(CommandContext<CommandSource> context) throws CommandSyntaxException {
         Collection<GameProfile> players = GameProfileArgument.getGameProfiles(context, "players");
-        WhiteList whiteList = context.getSource().getServer().getPlayerList().getWhiteList();
+        CommandSource source = context.getSource();
+        WhiteList whiteList = source.getServer().getPlayerList().getWhiteList();
 
         int i = 0;
 
@@ -72,21 +74,24 @@ public class CommandAdd implements Command<CommandSource> {
             String playerName = TextComponentUtils.getDisplayName(gameProfile).getString();
 
             if(!whiteList.isWhiteListed(gameProfile)) {
-                // Add player to whitelist service
-                if(WhitelistSync2.whitelistService.addWhitelistPlayer(gameProfile)) {
-                    WhitelistEntry whitelistentry = new WhitelistEntry(gameProfile);
-                    whiteList.add(whitelistentry);
-
-                    context.getSource().sendSuccess(new StringTextComponent(String.format("Added %s to whitelist database.", playerName)), true);
-                    ++i;
-                    // Everything is kosher!
-                } else {
-                    // If something happens with the database stuff
-                    throw DB_ERROR.create(playerName);
-                }
+                // Add player to whitelist service, the local whitelist follows once the database has it
+                AsyncCommand.whenDone(source, "Adding " + playerName + " to the whitelist database",
+                        WhitelistSync2.asyncService.addWhitelistPlayer(gameProfile), success -> {
+                    if(success) {
+                        WhitelistEntry whitelistentry = new WhitelistEntry(gameProfile);
+                        whiteList.add(whitelistentry);
+
+                        source.sendSuccess(new StringTextComponent(String.format("Added %s to whitelist database.", playerName)), true);
+                        // Everything is kosher!
+                    } else {
+                        // If something happens with the database stuff
+                        AsyncCommand.fail(source, DB_ERROR.create(playerName));
+                    }
+                });
+                ++i;
             } else {
                 // Player already whitelisted
-                context.getSource().sendSuccess(new StringTextComponent(String.format("%s is already whitelisted.", playerName)), true);
+                source.sendSuccess(new StringTextComponent(String.format("%s is already whitelisted.", playerName)), true);
             }
         }
 
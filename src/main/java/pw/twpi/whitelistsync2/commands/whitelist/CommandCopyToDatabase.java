@@ -10,6 +10,8 @@ import net.minecraft.command.CommandSource;
 import net.minecraft.command.Commands;
 import net.minecraft.util.text.StringTextComponent;
 import pw.twpi.whitelistsync2.WhitelistSync2;
+import pw.twpi.whitelistsync2.commands.AsyncCommand;
+import pw.twpi.whitelistsync2.services.CopyProgressListener;
 
 public class CommandCopyToDatabase implements Command<CommandSource> {
     // !!!!!!!!!!!!!!Make sure you change this to this class!!!!!!!!!!!!!!
@@ -20,7 +22,7 @@ public class CommandCopyToDatabase implements Command<CommandSource> {
     private static final int permissionLevel = 4;
 
     // Errors
-    private static final SimpleCommandExceptionType DB_ERROR = new SimpleCommandExceptionType(new StringTextComponent("Error syncing local whitelist to database, please check console for details."));
+    private static final SimpleCommandExceptionType DB_ERROR = new SimpleCommandExceptionType(new StringTextComponent("Error syncing local whitelist to database, please check console for details. Running it again resumes the copy."));
 
     // Initial command "checks"
     public static ArgumentBuilder<CommandSource, ?> register(CommandDispatcher<CommandSource> dispatcher) {
@@ -32,12 +34,20 @@ public class CommandCopyToDatabase implements Command<CommandSource> {
     // Command action
     @Override
     public int run(CommandContext<CommandSource> context) throws CommandSyntaxException {
-
-        if(WhitelistSync2.whitelistService.copyLocalWhitelistedPlayersToDatabase()) {
-            context.getSource().sendSuccess(new StringTextComponent("Pushed local whitelist to database."), false);
-        } else {
-            throw DB_ERROR.create();
-        }
+        CommandSource source = context.getSource();
+
+        // Report progress of large copies back to the sender
+        CopyProgressListener progress = (copied, total) -> source.getServer().execute(() ->
+                source.sendSuccess(new StringTextComponent(String.format("Pushed %d/%d players to the whitelist database...", copied, total)), false));
+
+        AsyncCommand.whenDone(source, "Pushing the local whitelist to the database",
+                WhitelistSync2.asyncService.copyLocalWhitelistedPlayersToDatabase(progress), success -> {
+            if(success) {
+                source.sendSuccess(new StringTextComponent("Pushed local whitelist to database."), false);
+            } else {
+                AsyncCommand.fail(source, DB_ERROR.create());
+            }
+        });
 
         return 0;
     }
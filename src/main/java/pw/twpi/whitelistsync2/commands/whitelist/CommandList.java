@@ -2,14 +2,24 @@ package pw.twpi.whitelistsync2.commands.whitelist;
 
 import com.mojang.brigadier.Command;
 import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
+import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.builder.ArgumentBuilder;
 import com.mojang.brigadier.context.CommandContext;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import com.mojang.brigadier.exceptions.SimpleCommandExceptionType;
 import net.minecraft.command.CommandSource;
 import net.minecraft.command.Commands;
 import net.minecraft.util.text.StringTextComponent;
+import pw.twpi.whitelistsync2.Config;
 import pw.twpi.whitelistsync2.Utilities;
 import pw.twpi.whitelistsync2.WhitelistSync2;
+import pw.twpi.whitelistsync2.commands.AsyncCommand;
+import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class CommandList implements Command<CommandSource> {
     // !!!!!!!!!!!!!!Make sure you change this to this class!!!!!!!!!!!!!!
@@ -19,17 +29,84 @@ public class CommandList implements Command<CommandSource> {
     private static final String commandName = "list";
     private static final int permissionLevel = 4;
 
+    // Errors
+    private static final SimpleCommandExceptionType DB_ERROR = new SimpleCommandExceptionType(new StringTextComponent("Error reading whitelist database, please check console for details."));
+
     // Initial command "checks"
     public static ArgumentBuilder<CommandSource, ?> register(CommandDispatcher<CommandSource> dispatcher) {
         return Commands.literal(commandName)
                 .requires(cs -> cs.hasPermission(permissionLevel))
-                .executes(CMD);
+                .executes(CMD)
+                .then(Commands.argument("page", IntegerArgumentType.integer(1, 1000000))
+                    .executes(context -> listPage(context.getSource(), null, null, null, null, IntegerArgumentType.getInteger(context, "page"))))
+                // The page links also pass the uuid of the player at the edge of the page, so players with the same name aren't skipped
+                .then(Commands.literal("after")
+                    .then(Commands.argument("name", StringArgumentType.word())
+                        .executes(context -> listPage(context.getSource(), StringArgumentType.getString(context, "name"), null, null, null, 1))
+                        .then(Commands.argument("uuid", StringArgumentType.word())
+                            .executes(context -> listPage(context.getSource(), StringArgumentType.getString(context, "name"), StringArgumentType.getString(context, "uuid"), null, null, 1)))))
+                .then(Commands.literal("before")
+                    .then(Commands.argument("name", StringArgumentType.word())
+                        .executes(context -> listPage(context.getSource(), null, null, StringArgumentType.getString(context, "name"), null, 1))
+                        .then(Commands.argument("uuid", StringArgumentType.word())
+                            .executes(context -> listPage(context.getSource(), null, null, StringArgumentType.getString(context, "name"), StringArgumentType.getString(context, "uuid"), 1)))));
     }
 
     // Command action
     @Override
     public int run(CommandContext<CommandSource> context) throws CommandSyntaxException {
-        context.getSource().sendSuccess(new StringTextComponent(Utilities.FormatWhitelistedPlayersOutput(WhitelistSync2.whitelistService.getWhitelistedPlayersFromDatabase())), false);
+        return listPage(context.getSource(), null, null, null, null, 1);
+    }
+
+    // Reads only the requested page and the total, never the whole table
+    private static int listPage(CommandSource source, String afterName, String afterUuid, String beforeName, String beforeUuid, int page) {
+        int pageSize = Config.LIST_PAGE_SIZE.get();
+
+        // One player more than fits tells whether there is another page in the direction being read
+        CompletableFuture<ArrayList<WhitelistedPlayer>> players = WhitelistSync2.asyncService.getWhitelistedPlayersPage(
+                afterName, afterUuid, beforeName, beforeUuid, (page - 1) * pageSize, pageSize + 1);
+        CompletableFuture<Integer> total = WhitelistSync2.asyncService.countWhitelistedPlayers();
+
+        AsyncCommand.whenDone(source, "Reading the whitelist database", players.thenCombine(total, (pagePlayers, count) -> {
+            if (pagePlayers == null || count < 0) {
+                return null;
+            }
+
+            List<String> names = new ArrayList<>(pagePlayers.size());
+            List<String> uuids = new ArrayList<>(pagePlayers.size());
+            for (WhitelistedPlayer player : pagePlayers) {
+                names.add(player.getName());
+                uuids.add(player.getUuid());
+            }
+
+            boolean hasPrevious;
+            boolean hasNext;
+            if (afterName == null && beforeName != null) {
+                // Read backwards, the extra player is the first one
+                hasPrevious = names.size() > pageSize;
+                hasNext = true;
+                if (hasPrevious) {
+                    names.remove(0);
+                    uuids.remove(0);
+                }
+            } else {
+                hasPrevious = afterName != null || page > 1;
+                hasNext = names.size() > pageSize;
+                if (hasNext) {
+                    names.remove(names.size() - 1);
+                    uuids.remove(uuids.size() - 1);
+                }
+            }
+
+            return Utilities.FormatPlayerPage("Whitelisted players", "Whitelist is empty", "/wl list", names, uuids, count, hasPrevious, hasNext);
+        }), reply -> {
+            if (reply != null) {
+                source.sendSuccess(reply, false);
+            } else {
+                AsyncCommand.fail(source, DB_ERROR.create());
+            }
+        });
+
         return 0;
     }
 }
@@ -20,6 +20,7 @@ import net.minecraft.util.text.StringTextComponent;
 import net.minecraft.util.text.TextComponentUtils;
 import net.minecraft.util.text.TranslationTextComponent;
 import pw.twpi.whitelistsync2.WhitelistSync2;
+import pw.twpi.whitelistsync2.commands.AsyncCommand;
 
 import java.util.Collection;
 
@@ -51,7 +52,8 @@ public class CommandRemove implements Command<CommandSource> {
     @Override
     public int run(CommandContext<CommandSource> context) throws CommandSyntaxException {
         Collection<GameProfile> players = GameProfileArgument.getGameProfiles(context, "players");
-        WhiteList whiteList = context.getSource().getServer().getPlayerList().getWhiteList();
+        CommandSource source = context.getSource();
+        WhiteList whiteList = source.getServer().getPlayerList().getWhiteList();
 
         int i = 0;
 
@@ -60,25 +62,26 @@ public class CommandRemove implements Command<CommandSource> {
             String playerName = TextComponentUtils.getDisplayName(gameProfile).getString();
 
             if (whiteList.isWhiteListed(gameProfile)) {
-                if(WhitelistSync2.whitelistService.removeWhitelistPlayer(gameProfile)) {
-                    WhitelistEntry whitelistentry = new WhitelistEntry(gameProfile);
-                    whiteList.remove(whitelistentry);
-                    context.getSource().sendSuccess(new StringTextComponent(String.format("Removed %s from whitelist database.", playerName)), true);
-                    ++i;
-                    // Everything is kosher
-                } else {
-                    // If something happens with the database stuff
-                    throw DB_ERROR.create(playerName);
-                }
+                AsyncCommand.whenDone(source, "Removing " + playerName + " from the whitelist database",
+                        WhitelistSync2.asyncService.removeWhitelistPlayer(gameProfile), success -> {
+                    if(success) {
+                        WhitelistEntry whitelistentry = new WhitelistEntry(gameProfile);
+                        whiteList.remove(whitelistentry);
+                        source.sendSuccess(new StringTextComponent(String.format("Removed %s from whitelist database.", playerName)), true);
+                        source.getServer().kickUnlistedPlayers(source);
+                        // Everything is kosher
+                    } else {
+                        // If something happens with the database stuff
+                        AsyncCommand.fail(source, DB_ERROR.create(playerName));
+                    }
+                });
+                ++i;
             } else {
                 // Player is not whitelisted
-                context.getSource().sendSuccess(new StringTextComponent(String.format("%s is not whitelisted.", playerName)), true);
+                source.sendSuccess(new StringTextComponent(String.format("%s is not whitelisted.", playerName)), true);
             }
         }
 
-        if (i > 0) {
-            context.getSource().getServer().kickUnlistedPlayers(context.getSource());
-        }
         return i;
     }
 }
@@ -0,0 +1,35 @@
+package pw.twpi.whitelistsync2.commands.whitelist;
+
+import com.mojang.brigadier.Command;
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.builder.ArgumentBuilder;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.minecraft.command.CommandSource;
+import net.minecraft.command.Commands;
+import net.minecraft.util.text.StringTextComponent;
+import pw.twpi.whitelistsync2.services.Metrics;
+
+public class CommandStats implements Command<CommandSource> {
+    // !!!!!!!!!!!!!!Make sure you change this to this class!!!!!!!!!!!!!!
+    private static final CommandStats CMD = new CommandStats();
+
+    // Name of the command
+    private static final String commandName = "stats";
+    private static final int permissionLevel = 4;
+
+    // Initial command "checks"
+    public static ArgumentBuilder<CommandSource, ?> register(CommandDispatcher<CommandSource> dispatcher) {
+        return Commands.literal(commandName)
+                .requires(cs -> cs.hasPermission(permissionLevel))
+                .executes(CMD);
+    }
+
+    // Command action
+    @Override
+    public int run(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        // Metrics are kept in memory, so no database call is needed
+        context.getSource().sendSuccess(new StringTextComponent(String.join("\n", Metrics.summary())), false);
+        return 0;
+    }
+}
@@ -12,6 +12,7 @@ import net.minecraft.command.CommandSource;
 import net.minecraft.command.Commands;
 import net.minecraft.util.text.StringTextComponent;
 import pw.twpi.whitelistsync2.WhitelistSync2;
+import pw.twpi.whitelistsync2.commands.AsyncCommand;
 
 public class CommandSync implements Command<CommandSource> {
     // !!!!!!!!!!!!!!Make sure you change this to this class!!!!!!!!!!!!!!
@@ -34,12 +35,16 @@ public class CommandSync implements Command<CommandSource> {
     // Command action
     @Override
     public int run(CommandContext<CommandSource> context) throws CommandSyntaxException {
-
-        if(WhitelistSync2.whitelistService.copyDatabaseWhitelistedPlayersToLocal(context.getSource().getServer())) {
-            context.getSource().sendSuccess(new StringTextComponent("Local whitelist up to date with database."), false);
-        } else {
-            throw DB_ERROR.create();
-        }
+        CommandSource source = context.getSource();
+
+        AsyncCommand.whenDone(source, "Syncing the whitelist from the database",
+                WhitelistSync2.asyncService.copyDatabaseWhitelistedPlayersToLocal(source.getServer(), true), changes -> {
+            if(changes >= 0) {
+                source.sendSuccess(new StringTextComponent("Local whitelist up to date with database."), false);
+            } else {
+                AsyncCommand.fail(source, DB_ERROR.create());
+            }
+        });
 
         return 0;
     }
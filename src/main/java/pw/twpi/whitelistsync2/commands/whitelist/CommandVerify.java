@@ -0,0 +1,53 @@
+package pw.twpi.whitelistsync2.commands.whitelist;
+
+import com.mojang.brigadier.Command;
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.builder.ArgumentBuilder;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import com.mojang.brigadier.exceptions.SimpleCommandExceptionType;
+import net.minecraft.command.CommandSource;
+import net.minecraft.command.Commands;
+import net.minecraft.util.text.StringTextComponent;
+import pw.twpi.whitelistsync2.WhitelistSync2;
+import pw.twpi.whitelistsync2.commands.AsyncCommand;
+
+public class CommandVerify implements Command<CommandSource> {
+    // !!!!!!!!!!!!!!Make sure you change this to this class!!!!!!!!!!!!!!
+    private static final CommandVerify CMD = new CommandVerify();
+
+    // Name of the command
+    private static final String commandName = "verify";
+    private static final int permissionLevel = 4;
+
+    // Errors
+    private static final SimpleCommandExceptionType DB_ERROR
+            = new SimpleCommandExceptionType(new StringTextComponent("Error verifying whitelist database, please check console for details."));
+
+    // Initial command "checks"
+    public static ArgumentBuilder<CommandSource, ?> register(CommandDispatcher<CommandSource> dispatcher) {
+        return Commands.literal(commandName)
+                .requires(cs -> cs.hasPermission(permissionLevel))
+                .executes(CMD);
+    }
+
+    // Command action
+    @Override
+    public int run(CommandContext<CommandSource> context) throws CommandSyntaxException {
+        CommandSource source = context.getSource();
+
+        // Compares digests of uuid ranges, so a list that matches costs one small query
+        AsyncCommand.whenDone(source, "Comparing the local whitelist with the database",
+                WhitelistSync2.asyncService.reconcileWhitelist(source.getServer(), false), result -> {
+            if (result == null) {
+                AsyncCommand.fail(source, DB_ERROR.create());
+            } else if (result.isInSync()) {
+                source.sendSuccess(new StringTextComponent(result.describe()), false);
+            } else {
+                source.sendSuccess(new StringTextComponent(result.describe() + " Run /wl repair to fix it."), false);
+            }
+        });
+
+        return 0;
+    }
+}
@@ -16,6 +16,9 @@ public class WhitelistCommands {
                     .then(CommandRemove.register(dispatcher))
                     .then(CommandSync.register(dispatcher))
                     .then(CommandCopyToDatabase.register(dispatcher))
+                    .then(CommandStats.register(dispatcher))
+                    .then(CommandVerify.register(dispatcher))
+                    .then(CommandRepair.register(dispatcher))
         );
 
         // Allow "whitelistsync2" as an alias
@@ -0,0 +1,175 @@
+package pw.twpi.whitelistsync2.json;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import pw.twpi.whitelistsync2.WhitelistSync2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+
+/**
+ * Keeps the last parsed contents of a json list file in the server directory and only parses it again
+ * when the file changed. Changes are detected by modification time and size, and confirmed with a
+ * content hash when the modification time is too recent to be trusted.
+ *
+ * The file is read with a JsonListReader, so reading it never holds more than the entries themselves.
+ * A missing or malformed file reads as an empty list and logs an error.
+ */
+public class CachedJsonFile<E> {
+
+    // Coarsest file timestamp resolution we expect (FAT and some network shares use 2 seconds)
+    private static final long TIMESTAMP_GRANULARITY_MILLIS = 2000;
+
+    // Same layout vanilla uses when it saves the lists
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private final String fileName;
+    // Makes an entry from its uuid and name
+    private final BiFunction<String, String, E> converter;
+
+    private List<E> value;
+    private long lastModified = -1;
+    private long size = -1;
+    private long contentHash;
+    private long checkedAt;
+
+    public CachedJsonFile(String fileName, BiFunction<String, String, E> converter) {
+        this.fileName = fileName;
+        this.converter = converter;
+    }
+
+    // Returns the cached contents, or an empty list if the file is missing or malformed.
+    // The returned list is shared and unmodifiable.
+    public synchronized List<E> get() {
+        File file = new File(WhitelistSync2.SERVER_FILEPATH, fileName);
+        long modified = file.lastModified();
+        long length = file.length();
+
+        // A file written within the timestamp granularity of our last check could have changed again
+        // without its timestamp moving, so only trust the stat when the file had settled before we read it.
+        if (value != null && modified == lastModified && length == size
+                && modified < checkedAt - TIMESTAMP_GRANULARITY_MILLIS) {
+            return value;
+        }
+
+        try (JsonListReader reader = new JsonListReader(file.toPath())) {
+            List<E> entries = new ArrayList<>();
+            JsonListReader.Entry entry;
+            while ((entry = reader.next()) != null) {
+                entries.add(converter.apply(entry.uuid, entry.name));
+            }
+
+            // Keep the old list if nothing changed, so callers can tell by identity
+            if (value == null || reader.getHash() != contentHash) {
+                value = Collections.unmodifiableList(entries);
+                contentHash = reader.getHash();
+                WhitelistSync2.LOGGER.debug("Parsed " + fileName + " | " + length + " bytes | " + entries.size() + " entries"
+                        + (reader.getSkipped() > 0 ? " | Skipped " + reader.getSkipped() + " invalid entries." : "."));
+            }
+
+            lastModified = modified;
+            size = length;
+            checkedAt = System.currentTimeMillis();
+        } catch (NoSuchFileException e) {
+            WhitelistSync2.LOGGER.error(fileName + " file not found.");
+            clear(modified, length);
+        } catch (IOException e) {
+            WhitelistSync2.LOGGER.error(fileName + " parse error, treating it as empty until it is fixed.");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            clear(modified, length);
+        }
+
+        return value;
+    }
+
+    // Empties the list until the file changes, so a broken file is only reported once
+    private void clear(long modified, long length) {
+        value = Collections.emptyList();
+        contentHash = 0;
+        lastModified = modified;
+        size = length;
+        checkedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads the file, lets the editor change its entries and writes it back with a single write.
+     * The file is replaced atomically where the file system allows it, and the cache is updated with what was written.
+     * A missing file is treated as empty, a file that can't be parsed is left alone.
+     */
+    public synchronized void edit(Consumer<JsonArray> editor) throws IOException {
+        File file = new File(WhitelistSync2.SERVER_FILEPATH, fileName);
+
+        JsonArray array;
+        if (file.exists()) {
+            try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                array = new JsonParser().parse(reader).getAsJsonArray();
+            } catch (JsonParseException | IllegalStateException e) {
+                throw new IOException(fileName + " parse error, not overwriting it.", e);
+            }
+        } else {
+            array = new JsonArray();
+        }
+
+        editor.accept(array);
+
+        byte[] bytes = GSON.toJson(array).getBytes(StandardCharsets.UTF_8);
+        Path temp = new File(WhitelistSync2.SERVER_FILEPATH, fileName + ".tmp").toPath();
+        Files.write(temp, bytes);
+        try {
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        value = toEntries(array);
+        contentHash = hash(bytes);
+        lastModified = file.lastModified();
+        size = file.length();
+        checkedAt = System.currentTimeMillis();
+    }
+
+    // Same entries JsonListReader would read from the array
+    private List<E> toEntries(JsonArray array) {
+        List<E> entries = new ArrayList<>(array.size());
+        for (JsonElement element : array) {
+            if (!element.isJsonObject()) {
+                continue;
+            }
+
+            JsonObject entry = element.getAsJsonObject();
+            JsonElement uuid = entry.get("uuid");
+            JsonElement name = entry.get("name");
+            if (uuid != null && uuid.isJsonPrimitive() && uuid.getAsJsonPrimitive().isString()
+                    && name != null && name.isJsonPrimitive() && name.getAsJsonPrimitive().isString()) {
+                entries.add(converter.apply(uuid.getAsString(), name.getAsString()));
+            }
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    private static long hash(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+}
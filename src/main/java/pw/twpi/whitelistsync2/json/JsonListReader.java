@@ -0,0 +1,134 @@
+package pw.twpi.whitelistsync2.json;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+
+/**
+ * Reads the entries of a json list file (whitelist.json, ops.json) one at a time with Gson's streaming JsonReader,
+ * instead of parsing the whole file into a JsonArray first. Only the entry being read and a fixed size buffer
+ * are held in memory. The file is hashed while it is read, so changes can be detected without reading it twice.
+ *
+ * Entries that aren't objects or lack a uuid or name are skipped, vanilla ignores them too.
+ * Anything else that isn't a json array of objects throws an IOException.
+ */
+class JsonListReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final CheckedInputStream in;
+    private final JsonReader reader;
+    private boolean finished;
+    private int skipped;
+
+    JsonListReader(Path file) throws IOException {
+        in = new CheckedInputStream(Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ)), new CRC32());
+        reader = new JsonReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE));
+
+        try {
+            reader.beginArray();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw asIOException(e);
+        }
+    }
+
+    // Reads the next entry, or returns null once the end of the list is reached
+    Entry next() throws IOException {
+        if (finished) {
+            return null;
+        }
+
+        try {
+            while (reader.hasNext()) {
+                if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    skipped++;
+                    continue;
+                }
+
+                String uuid = null;
+                String name = null;
+
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if (field.equals("uuid") && reader.peek() == JsonToken.STRING) {
+                        uuid = reader.nextString();
+                    } else if (field.equals("name") && reader.peek() == JsonToken.STRING) {
+                        name = reader.nextString();
+                    } else {
+                        // level, bypassesPlayerLimit and anything a future version adds
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+
+                if (uuid != null && name != null) {
+                    return new Entry(uuid, name);
+                }
+                skipped++;
+            }
+
+            reader.endArray();
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new IOException("Unexpected content after the list.");
+            }
+        } catch (IOException | RuntimeException e) {
+            throw asIOException(e);
+        }
+
+        // Read what the buffers haven't, so the hash covers the whole file
+        byte[] rest = new byte[4096];
+        while (in.read(rest) != -1) {
+            // Only hashing
+        }
+
+        finished = true;
+        return null;
+    }
+
+    // CRC32 of the file, complete once next() has returned null
+    long getHash() {
+        return in.getChecksum().getValue();
+    }
+
+    // Number of entries skipped so far
+    int getSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Closes the reader chain down to the file channel
+        reader.close();
+    }
+
+    // JsonReader reports some malformed input as IllegalStateException or NumberFormatException
+    private static IOException asIOException(Exception e) {
+        return e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+    }
+
+    static class Entry {
+        final String uuid;
+        final String name;
+
+        Entry(String uuid, String name) {
+            this.uuid = uuid;
+            this.name = name;
+        }
+    }
+
+}
@@ -1,15 +1,18 @@
 package pw.twpi.whitelistsync2.json;
 
-import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonParser;
-import pw.twpi.whitelistsync2.WhitelistSync2;
+import com.mojang.authlib.GameProfile;
 import pw.twpi.whitelistsync2.models.OppedPlayer;
 
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 
 
 /**
@@ -17,47 +20,59 @@ import java.util.ArrayList;
  * @author Richard Nader, Jr. <rmnader@svsu.edu>
  */
 public class OppedPlayersFileUtilities {
-    
-    private static JsonParser parser = new JsonParser();
+
+    // Parsed ops.json, re-read only when the file changes
+    private static final CachedJsonFile<OppedPlayer> opsFile
+            = new CachedJsonFile<>("ops.json", OppedPlayersFileUtilities::toOppedPlayer);
 
     // Get Arraylist of opped players on server.
     public static ArrayList<OppedPlayer> getOppedPlayers() {
-        ArrayList<OppedPlayer> users = new ArrayList<>();
+        return new ArrayList<>(getCachedOppedPlayers());
+    }
 
-        // Get Json data
-        getOppedPlayersFromFile().forEach((user) -> {
-            String uuid = ((JsonObject) user).get("uuid").getAsString();
-            String name = ((JsonObject) user).get("name").getAsString();
+    // Get the shared cached list of opped players. Do not modify it!
+    public static List<OppedPlayer> getCachedOppedPlayers() {
+        return opsFile.get();
+    }
 
-            // Create DTO
-            OppedPlayer oppedPlayer = new OppedPlayer();
-            oppedPlayer.setUuid(uuid);
-            oppedPlayer.setName(name);
-            oppedPlayer.setIsOp(true);
+    // Adds and removes players in ops.json with a single write. New entries get the given op level.
+    // The server's in-memory list must be reloaded afterwards.
+    public static void writeChanges(Collection<GameProfile> added, Collection<GameProfile> removed, int level) throws IOException {
+        Set<UUID> replaced = new HashSet<>();
+        added.forEach(player -> replaced.add(player.getId()));
+        removed.forEach(player -> replaced.add(player.getId()));
 
-            
-            users.add(oppedPlayer);
-        });
+        opsFile.edit(entries -> {
+            Iterator<JsonElement> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                try {
+                    if (replaced.contains(UUID.fromString(((JsonObject) iterator.next()).get("uuid").getAsString()))) {
+                        iterator.remove();
+                    }
+                } catch (RuntimeException e) {
+                    // Leave entries we can't read alone, vanilla skips them too
+                }
+            }
 
-        return users;
+            for (GameProfile player : added) {
+                JsonObject entry = new JsonObject();
+                entry.addProperty("uuid", player.getId().toString());
+                entry.addProperty("name", player.getName());
+                entry.addProperty("level", level);
+                entry.addProperty("bypassesPlayerLimit", false);
+                entries.add(entry);
+            }
+        });
     }
 
-    private static JsonArray getOppedPlayersFromFile() {
-        JsonArray oplist = null;
-        try {
-            // Read data as Json array from server directory
-            oplist = (JsonArray) parser.parse(new FileReader(WhitelistSync2.SERVER_FILEPATH + "/ops.json"));
-            
-            // WhitelistSync2.LOGGER.debug("getOppedPlayersFromFile returned an array of " + oplist.size() + " entries.");
-        } catch (FileNotFoundException e) {
-            WhitelistSync2.LOGGER.error("ops.json file not found.");
-            e.printStackTrace();
-        } catch (JsonParseException e) {
-            WhitelistSync2.LOGGER.error("ops.json parse error.");
-            e.printStackTrace();
-        }
-        
-        return oplist;
+    private static OppedPlayer toOppedPlayer(String uuid, String name) {
+        // Create DTO
+        OppedPlayer oppedPlayer = new OppedPlayer();
+        oppedPlayer.setUuid(uuid);
+        oppedPlayer.setName(name);
+        oppedPlayer.setIsOp(true);
+
+        return oppedPlayer;
     }
-    
+
 }
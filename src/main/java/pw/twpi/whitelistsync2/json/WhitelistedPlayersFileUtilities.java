@@ -1,15 +1,18 @@
 package pw.twpi.whitelistsync2.json;
 
-import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonParser;
-import pw.twpi.whitelistsync2.WhitelistSync2;
+import com.mojang.authlib.GameProfile;
 import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
 
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 
 
 /**
@@ -18,46 +21,56 @@ import java.util.ArrayList;
  */
 public class WhitelistedPlayersFileUtilities {
 
-    private static JsonParser parser = new JsonParser();
+    // Parsed whitelist.json, re-read only when the file changes
+    private static final CachedJsonFile<WhitelistedPlayer> whitelistFile
+            = new CachedJsonFile<>("whitelist.json", WhitelistedPlayersFileUtilities::toWhitelistedPlayer);
 
     // Get Arraylist of whitelisted players on server.
     public static ArrayList<WhitelistedPlayer> getWhitelistedPlayers() {
-        ArrayList<WhitelistedPlayer> users = new ArrayList<>();
+        return new ArrayList<>(getCachedWhitelistedPlayers());
+    }
 
-        // Get Json data
-        getWhitelistedPlayersFromFile().forEach((user) -> {
-            String uuid = ((JsonObject) user).get("uuid").getAsString();
-            String name = ((JsonObject) user).get("name").getAsString();
+    // Get the shared cached list of whitelisted players. Do not modify it!
+    public static List<WhitelistedPlayer> getCachedWhitelistedPlayers() {
+        return whitelistFile.get();
+    }
 
-            // Create DTO
-            WhitelistedPlayer whitelistedPlayer = new WhitelistedPlayer();
-            whitelistedPlayer.setUuid(uuid);
-            whitelistedPlayer.setName(name);
-            whitelistedPlayer.setWhitelisted(true);
+    // Adds and removes players in whitelist.json with a single write.
+    // The server's in-memory list must be reloaded afterwards.
+    public static void writeChanges(Collection<GameProfile> added, Collection<GameProfile> removed) throws IOException {
+        Set<UUID> replaced = new HashSet<>();
+        added.forEach(player -> replaced.add(player.getId()));
+        removed.forEach(player -> replaced.add(player.getId()));
 
+        whitelistFile.edit(entries -> {
+            Iterator<JsonElement> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                try {
+                    if (replaced.contains(UUID.fromString(((JsonObject) iterator.next()).get("uuid").getAsString()))) {
+                        iterator.remove();
+                    }
+                } catch (RuntimeException e) {
+                    // Leave entries we can't read alone, vanilla skips them too
+                }
+            }
 
-            users.add(whitelistedPlayer);
+            for (GameProfile player : added) {
+                JsonObject entry = new JsonObject();
+                entry.addProperty("uuid", player.getId().toString());
+                entry.addProperty("name", player.getName());
+                entries.add(entry);
+            }
         });
-
-        return users;
     }
 
-    private static JsonArray getWhitelistedPlayersFromFile() {
-        JsonArray whitelist = null;
-        try {
-            // Read data as Json array from server directory
-            whitelist = (JsonArray) parser.parse(new FileReader(WhitelistSync2.SERVER_FILEPATH + "/whitelist.json"));
-
-            // WhitelistSync2.LOGGER.debug("getWhitelistedPlayersFromFile returned an array of " + whitelist.size() + " entries.");
-        } catch (FileNotFoundException e) {
-            WhitelistSync2.LOGGER.error("whitelist.json file not found.");
-            e.printStackTrace();
-        } catch (JsonParseException e) {
-            WhitelistSync2.LOGGER.error("whitelist.json parse error.");
-            e.printStackTrace();
-        }
-
-        return whitelist;
+    static WhitelistedPlayer toWhitelistedPlayer(String uuid, String name) {
+        // Create DTO
+        WhitelistedPlayer whitelistedPlayer = new WhitelistedPlayer();
+        whitelistedPlayer.setUuid(uuid);
+        whitelistedPlayer.setName(name);
+        whitelistedPlayer.setWhitelisted(true);
+
+        return whitelistedPlayer;
     }
 
 }
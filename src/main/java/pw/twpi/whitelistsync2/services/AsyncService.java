@@ -0,0 +1,182 @@
+package pw.twpi.whitelistsync2.services;
+
+import com.mojang.authlib.GameProfile;
+import net.minecraft.server.MinecraftServer;
+import pw.twpi.whitelistsync2.WhitelistSync2;
+import pw.twpi.whitelistsync2.models.OppedPlayer;
+import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs BaseService calls on a small bounded pool so commands never wait on the database on the server thread.
+ * Every call returns a CompletableFuture that completes on a pool thread. When the queue is full, calls fail
+ * right away with a RejectedExecutionException instead of piling up.
+ * Adds and removals go through a WriteBehindQueue so bursts of them are written in a few transactions.
+ */
+public class AsyncService {
+
+    private final BaseService service;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timer;
+    private final WriteBehindQueue writeQueue;
+
+    public AsyncService(BaseService service, int threads, int queueSize, int writeBatchSize, long writeBatchDelayMillis) {
+        this.service = service;
+        this.writeQueue = new WriteBehindQueue(service, writeBatchSize, writeBatchDelayMillis);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "WhitelistSync2-Database-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WhitelistSync2-Timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public CompletableFuture<ArrayList<WhitelistedPlayer>> getWhitelistedPlayersFromDatabase() {
+        return submit(service::getWhitelistedPlayersFromDatabase);
+    }
+
+    public CompletableFuture<ArrayList<OppedPlayer>> getOppedPlayersFromDatabase() {
+        return submit(service::getOppedPlayersFromDatabase);
+    }
+
+    public CompletableFuture<ArrayList<WhitelistedPlayer>> getWhitelistedPlayersPage(String afterName, String afterUuid, String beforeName, String beforeUuid, int offset, int limit) {
+        return submit(() -> service.getWhitelistedPlayersPage(afterName, afterUuid, beforeName, beforeUuid, offset, limit));
+    }
+
+    public CompletableFuture<ArrayList<OppedPlayer>> getOppedPlayersPage(String afterName, String afterUuid, String beforeName, String beforeUuid, int offset, int limit) {
+        return submit(() -> service.getOppedPlayersPage(afterName, afterUuid, beforeName, beforeUuid, offset, limit));
+    }
+
+    public CompletableFuture<Integer> countWhitelistedPlayers() {
+        return submit(service::countWhitelistedPlayers);
+    }
+
+    public CompletableFuture<Integer> countOppedPlayers() {
+        return submit(service::countOppedPlayers);
+    }
+
+    public CompletableFuture<Boolean> copyLocalWhitelistedPlayersToDatabase(CopyProgressListener listener) {
+        return submit(() -> service.copyLocalWhitelistedPlayersToDatabase(listener));
+    }
+
+    public CompletableFuture<Boolean> copyLocalOppedPlayersToDatabase(CopyProgressListener listener) {
+        return submit(() -> service.copyLocalOppedPlayersToDatabase(listener));
+    }
+
+    public CompletableFuture<Integer> copyDatabaseWhitelistedPlayersToLocal(MinecraftServer server, boolean fullSync) {
+        return submit(() -> service.copyDatabaseWhitelistedPlayersToLocal(server, fullSync));
+    }
+
+    public CompletableFuture<Integer> copyDatabaseOppedPlayersToLocal(MinecraftServer server, boolean fullSync) {
+        return submit(() -> service.copyDatabaseOppedPlayersToLocal(server, fullSync));
+    }
+
+    public CompletableFuture<Reconciliation.Result> reconcileWhitelist(MinecraftServer server, boolean repair) {
+        return submit(() -> service.reconcileWhitelist(server, repair));
+    }
+
+    public CompletableFuture<Reconciliation.Result> reconcileOps(MinecraftServer server, boolean repair) {
+        return submit(() -> service.reconcileOps(server, repair));
+    }
+
+    public CompletableFuture<Boolean> addWhitelistPlayer(GameProfile player) {
+        return writeQueue.writeWhitelist(player, true);
+    }
+
+    public CompletableFuture<Boolean> addOppedPlayer(GameProfile player) {
+        return writeQueue.writeOp(player, true);
+    }
+
+    public CompletableFuture<Boolean> removeWhitelistPlayer(GameProfile player) {
+        return writeQueue.writeWhitelist(player, false);
+    }
+
+    public CompletableFuture<Boolean> removeOppedPlayer(GameProfile player) {
+        return writeQueue.writeOp(player, false);
+    }
+
+    public WriteBehindQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    // Returns a future that fails with a TimeoutException if the given one hasn't completed in time.
+    // The work itself keeps running, only the caller stops waiting for it.
+    public <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeoutSeconds) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+
+        try {
+            timer.schedule(() -> result.completeExceptionally(new TimeoutException()), timeoutSeconds, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // Shutting down
+        }
+        return result;
+    }
+
+    // Runs the task after the delay unless the future completed first
+    public void ifStillRunning(CompletableFuture<?> future, long delayMillis, Runnable task) {
+        try {
+            timer.schedule(() -> {
+                if (!future.isDone()) {
+                    task.run();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // Shutting down
+        }
+    }
+
+    // Lets queued calls finish, up to a limit, so they aren't lost when the server stops
+    public void shutdown() {
+        writeQueue.shutdown();
+        timer.shutdownNow();
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                WhitelistSync2.LOGGER.warn("Database calls still running after 10 seconds, stopping anyway.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package pw.twpi.whitelistsync2.services;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import com.mojang.authlib.GameProfile;
 import net.minecraft.server.MinecraftServer;
@@ -13,8 +14,18 @@ import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
  */
 public interface BaseService {
 
+    // Incremental syncs re-read this much before the last seen change, so rows whose transaction
+    // committed after a later-stamped row are not skipped.
+    public static final long SYNC_OVERLAP_MILLIS = 10000;
+
     public boolean initializeDatabase();
 
+    // Releases any connections held by the service. Called when the server stops.
+    public void shutdown();
+
+    // False while the database is known to be down, regular syncs skip it until it may be back
+    public boolean isAvailable();
+
 
     // Getter functions
     public ArrayList<WhitelistedPlayer> getWhitelistedPlayersFromDatabase();
@@ -24,12 +35,36 @@ public interface BaseService {
     public ArrayList<OppedPlayer> getOppedPlayersFromLocal();
 
 
+    // Paging functions, one page of players in name and uuid order. The page starts after the player afterName
+    // and afterUuid, or ends before beforeName and beforeUuid if afterName is null. A null uuid goes past every
+    // player with that name. With both names null it starts offset players into the list.
+    // Returns null if the query failed.
+    public ArrayList<WhitelistedPlayer> getWhitelistedPlayersPage(String afterName, String afterUuid, String beforeName, String beforeUuid, int offset, int limit);
+    public ArrayList<OppedPlayer> getOppedPlayersPage(String afterName, String afterUuid, String beforeName, String beforeUuid, int offset, int limit);
+
+    // Returns the number of players in the database list, or -1 if the query failed
+    public int countWhitelistedPlayers();
+    public int countOppedPlayers();
+
+
     // Syncing functions
-    public boolean copyLocalWhitelistedPlayersToDatabase();
-    public boolean copyLocalOppedPlayersToDatabase();
+    public boolean copyLocalWhitelistedPlayersToDatabase(CopyProgressListener listener);
+    public boolean copyLocalOppedPlayersToDatabase(CopyProgressListener listener);
 
-    public boolean copyDatabaseWhitelistedPlayersToLocal(MinecraftServer server);
-    public boolean copyDatabaseOppedPlayersToLocal(MinecraftServer server);
+    // fullSync re-reads the whole table, otherwise only rows changed since the last sync are read.
+    // Returns the number of local changes made, or -1 if the sync failed.
+    public int copyDatabaseWhitelistedPlayersToLocal(MinecraftServer server, boolean fullSync);
+    public int copyDatabaseOppedPlayersToLocal(MinecraftServer server, boolean fullSync);
+
+    // Syncs the whitelist and, if op syncing is enabled, the op list in one database call. Both are read from the
+    // same snapshot and applied to the local lists together. Returns the number of local changes made, or -1 if
+    // the sync failed.
+    public int copyDatabaseToLocal(MinecraftServer server, boolean fullSync);
+
+    // Reconciliation functions, comparing the local list with the database by digests of uuid ranges.
+    // With repair the local list is also changed to match the database. Returns null if the query failed.
+    public Reconciliation.Result reconcileWhitelist(MinecraftServer server, boolean repair);
+    public Reconciliation.Result reconcileOps(MinecraftServer server, boolean repair);
 
 
     // Addition functions
@@ -41,4 +76,17 @@ public interface BaseService {
     public boolean removeWhitelistPlayer(GameProfile player);
     public boolean removeOppedPlayer(GameProfile player);
 
+
+    // Batch functions, writing every change in one transaction
+    public WriteResult writeWhitelistStates(List<LocalStateProvider.PendingChange> changes);
+    public WriteResult writeOpStates(List<LocalStateProvider.PendingChange> changes);
+
+    // Outcome of a batch write. RETRY when the database was unreachable or busy and the same write may succeed
+    // later, FAILED when the database refused it and would refuse it again.
+    enum WriteResult {
+        WRITTEN,
+        RETRY,
+        FAILED
+    }
+
 }
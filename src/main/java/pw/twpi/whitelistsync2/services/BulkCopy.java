@@ -0,0 +1,171 @@
+package pw.twpi.whitelistsync2.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import pw.twpi.whitelistsync2.WhitelistSync2;
+
+/**
+ * Pushes a local player list to the database as chunked JDBC batches, committing each chunk in its own transaction.
+ * Each chunk is journaled in the same transaction. If a copy fails partway through, the next copy of the same
+ * list resumes after the last committed chunk.
+ */
+class BulkCopy<T> {
+
+    private final String listName;
+    private final ChangeJournal journal;
+    // SQLite starts each chunk with BEGIN IMMEDIATE, see begin()
+    private final boolean beginImmediate;
+    private final Function<T, String> uuidGetter;
+    private final Function<T, String> nameGetter;
+
+    // Checkpoint of the last copy that failed partway through
+    private int checkpointFingerprint;
+    private int checkpointRows;
+
+    BulkCopy(String listName, ChangeJournal journal, boolean beginImmediate, Function<T, String> uuidGetter, Function<T, String> nameGetter) {
+        this.listName = listName;
+        this.journal = journal;
+        this.beginImmediate = beginImmediate;
+        this.uuidGetter = uuidGetter;
+        this.nameGetter = nameGetter;
+    }
+
+    /**
+     * Copies the players using the given insert statement, which must take the uuid and name as its two parameters.
+     * Players whose uuid can't be stored in the table's uuid layout are skipped.
+     * @return the number of rows written by this call
+     */
+    int copy(Connection conn, String sql, List<T> players, int chunkSize, CopyProgressListener listener) throws SQLException {
+        UuidCodec uuidCodec = journal.checkUuidLayout(conn);
+        List<T> rows = new ArrayList<>(players.size());
+        for (T player : players) {
+            String uuid = uuidGetter.apply(player);
+            if (uuid == null || nameGetter.apply(player) == null) {
+                continue;
+            }
+            if (!uuidCodec.accepts(uuid)) {
+                WhitelistSync2.LOGGER.error("Skipping " + listName + " entry with invalid uuid \"" + uuid + "\".");
+                continue;
+            }
+            rows.add(player);
+        }
+
+        int fingerprint = fingerprint(rows);
+        int start = 0;
+        if (checkpointRows > 0 && checkpointFingerprint == fingerprint) {
+            start = checkpointRows;
+            WhitelistSync2.LOGGER.info("Resuming " + listName + " copy after " + start + " of " + rows.size() + " already committed records.");
+        }
+
+        boolean autoCommit = conn.getAutoCommit();
+        if (!beginImmediate) {
+            conn.setAutoCommit(false);
+        }
+
+        // Report roughly every 10% so large lists don't flood chat
+        int reportEvery = Math.max(chunkSize, rows.size() / 10);
+        int nextReport = start + reportEvery;
+
+        try {
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            try {
+                for (int i = start; i < rows.size(); i += chunkSize) {
+                    int end = Math.min(i + chunkSize, rows.size());
+
+                    begin(conn);
+                    try {
+                        // Another server may have converted the uuid columns since the copy started
+                        if (journal.checkUuidLayout(conn) != uuidCodec) {
+                            throw new SQLException("The " + listName + " uuid layout changed during the copy, run it again.");
+                        }
+
+                        List<String> uuids = new ArrayList<>(end - i);
+                        for (int j = i; j < end; j++) {
+                            uuids.add(uuidGetter.apply(rows.get(j)));
+                            uuidCodec.bind(stmt, 1, uuidGetter.apply(rows.get(j)));
+                            stmt.setString(2, nameGetter.apply(rows.get(j)));
+                            stmt.addBatch();
+                        }
+
+                        stmt.executeBatch();
+                        journal.recordCurrentState(conn, uuids);
+                        commit(conn);
+                        Metrics.rowsWritten(journal.getStateTable()).add(end - i);
+                    } catch (SQLException e) {
+                        stmt.clearBatch();
+                        rollback(conn);
+                        throw e;
+                    }
+
+                    checkpointFingerprint = fingerprint;
+                    checkpointRows = end;
+
+                    if (end >= nextReport || end == rows.size()) {
+                        listener.onProgress(end, rows.size());
+                        nextReport = end + reportEvery;
+                    }
+                }
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            if (!beginImmediate) {
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+
+        // Finished, so the next copy starts from scratch
+        checkpointFingerprint = 0;
+        checkpointRows = 0;
+
+        return rows.size() - start;
+    }
+
+    // SQLite takes the write lock before the layout check, so no other server can commit between the check and the batch
+    private void begin(Connection conn) throws SQLException {
+        if (beginImmediate) {
+            execute(conn, "BEGIN IMMEDIATE");
+        }
+    }
+
+    private void commit(Connection conn) throws SQLException {
+        if (beginImmediate) {
+            execute(conn, "COMMIT");
+        } else {
+            conn.commit();
+        }
+    }
+
+    private void rollback(Connection conn) throws SQLException {
+        if (beginImmediate) {
+            execute(conn, "ROLLBACK");
+        } else {
+            conn.rollback();
+        }
+    }
+
+    private static void execute(Connection conn, String sql) throws SQLException {
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.execute(sql);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    // Identifies the list contents so a checkpoint is only reused for the list it was taken from
+    private int fingerprint(List<T> rows) {
+        int hash = rows.size();
+        for (T row : rows) {
+            hash = 31 * hash + uuidGetter.apply(row).hashCode();
+        }
+        return hash;
+    }
+
+}
@@ -0,0 +1,434 @@
+package pw.twpi.whitelistsync2.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import com.mojang.authlib.GameProfile;
+import pw.twpi.whitelistsync2.Config;
+import pw.twpi.whitelistsync2.WhitelistSync2;
+
+/**
+ * Append-only journal of changes to one state table (whitelist or op), and this server's position in it.
+ *
+ * Every write to the state table inserts a journal row holding the player's new state in the same transaction.
+ * Regular syncs then read only the rows after the last applied sequence number instead of the whole state table.
+ * The table definitions live in the services, this class only uses the seq, uuid, name, state column, origin and
+ * changed_at (epoch milliseconds) columns.
+ *
+ * The same transaction also bumps the state table's row in the revision table (table_name, revision). Bumping it
+ * locks the row until commit, so the revision only changes when a write commits and regular syncs can skip a
+ * table whose revision matches the one they last read it at.
+ *
+ * What a sync reads is staged in a PendingRead and only moves this server's position, applied revision and
+ * high water mark once commit() is called after the local list was updated. If that fails the next sync reads
+ * the same changes again.
+ */
+class ChangeJournal {
+
+    // How long a hole in the sequence is waited on before assuming its transaction rolled back
+    private static final long GAP_TIMEOUT_MILLIS = 60000;
+
+    // How often old entries are deleted
+    private static final long COMPACT_INTERVAL_MILLIS = 3600000;
+
+    // Uuids per statement when journaling a bulk copy, below SQLite's default limit of 999 parameters
+    private static final int UUIDS_PER_STATEMENT = 500;
+
+    private final String changesTable;
+    private final String stateTable;
+    private final String stateColumn;
+    private final String nowMillis;
+    private final String revisionTable;
+
+    // Layout of the uuid column in the state table and the journal, found when the database is set up and
+    // checked again by every write, since another server may convert the tables while this one runs
+    private volatile UuidCodec uuidCodec = UuidCodec.TEXT;
+
+    // Every entry up to position has been applied, entries after it that were already applied are in appliedAhead
+    private long position = -1;
+    private final TreeSet<Long> appliedAhead = new TreeSet<>();
+    private long gapSince;
+    private long lastReadAt;
+    private long lastCompactedAt;
+
+    // Revision the state table was at when this server last read it, -1 before the first read
+    private long appliedRevision = -1;
+
+    // Newest updated_at applied from the state table, so regular syncs only pull rows changed since then
+    private long highWater;
+
+    /**
+     * @param nowMillis SQL expression for the current time in epoch milliseconds
+     * @param revisionTable table holding the revision of every state table
+     */
+    ChangeJournal(String changesTable, String stateTable, String stateColumn, String nowMillis, String revisionTable) {
+        this.changesTable = changesTable;
+        this.stateTable = stateTable;
+        this.stateColumn = stateColumn;
+        this.nowMillis = nowMillis;
+        this.revisionTable = revisionTable;
+    }
+
+    String getStateTable() {
+        return stateTable;
+    }
+
+    String getStateColumn() {
+        return stateColumn;
+    }
+
+    String getChangesTable() {
+        return changesTable;
+    }
+
+    UuidCodec getUuidCodec() {
+        return uuidCodec;
+    }
+
+    void setUuidCodec(UuidCodec uuidCodec) {
+        this.uuidCodec = uuidCodec;
+    }
+
+    /**
+     * Reads how the state table and the journal store uuids now and switches to that layout if it changed.
+     * Call at the start of every write transaction, before binding any uuid: once the transaction has read both
+     * tables, MySQL can't swap them for converted ones until it ends (RENAME TABLE waits for its metadata locks),
+     * and SQLite fails its commit if another connection changed them. Throws if the two tables differ, which only
+     * happens to tables converted by hand.
+     */
+    UuidCodec checkUuidLayout(Connection conn) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT s.uuid, c.uuid FROM " + stateTable + " s, " + changesTable + " c LIMIT 0");
+        ResultSet rs = stmt.executeQuery();
+        UuidCodec stateCodec = UuidCodec.of(rs.getMetaData(), 1);
+        UuidCodec journalCodec = UuidCodec.of(rs.getMetaData(), 2);
+        rs.close();
+        stmt.close();
+
+        if (stateCodec != journalCodec) {
+            throw new SQLException("The " + stateTable + " and " + changesTable + " tables store uuids differently, refusing to write to them.");
+        }
+        if (stateCodec != uuidCodec) {
+            WhitelistSync2.LOGGER.info("The " + stateTable + " tables now store uuids as " + stateCodec + ", switching to it.");
+            uuidCodec = stateCodec;
+        }
+        return stateCodec;
+    }
+
+    // Records state changes. Must run in the transaction that changed the state table.
+    void record(Connection conn, List<LocalStateProvider.PendingChange> changes) throws SQLException {
+        String sql = "INSERT INTO " + changesTable + "(uuid, name, " + stateColumn + ", origin, changed_at) "
+                + "VALUES (?, ?, ?, ?, " + nowMillis + ")";
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        for (LocalStateProvider.PendingChange change : changes) {
+            uuidCodec.bind(stmt, 1, change.player.getId());
+            stmt.setString(2, change.player.getName());
+            stmt.setBoolean(3, change.state);
+            stmt.setString(4, WhitelistSync2.SERVER_ID);
+            stmt.addBatch();
+        }
+        stmt.executeBatch();
+        stmt.close();
+        Metrics.rowsWritten(changesTable).add(changes.size());
+
+        bumpRevision(conn);
+    }
+
+    // Records the current state of the given players as read back from the state table, for bulk writes
+    // where some rows may have been left unchanged. Must run in the transaction that wrote them.
+    void recordCurrentState(Connection conn, List<String> uuids) throws SQLException {
+        for (int i = 0; i < uuids.size(); i += UUIDS_PER_STATEMENT) {
+            int end = Math.min(i + UUIDS_PER_STATEMENT, uuids.size());
+
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(changesTable)
+                    .append("(uuid, name, ").append(stateColumn).append(", origin, changed_at) ")
+                    .append("SELECT uuid, name, ").append(stateColumn).append(", ?, ").append(nowMillis)
+                    .append(" FROM ").append(stateTable).append(" WHERE uuid IN (");
+            for (int j = i; j < end; j++) {
+                sql.append(j == i ? "?" : ", ?");
+            }
+            sql.append(")");
+
+            PreparedStatement stmt = conn.prepareStatement(sql.toString());
+            stmt.setString(1, WhitelistSync2.SERVER_ID);
+            for (int j = i; j < end; j++) {
+                uuidCodec.bind(stmt, j - i + 2, uuids.get(j));
+            }
+            Metrics.rowsWritten(changesTable).add(stmt.executeUpdate());
+            stmt.close();
+        }
+
+        bumpRevision(conn);
+    }
+
+    private void bumpRevision(Connection conn) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("UPDATE " + revisionTable + " SET revision = revision + 1 WHERE table_name = ?");
+        stmt.setString(1, revisionKey());
+        stmt.executeUpdate();
+        stmt.close();
+    }
+
+    // Current revision of the state table, -1 if it has no row in the revision table
+    long readRevision(Connection conn) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT revision FROM " + revisionTable + " WHERE table_name = ?");
+        stmt.setString(1, revisionKey());
+        ResultSet rs = stmt.executeQuery();
+        long revision = rs.next() ? rs.getLong("revision") : -1;
+        rs.close();
+        stmt.close();
+        Metrics.rowsRead(revisionTable).increment();
+        return revision;
+    }
+
+    // Revision of every state table by table name, so a sync of both lists reads them in one query
+    static Map<String, Long> readRevisions(Connection conn, String revisionTable) throws SQLException {
+        Map<String, Long> revisions = new HashMap<>();
+        PreparedStatement stmt = conn.prepareStatement("SELECT table_name, revision FROM " + revisionTable);
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+            revisions.put(rs.getString("table_name"), rs.getLong("revision"));
+        }
+        rs.close();
+        stmt.close();
+        Metrics.rowsRead(revisionTable).add(revisions.size());
+        return revisions;
+    }
+
+    // This state table's revision from readRevisions, -1 if it has no row
+    long getRevision(Map<String, Long> revisions) {
+        Long revision = revisions.get(revisionKey());
+        return revision != null ? revision : -1;
+    }
+
+    /**
+     * True if nothing was written to the state table since this server last read it at the given revision.
+     * The journal counts as read, nothing it still needs can be compacted away since nothing new was written.
+     */
+    synchronized boolean isUnchanged(long revision) {
+        if (revision < 0 || revision != appliedRevision) {
+            return false;
+        }
+        lastReadAt = System.currentTimeMillis();
+        return true;
+    }
+
+    // Starts staging a sync that read the given revision before reading the state table or journal
+    synchronized PendingRead startRead(long revision) {
+        return new PendingRead(revision, highWater);
+    }
+
+    /**
+     * Moves this server past what the read found, call once its changes were applied to the local list.
+     * Reads committed out of order are fine, entries and rows a later read already covered are read again at most.
+     */
+    synchronized void commit(PendingRead read) {
+        if (read.startPosition >= 0) {
+            startAt(read.startPosition);
+        }
+        if (read.tailed) {
+            for (long seq : read.seqs) {
+                // At or before the position means a read committed in between already applied it
+                if (seq > position) {
+                    appliedAhead.add(seq);
+                }
+            }
+            advance();
+            lastReadAt = System.currentTimeMillis();
+        }
+        appliedRevision = read.revision;
+        highWater = Math.max(highWater, read.highWater);
+    }
+
+    // Rows are keyed by the unqualified state table name
+    private String revisionKey() {
+        return stateTable.substring(stateTable.lastIndexOf('.') + 1);
+    }
+
+    // True if the journal is enabled and this server has read it recently enough that nothing it
+    // still needs can have been compacted away
+    synchronized boolean isTailing() {
+        return Config.USE_CHANGE_JOURNAL.get() && position >= 0
+                && System.currentTimeMillis() - lastReadAt < retentionMillis() / 2;
+    }
+
+    /**
+     * Finds where tailing should start after a full read of the state table. Call before reading the table.
+     * Entries from the last SYNC_OVERLAP_MILLIS are included so transactions that were still committing
+     * while the table was read get applied on the next tail.
+     */
+    long findStartPosition(Connection conn) throws SQLException {
+        String sql = "SELECT MAX(seq) AS last_seq, MIN(CASE WHEN changed_at >= " + nowMillis + " - ? THEN seq END) AS recent_seq "
+                + "FROM " + changesTable;
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        stmt.setLong(1, BaseService.SYNC_OVERLAP_MILLIS);
+        ResultSet rs = stmt.executeQuery();
+        rs.next();
+
+        long lastSeq = rs.getLong("last_seq");
+        long recentSeq = rs.getLong("recent_seq");
+        boolean hasRecent = !rs.wasNull();
+
+        rs.close();
+        stmt.close();
+        return hasRecent ? recentSeq - 1 : lastSeq;
+    }
+
+    private void startAt(long seq) {
+        position = seq;
+        appliedAhead.clear();
+        gapSince = 0;
+        lastReadAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads the entries this server hasn't applied yet and stages them in read, commit() marks them applied.
+     * Only the newest entry per player is returned, in sequence order.
+     */
+    synchronized Collection<Change> readNewChanges(Connection conn, PendingRead read) throws SQLException {
+        Map<String, Change> changes = new LinkedHashMap<>();
+
+        String sql = "SELECT seq, uuid, name, " + stateColumn + " FROM " + changesTable + " WHERE seq > ? ORDER BY seq";
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        stmt.setLong(1, position);
+        ResultSet rs = stmt.executeQuery();
+        UuidCodec uuidCodec = UuidCodec.of(rs, "uuid");
+
+        int records = 0;
+        while (rs.next()) {
+            records++;
+            long seq = rs.getLong("seq");
+            if (appliedAhead.contains(seq)) {
+                continue;
+            }
+            read.seqs.add(seq);
+
+            // Changes to one player are journaled in commit order, so the last one read wins
+            String uuid = uuidCodec.read(rs, "uuid");
+            changes.remove(uuid);
+            changes.put(uuid, new Change(uuid, rs.getString("name"), rs.getInt(stateColumn) == 1));
+        }
+
+        rs.close();
+        stmt.close();
+        Metrics.rowsRead(changesTable).add(records);
+
+        read.tailed = true;
+        return changes.values();
+    }
+
+    // Moves the position past applied entries. A hole is left open for GAP_TIMEOUT_MILLIS since a
+    // transaction that took its sequence number earlier may still commit.
+    private void advance() {
+        while (!appliedAhead.isEmpty()) {
+            long next = appliedAhead.first();
+
+            if (next == position + 1) {
+                position = next;
+                appliedAhead.pollFirst();
+                gapSince = 0;
+                continue;
+            }
+
+            long now = System.currentTimeMillis();
+            if (gapSince == 0) {
+                gapSince = now;
+            }
+            if (now - gapSince < GAP_TIMEOUT_MILLIS) {
+                break;
+            }
+
+            WhitelistSync2.LOGGER.debug("Skipping missing " + changesTable + " entries " + (position + 1) + " to " + (next - 1) + ".");
+            position = next - 1;
+            gapSince = 0;
+        }
+    }
+
+    // Deletes entries older than the retention window, at most once per COMPACT_INTERVAL_MILLIS
+    synchronized void compactIfDue(Connection conn) throws SQLException {
+        long now = System.currentTimeMillis();
+        if (now - lastCompactedAt < COMPACT_INTERVAL_MILLIS) {
+            return;
+        }
+
+        String sql = "DELETE FROM " + changesTable + " WHERE changed_at < " + nowMillis + " - ?";
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        stmt.setLong(1, retentionMillis());
+        int deleted = stmt.executeUpdate();
+        stmt.close();
+
+        lastCompactedAt = now;
+        WhitelistSync2.LOGGER.debug("Compacted " + changesTable + " | Deleted " + deleted + " records.");
+    }
+
+    private static long retentionMillis() {
+        return Config.CHANGE_JOURNAL_RETENTION.get() * 3600000L;
+    }
+
+    /**
+     * The changes one sync read from a table and where it leaves this server, not applied to the journal
+     * until commit().
+     */
+    static class PendingRead {
+        private final List<LocalStateProvider.PendingChange> changes = new ArrayList<>();
+        private final long revision;
+        private long highWater;
+        private final List<Long> seqs = new ArrayList<>();
+        private boolean tailed;
+        private long startPosition = -1;
+
+        private PendingRead(long revision, long highWater) {
+            this.revision = revision;
+            this.highWater = highWater;
+        }
+
+        List<LocalStateProvider.PendingChange> getChanges() {
+            return changes;
+        }
+
+        // Newest updated_at applied or read so far, where a delta read of the state table starts
+        long getHighWater() {
+            return highWater;
+        }
+
+        void setHighWater(long highWater) {
+            this.highWater = highWater;
+        }
+
+        // Tailing starts after seq, found before the state table was read
+        void startAt(long seq) {
+            startPosition = seq;
+        }
+    }
+
+    static class Change {
+        final String uuid;
+        final String name;
+        final boolean state;
+
+        Change(String uuid, String name, boolean state) {
+            this.uuid = uuid;
+            this.name = name;
+            this.state = state;
+        }
+
+        // Returns null if the entry has an invalid uuid
+        GameProfile toProfile() {
+            try {
+                return new GameProfile(UUID.fromString(uuid), name);
+            } catch (IllegalArgumentException e) {
+                WhitelistSync2.LOGGER.error("Skipping journal entry with invalid uuid \"" + uuid + "\".");
+                return null;
+            }
+        }
+    }
+
+}
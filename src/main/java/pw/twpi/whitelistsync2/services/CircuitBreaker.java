@@ -0,0 +1,90 @@
+package pw.twpi.whitelistsync2.services;
+
+import pw.twpi.whitelistsync2.WhitelistSync2;
+
+import java.sql.SQLException;
+
+/**
+ * Stops calls to a database after too many failures in a row, so callers fail fast instead of each waiting
+ * out the timeouts. Once the cool down has passed a single call is let through as a probe. If it works the
+ * breaker closes again, if not it stays open for another cool down.
+ */
+class CircuitBreaker {
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long coolDownMillis;
+
+    // Guarded by this
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    CircuitBreaker(String name, int failureThreshold, long coolDownMillis) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.coolDownMillis = coolDownMillis;
+    }
+
+    // Call before each database call. Every allowed call must be followed by recordSuccess, recordFailure or recordNeutral.
+    synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt >= coolDownMillis) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                // The probe is still running
+                return false;
+        }
+    }
+
+    // True if a call would be let through right now, without using up the probe
+    synchronized boolean isAvailable() {
+        return state == State.CLOSED
+                || (state == State.OPEN && System.currentTimeMillis() - openedAt >= coolDownMillis);
+    }
+
+    synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            WhitelistSync2.LOGGER.info(name + " is reachable again, resuming database calls.");
+        }
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    // For a call that says nothing about whether the database is reachable, such as a statement it refused
+    // or a bug in the caller. Hands the probe back so the next call can try.
+    synchronized void recordNeutral() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    synchronized void recordFailure() {
+        failures++;
+
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            if (state == State.CLOSED) {
+                WhitelistSync2.LOGGER.error(name + " failed " + failures + " times in a row, pausing database calls. "
+                        + "Trying again every " + coolDownMillis / 1000 + " seconds.");
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    // Thrown instead of calling the database while the breaker is open
+    static class OpenException extends SQLException {
+        OpenException(String name) {
+            super(name + " is unreachable, skipping database call until it recovers.");
+        }
+    }
+
+}
@@ -0,0 +1,10 @@
+package pw.twpi.whitelistsync2.services;
+
+/**
+ * Receives progress updates while a local list is pushed to the database.
+ */
+public interface CopyProgressListener {
+
+    public void onProgress(int copied, int total);
+
+}
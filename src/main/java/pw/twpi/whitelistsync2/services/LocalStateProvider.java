@@ -0,0 +1,255 @@
+package pw.twpi.whitelistsync2.services;
+
+import com.mojang.authlib.GameProfile;
+import net.minecraft.entity.player.ServerPlayerEntity;
+import net.minecraft.server.MinecraftServer;
+import pw.twpi.whitelistsync2.WhitelistSync2;
+import pw.twpi.whitelistsync2.json.OppedPlayersFileUtilities;
+import pw.twpi.whitelistsync2.json.WhitelistedPlayersFileUtilities;
+import pw.twpi.whitelistsync2.models.OppedPlayer;
+import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Answers questions about the server's local whitelist and op list for the database services.
+ *
+ * Membership checks go straight to the live PlayerList. Vanilla doesn't expose the UUIDs of list entries,
+ * so full enumeration comes from whitelist.json / ops.json, which are cached and only re-parsed when they change.
+ * The UUID indexes built from them are kept until the underlying cached list is replaced.
+ * Changes from the database are applied in batches on the server thread.
+ */
+public class LocalStateProvider {
+
+    // How long a sync waits for the server thread to apply its changes
+    private static final long SERVER_THREAD_TIMEOUT_SECONDS = 30;
+
+    private List<WhitelistedPlayer> indexedWhitelist;
+    private UuidSet whitelistIndex;
+
+    private List<OppedPlayer> indexedOps;
+    private UuidSet opIndex;
+
+    public ArrayList<WhitelistedPlayer> getWhitelistedPlayers() {
+        return WhitelistedPlayersFileUtilities.getWhitelistedPlayers();
+    }
+
+    public ArrayList<OppedPlayer> getOppedPlayers() {
+        return OppedPlayersFileUtilities.getOppedPlayers();
+    }
+
+    // UUID index of the local whitelist as of the last save of whitelist.json
+    public synchronized UuidSet getWhitelistedUuids() {
+        List<WhitelistedPlayer> players = WhitelistedPlayersFileUtilities.getCachedWhitelistedPlayers();
+
+        if (players != indexedWhitelist || whitelistIndex == null) {
+            UuidSet index = new UuidSet(players.size());
+            // Skipped like the reconciliation does, so one bad entry doesn't break every sync
+            int skipped = 0;
+            for (WhitelistedPlayer player : players) {
+                if (player.getUuid() == null) {
+                    skipped++;
+                    continue;
+                }
+                try {
+                    index.add(player.getUuid());
+                } catch (IllegalArgumentException e) {
+                    skipped++;
+                }
+            }
+            if (skipped > 0) {
+                WhitelistSync2.LOGGER.error("Skipping " + skipped + " whitelist entries with invalid uuids in whitelist.json.");
+            }
+            whitelistIndex = index;
+            indexedWhitelist = players;
+        }
+
+        return whitelistIndex;
+    }
+
+    // UUID index of the local op list as of the last save of ops.json
+    public synchronized UuidSet getOppedUuids() {
+        List<OppedPlayer> players = OppedPlayersFileUtilities.getCachedOppedPlayers();
+
+        if (players != indexedOps || opIndex == null) {
+            UuidSet index = new UuidSet(players.size());
+            // Invalid entries are skipped as in the whitelist index
+            int skipped = 0;
+            for (OppedPlayer player : players) {
+                if (player.getUuid() == null) {
+                    skipped++;
+                    continue;
+                }
+                try {
+                    index.add(player.getUuid());
+                } catch (IllegalArgumentException e) {
+                    skipped++;
+                }
+            }
+            if (skipped > 0) {
+                WhitelistSync2.LOGGER.error("Skipping " + skipped + " op list entries with invalid uuids in ops.json.");
+            }
+            opIndex = index;
+            indexedOps = players;
+        }
+
+        return opIndex;
+    }
+
+    public boolean isWhitelisted(MinecraftServer server, GameProfile player) {
+        return server.getPlayerList().getWhiteList().isWhiteListed(player);
+    }
+
+    public boolean isOp(MinecraftServer server, GameProfile player) {
+        return server.getPlayerList().isOp(player);
+    }
+
+    /**
+     * Brings the live whitelist in line with the changes. Runs on the server thread and saves whitelist.json once
+     * however many players change, then reloads the list from it. Blocks until done.
+     * @return the number of players added or removed, -1 if the list couldn't be updated
+     */
+    public int applyWhitelistChanges(MinecraftServer server, List<PendingChange> changes) {
+        if (changes.isEmpty()) {
+            return 0;
+        }
+
+        return onServerThread(server, () -> {
+            List<GameProfile> added = new ArrayList<>();
+            List<GameProfile> removed = new ArrayList<>();
+            for (PendingChange change : changes) {
+                boolean whitelisted = isWhitelisted(server, change.player);
+                if (change.state && !whitelisted) {
+                    added.add(change.player);
+                } else if (!change.state && whitelisted) {
+                    removed.add(change.player);
+                }
+            }
+
+            if (added.isEmpty() && removed.isEmpty()) {
+                return 0;
+            }
+
+            try {
+                WhitelistedPlayersFileUtilities.writeChanges(added, removed);
+                server.getPlayerList().getWhiteList().load();
+            } catch (IOException e) {
+                WhitelistSync2.LOGGER.error("Failed to update whitelist.json.");
+                WhitelistSync2.LOGGER.error(e.getMessage(), e);
+                return -1;
+            }
+
+            WhitelistSync2.LOGGER.debug("Added " + added.size() + " and removed " + removed.size() + " players from whitelist.");
+            return added.size() + removed.size();
+        });
+    }
+
+    /**
+     * Applies the changes of a sync of both lists in one trip to the server thread.
+     * @return the number of players changed in either list, -1 if either list couldn't be updated
+     */
+    public int applyChanges(MinecraftServer server, List<PendingChange> whitelistChanges, List<PendingChange> opChanges) {
+        if (whitelistChanges.isEmpty() && opChanges.isEmpty()) {
+            return 0;
+        }
+
+        // Already on the server thread, so each list is applied right away. One list failing fails both, the
+        // sync then reads both again and applying the other list's changes twice changes nothing.
+        return onServerThread(server, () -> {
+            int whitelistRecords = applyWhitelistChanges(server, whitelistChanges);
+            int opRecords = applyOpChanges(server, opChanges);
+            return whitelistRecords < 0 || opRecords < 0 ? -1 : whitelistRecords + opRecords;
+        });
+    }
+
+    /**
+     * Brings the live op list in line with the changes. Runs on the server thread and saves ops.json once
+     * however many players change, then reloads the list from it and updates the permissions of online players.
+     * Blocks until done.
+     * @return the number of players opped or deopped, -1 if the list couldn't be updated
+     */
+    public int applyOpChanges(MinecraftServer server, List<PendingChange> changes) {
+        if (changes.isEmpty()) {
+            return 0;
+        }
+
+        return onServerThread(server, () -> {
+            List<GameProfile> added = new ArrayList<>();
+            List<GameProfile> removed = new ArrayList<>();
+            for (PendingChange change : changes) {
+                boolean opped = isOp(server, change.player);
+                if (change.state && !opped) {
+                    added.add(change.player);
+                } else if (!change.state && opped) {
+                    removed.add(change.player);
+                }
+            }
+
+            if (added.isEmpty() && removed.isEmpty()) {
+                return 0;
+            }
+
+            try {
+                OppedPlayersFileUtilities.writeChanges(added, removed, server.getOperatorUserPermissionLevel());
+                server.getPlayerList().getOps().load();
+            } catch (IOException e) {
+                WhitelistSync2.LOGGER.error("Failed to update ops.json.");
+                WhitelistSync2.LOGGER.error(e.getMessage(), e);
+                return -1;
+            }
+
+            // Online players need their new permission level and command tree, like vanilla op and deop send
+            for (List<GameProfile> players : Arrays.asList(added, removed)) {
+                for (GameProfile player : players) {
+                    ServerPlayerEntity online = server.getPlayerList().getPlayer(player.getId());
+                    if (online != null) {
+                        server.getPlayerList().sendPlayerPermissionLevel(online);
+                    }
+                }
+            }
+
+            WhitelistSync2.LOGGER.debug("Opped " + added.size() + " and deopped " + removed.size() + " players.");
+            return added.size() + removed.size();
+        });
+    }
+
+    // Runs the task on the server thread and waits for it, the lists must not be changed from other threads.
+    // Returns -1 if it failed or didn't finish in time, a late task may still apply its changes.
+    private static int onServerThread(MinecraftServer server, Supplier<Integer> task) {
+        if (server.isSameThread()) {
+            return task.get();
+        }
+
+        try {
+            return CompletableFuture.supplyAsync(task, server).get(SERVER_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            WhitelistSync2.LOGGER.error("Error applying changes to the local lists.");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+        } catch (TimeoutException e) {
+            WhitelistSync2.LOGGER.warn("Server thread did not apply synced changes within " + SERVER_THREAD_TIMEOUT_SECONDS + " seconds.");
+        }
+        return -1;
+    }
+
+    // A player's state in the database that the local list should match
+    public static class PendingChange {
+        public final GameProfile player;
+        public final boolean state;
+
+        public PendingChange(GameProfile player, boolean state) {
+            this.player = player;
+            this.state = state;
+        }
+    }
+
+}
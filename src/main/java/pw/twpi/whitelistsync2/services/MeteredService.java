@@ -0,0 +1,164 @@
+package pw.twpi.whitelistsync2.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import com.mojang.authlib.GameProfile;
+import net.minecraft.server.MinecraftServer;
+import pw.twpi.whitelistsync2.models.OppedPlayer;
+import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
+
+/**
+ * Wraps a database service and records how long each call takes and how many fail in Metrics.
+ * Calls returning false, -1 or null count as failed. The list getters return an empty list on failure,
+ * which can't be told apart from an empty table, so only exceptions count against them.
+ * Rows read and written are counted by the services themselves.
+ */
+public class MeteredService implements BaseService {
+
+    private final BaseService service;
+
+    public MeteredService(BaseService service) {
+        this.service = service;
+    }
+
+    @Override
+    public boolean initializeDatabase() {
+        return timed("initializeDatabase", service::initializeDatabase, success -> !success);
+    }
+
+    @Override
+    public void shutdown() {
+        service.shutdown();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return service.isAvailable();
+    }
+
+    @Override
+    public ArrayList<WhitelistedPlayer> getWhitelistedPlayersFromDatabase() {
+        return timed("getWhitelistedPlayersFromDatabase", service::getWhitelistedPlayersFromDatabase, players -> false);
+    }
+
+    @Override
+    public ArrayList<OppedPlayer> getOppedPlayersFromDatabase() {
+        return timed("getOppedPlayersFromDatabase", service::getOppedPlayersFromDatabase, players -> false);
+    }
+
+    // Local reads don't touch the database
+    @Override
+    public ArrayList<WhitelistedPlayer> getWhitelistedPlayersFromLocal() {
+        return service.getWhitelistedPlayersFromLocal();
+    }
+
+    @Override
+    public ArrayList<OppedPlayer> getOppedPlayersFromLocal() {
+        return service.getOppedPlayersFromLocal();
+    }
+
+    @Override
+    public ArrayList<WhitelistedPlayer> getWhitelistedPlayersPage(String afterName, String afterUuid, String beforeName, String beforeUuid, int offset, int limit) {
+        return timed("getWhitelistedPlayersPage", () -> service.getWhitelistedPlayersPage(afterName, afterUuid, beforeName, beforeUuid, offset, limit), players -> players == null);
+    }
+
+    @Override
+    public ArrayList<OppedPlayer> getOppedPlayersPage(String afterName, String afterUuid, String beforeName, String beforeUuid, int offset, int limit) {
+        return timed("getOppedPlayersPage", () -> service.getOppedPlayersPage(afterName, afterUuid, beforeName, beforeUuid, offset, limit), players -> players == null);
+    }
+
+    @Override
+    public int countWhitelistedPlayers() {
+        return timed("countWhitelistedPlayers", service::countWhitelistedPlayers, count -> count < 0);
+    }
+
+    @Override
+    public int countOppedPlayers() {
+        return timed("countOppedPlayers", service::countOppedPlayers, count -> count < 0);
+    }
+
+    @Override
+    public boolean copyLocalWhitelistedPlayersToDatabase(CopyProgressListener listener) {
+        return timed("copyLocalWhitelistedPlayersToDatabase", () -> service.copyLocalWhitelistedPlayersToDatabase(listener), success -> !success);
+    }
+
+    @Override
+    public boolean copyLocalOppedPlayersToDatabase(CopyProgressListener listener) {
+        return timed("copyLocalOppedPlayersToDatabase", () -> service.copyLocalOppedPlayersToDatabase(listener), success -> !success);
+    }
+
+    @Override
+    public int copyDatabaseWhitelistedPlayersToLocal(MinecraftServer server, boolean fullSync) {
+        return timed("copyDatabaseWhitelistedPlayersToLocal", () -> service.copyDatabaseWhitelistedPlayersToLocal(server, fullSync), changes -> changes < 0);
+    }
+
+    @Override
+    public int copyDatabaseOppedPlayersToLocal(MinecraftServer server, boolean fullSync) {
+        return timed("copyDatabaseOppedPlayersToLocal", () -> service.copyDatabaseOppedPlayersToLocal(server, fullSync), changes -> changes < 0);
+    }
+
+    @Override
+    public int copyDatabaseToLocal(MinecraftServer server, boolean fullSync) {
+        return timed("copyDatabaseToLocal", () -> service.copyDatabaseToLocal(server, fullSync), changes -> changes < 0);
+    }
+
+    @Override
+    public Reconciliation.Result reconcileWhitelist(MinecraftServer server, boolean repair) {
+        return timed("reconcileWhitelist", () -> service.reconcileWhitelist(server, repair), result -> result == null);
+    }
+
+    @Override
+    public Reconciliation.Result reconcileOps(MinecraftServer server, boolean repair) {
+        return timed("reconcileOps", () -> service.reconcileOps(server, repair), result -> result == null);
+    }
+
+    @Override
+    public boolean addWhitelistPlayer(GameProfile player) {
+        return timed("addWhitelistPlayer", () -> service.addWhitelistPlayer(player), success -> !success);
+    }
+
+    @Override
+    public boolean addOppedPlayer(GameProfile player) {
+        return timed("addOppedPlayer", () -> service.addOppedPlayer(player), success -> !success);
+    }
+
+    @Override
+    public boolean removeWhitelistPlayer(GameProfile player) {
+        return timed("removeWhitelistPlayer", () -> service.removeWhitelistPlayer(player), success -> !success);
+    }
+
+    @Override
+    public boolean removeOppedPlayer(GameProfile player) {
+        return timed("removeOppedPlayer", () -> service.removeOppedPlayer(player), success -> !success);
+    }
+
+    @Override
+    public WriteResult writeWhitelistStates(List<LocalStateProvider.PendingChange> changes) {
+        return timed("writeWhitelistStates", () -> service.writeWhitelistStates(changes), result -> result != WriteResult.WRITTEN);
+    }
+
+    @Override
+    public WriteResult writeOpStates(List<LocalStateProvider.PendingChange> changes) {
+        return timed("writeOpStates", () -> service.writeOpStates(changes), result -> result != WriteResult.WRITTEN);
+    }
+
+    private static <T> T timed(String method, Supplier<T> call, Predicate<T> failed) {
+        long startTime = System.nanoTime();
+        try {
+            T result = call.get();
+            if (failed.test(result)) {
+                Metrics.callErrors(method).increment();
+            }
+            return result;
+        } catch (RuntimeException e) {
+            Metrics.callErrors(method).increment();
+            throw e;
+        } finally {
+            Metrics.call(method).record(System.nanoTime() - startTime);
+        }
+    }
+
+}
@@ -0,0 +1,308 @@
+package pw.twpi.whitelistsync2.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Timers and counters for the database services and the sync. Shown by /wl stats and, when enabled,
+ * served in the Prometheus text format by MetricsServer.
+ *
+ * Everything is static, so one server has one set of metrics. Values start at zero when the server starts.
+ */
+public class Metrics {
+
+    // Upper bounds of the timer buckets in milliseconds, the last bucket holds everything slower
+    private static final long[] BUCKET_MILLIS = {1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    private static final String PREFIX = "whitelistsync_";
+
+    // BaseService calls by method name
+    private static final Map<String, Timer> calls = new ConcurrentSkipListMap<>();
+    private static final Map<String, Counter> callErrors = new ConcurrentSkipListMap<>();
+
+    // Database rows by table name
+    private static final Map<String, Counter> rowsRead = new ConcurrentSkipListMap<>();
+    private static final Map<String, Counter> rowsWritten = new ConcurrentSkipListMap<>();
+
+    // Regular syncs
+    public static final Timer SYNC = new Timer();
+    public static final Counter SYNC_FAILURES = new Counter();
+    public static final Counter SYNC_SKIPPED = new Counter();
+    public static final Counter TABLES_UNCHANGED = new Counter();
+    public static final Counter RECORDS_APPLIED = new Counter();
+    private static volatile long lastRecordsApplied;
+    private static volatile long lastSuccessfulSyncAt;
+    private static volatile long startedAt = System.currentTimeMillis();
+
+    // Values read when the metrics are shown, e.g. the outbox depth
+    private static final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+    public static Timer call(String method) {
+        return calls.computeIfAbsent(method, key -> new Timer());
+    }
+
+    public static Counter callErrors(String method) {
+        return callErrors.computeIfAbsent(method, key -> new Counter());
+    }
+
+    // Table names may be qualified with the database name, only the table is kept
+    public static Counter rowsRead(String table) {
+        return rowsRead.computeIfAbsent(table.substring(table.lastIndexOf('.') + 1), key -> new Counter());
+    }
+
+    public static Counter rowsWritten(String table) {
+        return rowsWritten.computeIfAbsent(table.substring(table.lastIndexOf('.') + 1), key -> new Counter());
+    }
+
+    /**
+     * Records a regular sync.
+     * @param changes records applied to the local lists, or -1 if the sync failed
+     */
+    public static void recordSync(long nanos, int changes) {
+        SYNC.record(nanos);
+        if (changes < 0) {
+            SYNC_FAILURES.increment();
+        } else {
+            RECORDS_APPLIED.add(changes);
+            lastRecordsApplied = changes;
+            lastSuccessfulSyncAt = System.currentTimeMillis();
+        }
+    }
+
+    // Seconds since the last sync that worked, or since the server started if none has
+    public static double getSyncLagSeconds() {
+        long since = lastSuccessfulSyncAt > 0 ? lastSuccessfulSyncAt : startedAt;
+        return (System.currentTimeMillis() - since) / 1000.0;
+    }
+
+    /**
+     * Adds a value that is read each time the metrics are shown. Replaces a gauge with the same name.
+     * @param name Prometheus name without the whitelistsync_ prefix, e.g. "outbox_depth"
+     */
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+    // Forgets everything, called when the server starts so a restart in the same JVM starts from zero
+    public static void reset() {
+        calls.clear();
+        callErrors.clear();
+        rowsRead.clear();
+        rowsWritten.clear();
+        gauges.clear();
+        SYNC.reset();
+        SYNC_FAILURES.reset();
+        SYNC_SKIPPED.reset();
+        TABLES_UNCHANGED.reset();
+        RECORDS_APPLIED.reset();
+        lastRecordsApplied = 0;
+        lastSuccessfulSyncAt = 0;
+        startedAt = System.currentTimeMillis();
+    }
+
+    // Human readable summary, one line per entry
+    public static List<String> summary() {
+        List<String> lines = new ArrayList<>();
+
+        lines.add(String.format(Locale.ROOT, "Syncs: %d | %d failed | %d skipped | %s | last %.1fs ago",
+                SYNC.getCount(), SYNC_FAILURES.get(), SYNC_SKIPPED.get(), SYNC.describe(), getSyncLagSeconds()));
+        long successfulSyncs = SYNC.getCount() - SYNC_FAILURES.get();
+        lines.add(String.format(Locale.ROOT, "Records applied: %d | %.2f per sync | %d last sync | %d unchanged table reads skipped",
+                RECORDS_APPLIED.get(), successfulSyncs > 0 ? (double) RECORDS_APPLIED.get() / successfulSyncs : 0.0, lastRecordsApplied,
+                TABLES_UNCHANGED.get()));
+
+        StringBuilder rows = new StringBuilder("Rows read:");
+        rowsRead.forEach((table, counter) -> rows.append(' ').append(table).append('=').append(counter.get()));
+        rows.append(" | Rows written:");
+        rowsWritten.forEach((table, counter) -> rows.append(' ').append(table).append('=').append(counter.get()));
+        lines.add(rows.toString());
+
+        calls.forEach((method, timer) -> {
+            Counter errors = callErrors.get(method);
+            lines.add(String.format(Locale.ROOT, "%s: %d calls | %d errors | %s",
+                    method, timer.getCount(), errors != null ? errors.get() : 0, timer.describe()));
+        });
+
+        gauges.forEach((name, gauge) -> {
+            double value = gauge.value.getAsDouble();
+            lines.add(value == Math.rint(value)
+                    ? String.format(Locale.ROOT, "%s: %d", gauge.help, (long) value)
+                    : String.format(Locale.ROOT, "%s: %.2f", gauge.help, value));
+        });
+
+        return lines;
+    }
+
+    // Every metric in the Prometheus text exposition format
+    public static String prometheus() {
+        StringBuilder out = new StringBuilder();
+
+        header(out, "call_duration_seconds", "histogram", "Time taken by database service calls.");
+        calls.forEach((method, timer) -> timer.writeHistogram(out, "call_duration_seconds", "method=\"" + method + "\""));
+
+        header(out, "call_errors_total", "counter", "Database service calls that failed.");
+        callErrors.forEach((method, counter) -> sample(out, "call_errors_total", "method=\"" + method + "\"", counter.get()));
+
+        header(out, "rows_read_total", "counter", "Rows read from the database.");
+        rowsRead.forEach((table, counter) -> sample(out, "rows_read_total", "table=\"" + table + "\"", counter.get()));
+
+        header(out, "rows_written_total", "counter", "Rows written to the database.");
+        rowsWritten.forEach((table, counter) -> sample(out, "rows_written_total", "table=\"" + table + "\"", counter.get()));
+
+        header(out, "sync_duration_seconds", "histogram", "Time taken by regular syncs, including failed ones.");
+        SYNC.writeHistogram(out, "sync_duration_seconds", "");
+
+        header(out, "sync_failures_total", "counter", "Regular syncs that failed.");
+        sample(out, "sync_failures_total", "", SYNC_FAILURES.get());
+
+        header(out, "sync_skipped_total", "counter", "Regular syncs skipped because the database was down.");
+        sample(out, "sync_skipped_total", "", SYNC_SKIPPED.get());
+
+        header(out, "sync_unchanged_tables_total", "counter", "Table reads skipped by regular syncs because the table's revision hadn't changed.");
+        sample(out, "sync_unchanged_tables_total", "", TABLES_UNCHANGED.get());
+
+        header(out, "sync_records_applied_total", "counter", "Records applied to the local lists by regular syncs.");
+        sample(out, "sync_records_applied_total", "", RECORDS_APPLIED.get());
+
+        header(out, "sync_lag_seconds", "gauge", "Seconds since the last regular sync that worked.");
+        sample(out, "sync_lag_seconds", "", getSyncLagSeconds());
+
+        gauges.forEach((name, gauge) -> {
+            header(out, name, "gauge", gauge.help + ".");
+            sample(out, name, "", gauge.value.getAsDouble());
+        });
+
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(PREFIX).append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        void reset() {
+            value.reset();
+        }
+    }
+
+    // Latency histogram with fixed buckets
+    public static class Timer {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_MILLIS.length + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        public void record(long nanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BUCKET_MILLIS.length && millis >= BUCKET_MILLIS[bucket]) {
+                bucket++;
+            }
+
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        // Upper bound of the bucket holding the given percentile, in milliseconds. Slower than the last bound is reported as the max.
+        public long getPercentileMillis(double percentile) {
+            long total = getCount();
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(percentile / 100.0 * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_MILLIS.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return BUCKET_MILLIS[i];
+                }
+            }
+            return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+        }
+
+        String describe() {
+            long total = getCount();
+            double averageMillis = total > 0 ? totalNanos.sum() / 1e6 / total : 0;
+            return String.format(Locale.ROOT, "avg %.1fms | p50 <%dms | p99 <%dms | max %.1fms",
+                    averageMillis, getPercentileMillis(50), getPercentileMillis(99), maxNanos.get() / 1e6);
+        }
+
+        // Prometheus buckets are cumulative
+        void writeHistogram(StringBuilder out, String name, String labels) {
+            String separator = labels.isEmpty() ? "" : ",";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKET_MILLIS.length; i++) {
+                cumulative += buckets.get(i);
+                sample(out, name + "_bucket", labels + separator + "le=\"" + format(BUCKET_MILLIS[i] / 1000.0) + "\"", cumulative);
+            }
+            sample(out, name + "_bucket", labels + separator + "le=\"+Inf\"", getCount());
+            sample(out, name + "_sum", labels, totalNanos.sum() / 1e9);
+            sample(out, name + "_count", labels, getCount());
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            totalNanos.reset();
+            maxNanos.set(0);
+        }
+    }
+
+    private static class Gauge {
+        final String help;
+        final DoubleSupplier value;
+
+        Gauge(String help, DoubleSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+}
@@ -1,21 +1,30 @@
 package pw.twpi.whitelistsync2.services;
 
 import com.mojang.authlib.GameProfile;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
 import net.minecraft.server.MinecraftServer;
-import net.minecraft.server.management.WhitelistEntry;
 import pw.twpi.whitelistsync2.Config;
 import pw.twpi.whitelistsync2.WhitelistSync2;
-import pw.twpi.whitelistsync2.json.OppedPlayersFileUtilities;
-import pw.twpi.whitelistsync2.json.WhitelistedPlayersFileUtilities;
 import pw.twpi.whitelistsync2.models.OppedPlayer;
 import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
 
@@ -26,16 +35,72 @@ import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
  */
 public class MySqlService implements BaseService {
 
+    // Set by the database on every insert and update, so REPLACE INTO and older mod versions keep it current.
+    // TIMESTAMP is stored in UTC so servers in different time zones compare the same values.
+    private static final String UPDATED_AT_DEFINITION = "TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) ON UPDATE CURRENT_TIMESTAMP(3)";
+
+    // Current time in epoch milliseconds, for the change journal
+    private static final String NOW_MILLIS = "CAST(UNIX_TIMESTAMP(CURRENT_TIMESTAMP(3)) * 1000 AS SIGNED)";
+
+    // Backoff between retries, randomized up to the current cap so servers don't retry in step
+    private static final long RETRY_BASE_MILLIS = 200;
+    private static final long RETRY_MAX_MILLIS = 5000;
+
+    // How long a starting server waits for another one to finish migrating or converting the tables
+    private static final long SCHEMA_LOCK_WAIT_MILLIS = 600000;
+
     private final String databaseName;
     private final String url;
     private final String username;
     private final String password;
 
+    // Connection pool, created in initializeDatabase and closed in shutdown
+    private HikariDataSource dataSource;
+
+    // Fails calls fast while the database is down
+    private final CircuitBreaker breaker;
+
+    // Change journals and this server's position in them
+    private final ChangeJournal whitelistJournal;
+    private final ChangeJournal opJournal;
+
+    // Bulk copy state, kept so a failed copy can resume
+    private final BulkCopy<WhitelistedPlayer> whitelistCopy;
+    private final BulkCopy<OppedPlayer> opCopy;
+
+    // Compares the local lists with the database for the verify and repair commands
+    private final Reconciliation<WhitelistedPlayer> whitelistReconciliation;
+    private final Reconciliation<OppedPlayer> opReconciliation;
+
+    // Local whitelist and op list, read from the live server where possible
+    private final LocalStateProvider localState;
+
+    // Table setup, see SchemaMigrations
+    private final MySqlSchema schema = new MySqlSchema();
+
     public MySqlService() {
+        this(new LocalStateProvider());
+    }
+
+    // Tools that run the service without a server pass their own local state
+    public MySqlService(LocalStateProvider localState) {
+        this.localState = localState;
         this.databaseName = Config.MYSQL_DB_NAME.get();
-        this.url = "jdbc:mysql://" + Config.MYSQL_IP.get() + ":" + Config.MYSQL_PORT.get() + "/?useSSL=false&serverTimezone=UTC";
+        this.url = "jdbc:mysql://" + Config.MYSQL_IP.get() + ":" + Config.MYSQL_PORT.get() + "/?useSSL=false&serverTimezone=UTC"
+                + "&connectTimeout=" + Config.MYSQL_CONNECT_TIMEOUT.get() * 1000 + "&socketTimeout=" + Config.MYSQL_SOCKET_TIMEOUT.get() * 1000;
         this.username = Config.MYSQL_USERNAME.get();
         this.password = Config.MYSQL_PASSWORD.get();
+        this.breaker = new CircuitBreaker("MySQL database", Config.MYSQL_BREAKER_THRESHOLD.get(), Config.MYSQL_BREAKER_COOL_DOWN.get() * 1000L);
+
+        this.whitelistJournal = new ChangeJournal(databaseName + ".whitelist_changes", databaseName + ".whitelist", "whitelisted", NOW_MILLIS,
+                databaseName + ".sync_revision");
+        this.opJournal = new ChangeJournal(databaseName + ".op_changes", databaseName + ".op", "isOp", NOW_MILLIS,
+                databaseName + ".sync_revision");
+        this.whitelistCopy = new BulkCopy<>("whitelist", whitelistJournal, false, WhitelistedPlayer::getUuid, WhitelistedPlayer::getName);
+        this.opCopy = new BulkCopy<>("op list", opJournal, false, OppedPlayer::getUuid, OppedPlayer::getName);
+        this.whitelistReconciliation = new Reconciliation<>("whitelist", whitelistJournal, WhitelistedPlayer::getUuid, WhitelistedPlayer::getName,
+                this::readDigests);
+        this.opReconciliation = new Reconciliation<>("op list", opJournal, OppedPlayer::getUuid, OppedPlayer::getName, this::readDigests);
     }
 
     // Function used to initialize the database file
@@ -55,10 +120,10 @@ public class MySqlService implements BaseService {
 
         if (isSuccess) {
             try {
-                Connection conn = DriverManager.getConnection(url, username, password);
+                // Creating the pool opens the first connection, so a bad config fails here
+                dataSource = new HikariDataSource(createPoolConfig());
                 WhitelistSync2.LOGGER.debug("Connected to " + url + " successfully!");
-                conn.close();
-            } catch (SQLException e) {
+            } catch (Exception e) {
                 WhitelistSync2.LOGGER.error("Failed to connect to the mySQL database! Did you set one up in the config?");
                 WhitelistSync2.LOGGER.error(e.getMessage(), e);
                 isSuccess = false;
@@ -66,89 +131,16 @@ public class MySqlService implements BaseService {
         }
 
         if (isSuccess) {
-            // Create database
-            try {
+            try (Connection conn = getConnection()) {
+                // Creates or updates the tables. Only reads the schema version if they are up to date.
+                SchemaMigrations.migrate(conn, schema);
 
-                // Create database
-                String sql = "CREATE DATABASE IF NOT EXISTS " + databaseName + ";";
-
-                // Create statement
-                Connection conn = DriverManager.getConnection(url, username, password);
-                PreparedStatement stmt = conn.prepareStatement(sql);
-                stmt.execute();
-                stmt.close();
-
-                // Create whitelist table
-                sql = "CREATE TABLE IF NOT EXISTS " + databaseName + ".whitelist ("
-                        + "`uuid` VARCHAR(60) NOT NULL,"
-                        + "`name` VARCHAR(20) NOT NULL,"
-                        + "`whitelisted` TINYINT NOT NULL DEFAULT 1,"
-                        + "PRIMARY KEY (`uuid`)"
-                        + ")";
-                PreparedStatement stmt2 = conn.prepareStatement(sql);
-                stmt2.execute();
-                stmt2.close();
-
-                // Create opped players table if enabled
+                setUpUuidColumns(conn, whitelistJournal);
                 if (Config.SYNC_OP_LIST.get()) {
-                    sql = "CREATE TABLE IF NOT EXISTS " + databaseName + ".op ("
-                            + "`uuid` VARCHAR(60) NOT NULL,"
-                            + "`name` VARCHAR(20) NOT NULL,"
-                            + "`isOp` TINYINT NOT NULL DEFAULT 1,"
-                            + "PRIMARY KEY (`uuid`)"
-                            + ")";
-                    PreparedStatement stmt3 = conn.prepareStatement(sql);
-                    stmt3.execute();
-                    stmt3.close();
-
-
-                    // Remove old op level field if it exists
-                    sql =
-                            "SELECT COUNT(*) AS count " +
-                                    "FROM INFORMATION_SCHEMA.COLUMNS " +
-                                    "WHERE TABLE_SCHEMA = '" + databaseName + "' AND TABLE_NAME = 'op' AND COLUMN_NAME = 'level'";
-                    PreparedStatement stmt4 = conn.prepareStatement(sql);
-                    ResultSet rs = stmt4.executeQuery();
-                    rs.next();
-
-                    int count = rs.getInt("count");
-
-                    if(count > 0) {
-                        sql = "ALTER TABLE " + databaseName + ".op DROP COLUMN level";
-                        PreparedStatement stmt5 = conn.prepareStatement(sql);
-                        stmt5.execute();
-                        stmt5.close();
-                        WhitelistSync2.LOGGER.info("Removed unused op table \"level\" column.");
-                    }
-                    rs.close();
-                    stmt4.close();
-
-
-                    // Remove old op bypassesPlayerLimit field if it exists
-                    sql =
-                            "SELECT COUNT(*) AS count " +
-                                    "FROM INFORMATION_SCHEMA.COLUMNS " +
-                                    "WHERE TABLE_SCHEMA = '" + databaseName + "' AND TABLE_NAME = 'op' AND COLUMN_NAME = 'bypassesPlayerLimit'";
-                    PreparedStatement stmt5 = conn.prepareStatement(sql);
-                    ResultSet rs1 = stmt5.executeQuery();
-                    rs1.next();
-
-                    int count1 = rs1.getInt("count");
-
-                    if(count1 > 0) {
-                        sql = "ALTER TABLE " + databaseName + ".op DROP COLUMN bypassesPlayerLimit";
-                        PreparedStatement stmt6 = conn.prepareStatement(sql);
-                        stmt6.execute();
-                        stmt6.close();
-                        WhitelistSync2.LOGGER.info("Removed unused op table \"bypassesPlayerLimit\" column.");
-                    }
-                    rs1.close();
-                    stmt5.close();
-
+                    setUpUuidColumns(conn, opJournal);
                 }
 
                 WhitelistSync2.LOGGER.info("Setup MySQL database!");
-                conn.close();
             } catch (Exception e) {
                 WhitelistSync2.LOGGER.error("Error initializing database and database tables.");
                 WhitelistSync2.LOGGER.error(e.getMessage(), e);
@@ -160,77 +152,559 @@ public class MySqlService implements BaseService {
         return isSuccess;
     }
 
-    @Override
-    public ArrayList<WhitelistedPlayer> getWhitelistedPlayersFromDatabase() {
-        // ArrayList for whitelisted players.
-        ArrayList<WhitelistedPlayer> whitelistedPlayers = new ArrayList<>();
+    private static String stateTableDefinition(String table, String stateColumn, UuidCodec layout) {
+        if (layout == UuidCodec.BINARY) {
+            // InnoDB secondary indexes carry the primary key, so these two answer the sync and list queries on their own
+            return "CREATE TABLE IF NOT EXISTS " + table + " ("
+                    + "`uuid` BINARY(16) NOT NULL,"
+                    + "`name` VARCHAR(20) NOT NULL,"
+                    + "`" + stateColumn + "` TINYINT NOT NULL DEFAULT 1,"
+                    + "`updated_at` " + UPDATED_AT_DEFINITION + ","
+                    + "PRIMARY KEY (`uuid`),"
+                    + "KEY `idx_updated_at` (`updated_at`, `" + stateColumn + "`, `name`),"
+                    + "KEY `idx_name` (`" + stateColumn + "`, `name`, `uuid`)"
+                    + ")";
+        }
 
-        try {
-            // Keep track of records.
-            int records = 0;
+        return "CREATE TABLE IF NOT EXISTS " + table + " ("
+                + "`uuid` VARCHAR(60) NOT NULL,"
+                + "`name` VARCHAR(20) NOT NULL,"
+                + "`" + stateColumn + "` TINYINT NOT NULL DEFAULT 1,"
+                + "`updated_at` " + UPDATED_AT_DEFINITION + ","
+                + "PRIMARY KEY (`uuid`),"
+                + "KEY `idx_updated_at` (`updated_at`)"
+                + ")";
+    }
 
-            // Connect to database.
-            Connection conn = DriverManager.getConnection(url, username, password);
-            long startTime = System.currentTimeMillis();
+    private static String journalTableDefinition(String table, String stateColumn, UuidCodec layout) {
+        return "CREATE TABLE IF NOT EXISTS " + table + " ("
+                + "`seq` BIGINT NOT NULL AUTO_INCREMENT,"
+                + "`uuid` " + (layout == UuidCodec.BINARY ? "BINARY(16)" : "VARCHAR(60)") + " NOT NULL,"
+                + "`name` VARCHAR(20) NOT NULL,"
+                + "`" + stateColumn + "` TINYINT NOT NULL,"
+                + "`origin` VARCHAR(64) NOT NULL,"
+                + "`changed_at` BIGINT NOT NULL,"
+                + "PRIMARY KEY (`seq`),"
+                + "KEY `idx_changed_at` (`changed_at`)"
+                + ")";
+    }
 
-            String sql = "SELECT uuid, name FROM " + databaseName + ".whitelist WHERE whitelisted = true;";
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            ResultSet rs = stmt.executeQuery();
+    // Reads the column type from the result metadata, which is cheaper than asking INFORMATION_SCHEMA
+    private UuidCodec readUuidCodec(Connection conn, String table) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT uuid FROM " + databaseName + "." + table + " LIMIT 0");
+        ResultSet rs = stmt.executeQuery();
 
-            // Add queried results to arraylist.
-            while (rs.next()) {
-                whitelistedPlayers.add(new WhitelistedPlayer(rs.getString("uuid"), rs.getString("name"), true));
-                records++;
+        UuidCodec codec = UuidCodec.of(rs.getMetaData(), 1);
+        rs.close();
+        stmt.close();
+
+        return codec;
+    }
+
+    // Finds how a state table and its journal store uuids, converting them to binary first if the config asks for it
+    private void setUpUuidColumns(Connection conn, ChangeJournal journal) throws SQLException {
+        String table = journal.getStateTable().substring(databaseName.length() + 1);
+        String changesTable = journal.getChangesTable().substring(databaseName.length() + 1);
+        String stateColumn = journal.getStateColumn();
+        UuidCodec stateCodec = readUuidCodec(conn, table);
+        UuidCodec journalCodec = readUuidCodec(conn, changesTable);
+
+        if (Config.UUID_STORAGE.get() == Config.UuidStorage.BINARY && (stateCodec == UuidCodec.TEXT || journalCodec == UuidCodec.TEXT)) {
+            // Only one server converts, the others wait for it and then find the tables converted
+            schema.lock(conn);
+            try {
+                convertUuidColumns(conn, journal);
+            } finally {
+                schema.unlock(conn);
             }
+            stateCodec = UuidCodec.BINARY;
+            journalCodec = UuidCodec.BINARY;
+        }
 
-            // Time taken
-            long timeTaken = System.currentTimeMillis() - startTime;
+        if (stateCodec != journalCodec) {
+            throw new SQLException("The " + table + " and " + changesTable + " tables store uuids differently. "
+                    + "Set uuidStorage to BINARY to convert both.");
+        }
+        journal.setUuidCodec(stateCodec);
+    }
+
+    // Converts the text uuid columns of a state table and its journal to binary
+    private void convertUuidColumns(Connection conn, ChangeJournal journal) throws SQLException {
+        String table = journal.getStateTable().substring(databaseName.length() + 1);
+        String changesTable = journal.getChangesTable().substring(databaseName.length() + 1);
+        String stateColumn = journal.getStateColumn();
+
+        // Read again under the lock
+        List<UuidMigration> migrations = new ArrayList<>();
+        if (readUuidCodec(conn, table) == UuidCodec.TEXT) {
+            String target = databaseName + "." + table + "_binary";
+            migrations.add(new UuidMigration(journal.getStateTable(), target, stateTableDefinition(target, stateColumn, UuidCodec.BINARY),
+                    Arrays.asList("uuid", "name", stateColumn, "updated_at"), "uuid", "updated_at",
+                    "REPLACE INTO", UuidCodec.TEXT, UuidCodec.BINARY));
+        }
+        if (readUuidCodec(conn, changesTable) == UuidCodec.TEXT) {
+            String target = databaseName + "." + changesTable + "_binary";
+            migrations.add(new UuidMigration(journal.getChangesTable(), target, journalTableDefinition(target, stateColumn, UuidCodec.BINARY),
+                    Arrays.asList("seq", "uuid", "name", stateColumn, "origin", "changed_at"), "seq", "seq",
+                    "REPLACE INTO", UuidCodec.TEXT, UuidCodec.BINARY));
+        }
+        if (migrations.isEmpty()) {
+            return;
+        }
+
+        // Copy the tables into binary ones while other servers keep using them, then swap them in.
+        // RENAME TABLE swaps every table at once. Rows written between the last copy and the swap are copied
+        // from the old tables right after, then the old tables are dropped.
+        WhitelistSync2.LOGGER.info("Converting the " + table + " tables to binary uuids...");
+        long startTime = System.currentTimeMillis();
+
+        Object[] watermarks = new Object[migrations.size()];
+        int records = 0;
+        for (int i = 0; i < migrations.size(); i++) {
+            UuidMigration migration = migrations.get(i);
+            migration.createTarget(conn);
+            watermarks[i] = migration.readWatermark(conn);
+            records += migration.copyAll(conn);
+        }
+
+        // Catch up on what was written during the copy, so little is left for after the swap
+        StringBuilder rename = new StringBuilder("RENAME TABLE ");
+        for (int i = 0; i < migrations.size(); i++) {
+            UuidMigration migration = migrations.get(i);
+            Object watermark = migration.readWatermark(conn);
+            migration.copyChangedSince(conn, migration.getSource(), migration.getTarget(), watermarks[i]);
+            watermarks[i] = watermark;
+
+            rename.append(i == 0 ? "" : ", ")
+                    .append(migration.getSource()).append(" TO ").append(migration.getSource()).append("_text, ")
+                    .append(migration.getTarget()).append(" TO ").append(migration.getSource());
+        }
+
+        Statement stmt = conn.createStatement();
+        stmt.execute(rename.toString());
+        for (int i = 0; i < migrations.size(); i++) {
+            UuidMigration migration = migrations.get(i);
+            migration.copyChangedSince(conn, migration.getSource() + "_text", migration.getSource(), watermarks[i]);
+            stmt.execute("DROP TABLE " + migration.getSource() + "_text");
+        }
+        stmt.close();
 
-            WhitelistSync2.LOGGER.debug("Database pulled whitelisted players | Took " + timeTaken + "ms | Read " + records + " records.");
+        long timeTaken = System.currentTimeMillis() - startTime;
+        WhitelistSync2.LOGGER.info("Converted the " + table + " tables to binary uuids | Took " + timeTaken + "ms | Copied " + records + " records.");
+    }
+
+    // Adds the updated_at column and its index if the table predates change tracking
+    private void addUpdatedAtColumn(Connection conn, String table) throws SQLException {
+        String sql = "SELECT COUNT(*) AS count " +
+                "FROM INFORMATION_SCHEMA.COLUMNS " +
+                "WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? AND COLUMN_NAME = 'updated_at'";
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        stmt.setString(1, databaseName);
+        stmt.setString(2, table);
+        ResultSet rs = stmt.executeQuery();
+        rs.next();
+
+        int count = rs.getInt("count");
+        rs.close();
+        stmt.close();
+
+        if (count == 0) {
+            sql = "ALTER TABLE " + databaseName + "." + table
+                    + " ADD COLUMN `updated_at` " + UPDATED_AT_DEFINITION + ","
+                    + " ADD KEY `idx_updated_at` (`updated_at`)";
+            PreparedStatement stmt2 = conn.prepareStatement(sql);
+            stmt2.execute();
+            stmt2.close();
+            WhitelistSync2.LOGGER.info("Added \"updated_at\" column to " + table + " table.");
+        }
+    }
+
+    // Adds the index the list commands use to page through the listed players by name and uuid and count them.
+    // Replaces a name index without the uuid, which older versions made.
+    private void addNameIndex(Connection conn, String table, String stateColumn) throws SQLException {
+        String sql = "SELECT COUNT(*) AS count, SUM(COLUMN_NAME = 'uuid') AS uuid_columns " +
+                "FROM INFORMATION_SCHEMA.STATISTICS " +
+                "WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? AND INDEX_NAME = 'idx_name'";
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        stmt.setString(1, databaseName);
+        stmt.setString(2, table);
+        ResultSet rs = stmt.executeQuery();
+        rs.next();
+
+        int count = rs.getInt("count");
+        int uuidColumns = rs.getInt("uuid_columns");
+        rs.close();
+        stmt.close();
+
+        if (count == 0 || uuidColumns == 0) {
+            String index = "ADD KEY `idx_name` (`" + stateColumn + "`, `name`, `uuid`)";
+            sql = "ALTER TABLE " + databaseName + "." + table + " " + (count == 0 ? index : "DROP KEY `idx_name`, " + index);
+            PreparedStatement stmt2 = conn.prepareStatement(sql);
+            stmt2.execute();
+            stmt2.close();
+            WhitelistSync2.LOGGER.info("Added name index to " + table + " table.");
+        }
+    }
 
-            rs.close();
+    private void dropColumnIfExists(Connection conn, String table, String column) throws SQLException {
+        String sql = "SELECT COUNT(*) AS count " +
+                "FROM INFORMATION_SCHEMA.COLUMNS " +
+                "WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? AND COLUMN_NAME = ?";
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        stmt.setString(1, databaseName);
+        stmt.setString(2, table);
+        stmt.setString(3, column);
+        ResultSet rs = stmt.executeQuery();
+        rs.next();
+
+        int count = rs.getInt("count");
+        rs.close();
+        stmt.close();
+
+        if (count > 0) {
+            PreparedStatement stmt2 = conn.prepareStatement("ALTER TABLE " + databaseName + "." + table + " DROP COLUMN " + column);
+            stmt2.execute();
+            stmt2.close();
+            WhitelistSync2.LOGGER.info("Removed unused " + table + " table \"" + column + "\" column.");
+        }
+    }
+
+    private class MySqlSchema implements SchemaMigrations.Schema {
+
+        @Override
+        public String getVersionTable() {
+            return databaseName + ".schema_version";
+        }
+
+        @Override
+        public void createVersionTable(Connection conn) throws SQLException {
+            Statement stmt = conn.createStatement();
+            stmt.execute("CREATE DATABASE IF NOT EXISTS " + databaseName);
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + getVersionTable() + " ("
+                    + "`version` INT NOT NULL,"
+                    + "`description` VARCHAR(255) NOT NULL,"
+                    + "`applied_at` BIGINT NOT NULL,"
+                    + "`applied_by` VARCHAR(64) NOT NULL,"
+                    + "PRIMARY KEY (`version`)"
+                    + ")");
             stmt.close();
-            conn.close();
-        } catch (SQLException e) {
-            // Something is wrong...
-            WhitelistSync2.LOGGER.error("Error querying whitelisted players from database!");
-            WhitelistSync2.LOGGER.error(e.getMessage(), e);
         }
-        return whitelistedPlayers;
+
+        // A named lock belongs to the connection, so it is released if the server holding it goes away
+        @Override
+        public void lock(Connection conn) throws SQLException {
+            long deadline = System.currentTimeMillis() + SCHEMA_LOCK_WAIT_MILLIS;
+
+            while (true) {
+                // Short waits so the statement stays under the query timeout
+                PreparedStatement stmt = conn.prepareStatement("SELECT GET_LOCK(?, 5)");
+                stmt.setString(1, lockName());
+                ResultSet rs = stmt.executeQuery();
+                rs.next();
+                boolean locked = rs.getInt(1) == 1;
+                rs.close();
+                stmt.close();
+
+                if (locked) {
+                    return;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new SQLException("Timed out waiting for another server to finish setting up the database.");
+                }
+                WhitelistSync2.LOGGER.info("Waiting for another server to finish setting up the database...");
+            }
+        }
+
+        @Override
+        public void unlock(Connection conn) throws SQLException {
+            PreparedStatement stmt = conn.prepareStatement("SELECT RELEASE_LOCK(?)");
+            stmt.setString(1, lockName());
+            stmt.executeQuery().close();
+            stmt.close();
+        }
+
+        // Lock names are server wide, so include the database
+        private String lockName() {
+            return "whitelistsync2_schema_" + databaseName;
+        }
+
+        @Override
+        public void createStateTables(Connection conn) throws SQLException {
+            // New tables get the configured uuid layout
+            UuidCodec layout = Config.UUID_STORAGE.get() == Config.UuidStorage.BINARY ? UuidCodec.BINARY : UuidCodec.TEXT;
+
+            Statement stmt = conn.createStatement();
+            stmt.execute(stateTableDefinition(databaseName + ".whitelist", "whitelisted", layout));
+            stmt.execute(stateTableDefinition(databaseName + ".op", "isOp", layout));
+            stmt.close();
+        }
+
+        // Tables made by versions before change tracking
+        @Override
+        public void addUpdatedAtColumns(Connection conn) throws SQLException {
+            addUpdatedAtColumn(conn, "whitelist");
+            addUpdatedAtColumn(conn, "op");
+        }
+
+        // Journals store uuids like their state table
+        @Override
+        public void createJournalTables(Connection conn) throws SQLException {
+            Statement stmt = conn.createStatement();
+            stmt.execute(journalTableDefinition(databaseName + ".whitelist_changes", "whitelisted", readUuidCodec(conn, "whitelist")));
+            stmt.execute(journalTableDefinition(databaseName + ".op_changes", "isOp", readUuidCodec(conn, "op")));
+            stmt.close();
+        }
+
+        @Override
+        public void createIndexes(Connection conn) throws SQLException {
+            addNameIndex(conn, "whitelist", "whitelisted");
+            addNameIndex(conn, "op", "isOp");
+        }
+
+        // Left over from versions that synced op levels
+        @Override
+        public void dropUnusedOpColumns(Connection conn) throws SQLException {
+            dropColumnIfExists(conn, "op", "level");
+            dropColumnIfExists(conn, "op", "bypassesPlayerLimit");
+        }
+
+        @Override
+        public void createRevisionTable(Connection conn) throws SQLException {
+            Statement stmt = conn.createStatement();
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + databaseName + ".sync_revision ("
+                    + "`table_name` VARCHAR(64) NOT NULL,"
+                    + "`revision` BIGINT NOT NULL,"
+                    + "PRIMARY KEY (`table_name`)"
+                    + ")");
+            stmt.execute("INSERT IGNORE INTO " + databaseName + ".sync_revision(table_name, revision) VALUES ('whitelist', 0), ('op', 0)");
+            stmt.close();
+        }
+
+        @Override
+        public void widenNameIndexes(Connection conn) throws SQLException {
+            addNameIndex(conn, "whitelist", "whitelisted");
+            addNameIndex(conn, "op", "isOp");
+        }
     }
 
     @Override
-    public ArrayList<OppedPlayer> getOppedPlayersFromDatabase() {
-        // ArrayList for opped players.
-        ArrayList<OppedPlayer> oppedPlayers = new ArrayList<>();
+    public void shutdown() {
+        if (dataSource != null && !dataSource.isClosed()) {
+            dataSource.close();
+            WhitelistSync2.LOGGER.info("Closed MySQL connection pool.");
+        }
+    }
 
-        if (Config.SYNC_OP_LIST.get()) {
+    private HikariConfig createPoolConfig() {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("WhitelistSync2-MySQL");
+        config.setDriverClassName("com.mysql.cj.jdbc.Driver");
+        config.setJdbcUrl(url);
+        config.setUsername(username);
+        config.setPassword(password);
+
+        config.setMaximumPoolSize(Config.MYSQL_POOL_MAX_SIZE.get());
+        config.setMinimumIdle(Math.min(Config.MYSQL_POOL_MIN_IDLE.get(), Config.MYSQL_POOL_MAX_SIZE.get()));
+        config.setConnectionTimeout(Config.MYSQL_POOL_CONNECTION_TIMEOUT.get() * 1000L);
+        config.setIdleTimeout(Config.MYSQL_POOL_IDLE_TIMEOUT.get() * 1000L);
+        config.setMaxLifetime(Config.MYSQL_POOL_MAX_LIFETIME.get() * 1000L);
+        // Idle connections are pinged on this interval so dead ones are evicted before a sync borrows them.
+        // Must be lower than the max lifetime or Hikari disables it.
+        config.setKeepaliveTime(Math.min(Config.MYSQL_POOL_KEEPALIVE_TIME.get(), Config.MYSQL_POOL_MAX_LIFETIME.get() - 1) * 1000L);
+        config.setLeakDetectionThreshold(Config.MYSQL_POOL_LEAK_DETECTION_THRESHOLD.get() * 1000L);
+
+        // Statement cache for the handful of statements we prepare over and over
+        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("prepStmtCacheSize", "64");
+        // Lets bulk copies send batches as multi-row inserts
+        config.addDataSourceProperty("rewriteBatchedStatements", "true");
+
+        return config;
+    }
+
+    // Borrows a pooled connection. Every statement made on it gets the query timeout.
+    private Connection getConnection() throws SQLException {
+        Connection conn = dataSource.getConnection();
+        int queryTimeout = Config.MYSQL_QUERY_TIMEOUT.get();
+
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+                (proxy, method, args) -> {
+                    Object result;
+                    try {
+                        result = method.invoke(conn, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+
+                    if (result instanceof Statement) {
+                        ((Statement) result).setQueryTimeout(queryTimeout);
+                    }
+                    return result;
+                });
+    }
+
+    // Database work run by withConnection
+    private interface SqlWork<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    /**
+     * Runs work on a pooled connection. Transient failures (lost connections, timeouts, deadlocks) are
+     * retried with a jittered backoff up to the configured number of times, so work must be safe to run again.
+     * Fails right away while the circuit breaker is open.
+     */
+    private <T> T withConnection(SqlWork<T> work) throws SQLException {
+        int attempt = 0;
+
+        while (true) {
+            if (!breaker.allowRequest()) {
+                throw new CircuitBreaker.OpenException("MySQL database");
+            }
+
+            boolean succeeded = false;
+            boolean transientFailure = false;
+            try (Connection conn = getConnection()) {
+                T result = work.run(conn);
+                succeeded = true;
+                return result;
+            } catch (SQLException e) {
+                // Closing the connection can still fail after the work returned
+                succeeded = false;
+                transientFailure = isTransient(e);
+                if (!transientFailure || attempt >= Config.MYSQL_RETRY_ATTEMPTS.get() || !breaker.isAvailable()) {
+                    throw e;
+                }
+                WhitelistSync2.LOGGER.warn("Database call failed (" + e.getMessage() + "), retrying.");
+            } finally {
+                // Only a call that returned counts as a success. A refused statement or a bug in the work
+                // proves nothing either way.
+                if (succeeded) {
+                    breaker.recordSuccess();
+                } else if (transientFailure) {
+                    breaker.recordFailure();
+                } else {
+                    breaker.recordNeutral();
+                }
+            }
+
+            attempt++;
+            long cap = Math.min(RETRY_MAX_MILLIS, RETRY_BASE_MILLIS << Math.min(attempt, 16));
             try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(cap / 2, cap + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting to retry", e);
+            }
+        }
+    }
+
+    // Failures worth retrying: connection problems (SQLState class 08), rolled back transactions such as
+    // deadlocks (class 40), and timeouts
+    private static boolean isTransient(SQLException e) {
+        if (e instanceof CircuitBreaker.OpenException) {
+            return false;
+        }
+        if (e instanceof SQLTransientException || e instanceof SQLRecoverableException) {
+            return true;
+        }
+
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("08") || state.startsWith("40"));
+    }
+
+    // A write that failed for want of the database is worth trying again, one the database refused is not
+    private static WriteResult writeResult(SQLException e) {
+        return e instanceof CircuitBreaker.OpenException || isTransient(e) ? WriteResult.RETRY : WriteResult.FAILED;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return breaker.isAvailable();
+    }
+
+    @Override
+    public ArrayList<WhitelistedPlayer> getWhitelistedPlayersFromDatabase() {
+        // ArrayList for whitelisted players.
+        ArrayList<WhitelistedPlayer> whitelistedPlayers = new ArrayList<>();
+
+        try {
+            withConnection(conn -> {
+                // A retry starts over
+                whitelistedPlayers.clear();
+
                 // Keep track of records.
                 int records = 0;
 
-                // Connect to database.
-                Connection conn = DriverManager.getConnection(url, username, password);
                 long startTime = System.currentTimeMillis();
 
-                String sql = "SELECT uuid, name FROM " + databaseName + ".op WHERE isOp = true;";
+                String sql = "SELECT uuid, name FROM " + databaseName + ".whitelist WHERE whitelisted = true;";
                 PreparedStatement stmt = conn.prepareStatement(sql);
                 ResultSet rs = stmt.executeQuery();
+                UuidCodec uuidCodec = UuidCodec.of(rs, "uuid");
 
                 // Add queried results to arraylist.
                 while (rs.next()) {
-                    oppedPlayers.add(new OppedPlayer(rs.getString("uuid"), rs.getString("name"), true));
+                    whitelistedPlayers.add(new WhitelistedPlayer(uuidCodec.read(rs, "uuid"), rs.getString("name"), true));
                     records++;
                 }
 
                 // Time taken
                 long timeTaken = System.currentTimeMillis() - startTime;
 
-                WhitelistSync2.LOGGER.debug("Database pulled opped players | Took " + timeTaken + "ms | Read " + records + " records.");
+                WhitelistSync2.LOGGER.debug("Database pulled whitelisted players | Took " + timeTaken + "ms | Read " + records + " records.");
+                Metrics.rowsRead("whitelist").add(records);
 
                 rs.close();
                 stmt.close();
-                conn.close();
+
+                return null;
+            });
+        } catch (SQLException e) {
+            // Something is wrong...
+            WhitelistSync2.LOGGER.error("Error querying whitelisted players from database!");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+        }
+        return whitelistedPlayers;
+    }
+
+    @Override
+    public ArrayList<OppedPlayer> getOppedPlayersFromDatabase() {
+        // ArrayList for opped players.
+        ArrayList<OppedPlayer> oppedPlayers = new ArrayList<>();
+
+        if (Config.SYNC_OP_LIST.get()) {
+            try {
+                withConnection(conn -> {
+                    // A retry starts over
+                    oppedPlayers.clear();
+
+                    // Keep track of records.
+                    int records = 0;
+
+                    long startTime = System.currentTimeMillis();
+
+                    String sql = "SELECT uuid, name FROM " + databaseName + ".op WHERE isOp = true;";
+                    PreparedStatement stmt = conn.prepareStatement(sql);
+                    ResultSet rs = stmt.executeQuery();
+                    UuidCodec uuidCodec = UuidCodec.of(rs, "uuid");
+
+                    // Add queried results to arraylist.
+                    while (rs.next()) {
+                        oppedPlayers.add(new OppedPlayer(uuidCodec.read(rs, "uuid"), rs.getString("name"), true));
+                        records++;
+                    }
+
+                    // Time taken
+                    long timeTaken = System.currentTimeMillis() - startTime;
+
+                    WhitelistSync2.LOGGER.debug("Database pulled opped players | Took " + timeTaken + "ms | Read " + records + " records.");
+                    Metrics.rowsRead("op").add(records);
+
+                    rs.close();
+                    stmt.close();
+
+                    return null;
+                });
             } catch (SQLException e) {
                 WhitelistSync2.LOGGER.error("Error querying opped players from database!");
                 WhitelistSync2.LOGGER.error(e.getMessage(), e);
@@ -245,45 +719,94 @@ public class MySqlService implements BaseService {
 
     @Override
     public ArrayList<WhitelistedPlayer> getWhitelistedPlayersFromLocal() {
-        return WhitelistedPlayersFileUtilities.getWhitelistedPlayers();
+        return localState.getWhitelistedPlayers();
     }
 
     @Override
     public ArrayList<OppedPlayer> getOppedPlayersFromLocal() {
-        return OppedPlayersFileUtilities.getOppedPlayers();
+        return localState.getOppedPlayers();
     }
 
     @Override
-    public boolean copyLocalWhitelistedPlayersToDatabase() {
-        // Load local whitelist to memory.
-        ArrayList<WhitelistedPlayer> whitelistedPlayers = WhitelistedPlayersFileUtilities.getWhitelistedPlayers();
+    public ArrayList<WhitelistedPlayer> getWhitelistedPlayersPage(String afterName, String afterUuid, String beforeName, String beforeUuid, int offset, int limit) {
+        try {
+            return withConnection(conn -> PageQuery.read(conn, databaseName + ".whitelist", "whitelisted", afterName, afterUuid,
+                    beforeName, beforeUuid, offset, limit, whitelistJournal.getUuidCodec(), (uuid, name) -> new WhitelistedPlayer(uuid, name, true)));
+        } catch (SQLException e) {
+            WhitelistSync2.LOGGER.error("Error querying a page of whitelisted players from database!");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+        }
 
-        // TODO: Start job on thread to avoid lag?
-        // Keep track of records.
-        int records = 0;
+        return null;
+    }
+
+    @Override
+    public ArrayList<OppedPlayer> getOppedPlayersPage(String afterName, String afterUuid, String beforeName, String beforeUuid, int offset, int limit) {
+        if (Config.SYNC_OP_LIST.get()) {
+            try {
+                return withConnection(conn -> PageQuery.read(conn, databaseName + ".op", "isOp", afterName, afterUuid,
+                        beforeName, beforeUuid, offset, limit, opJournal.getUuidCodec(), (uuid, name) -> new OppedPlayer(uuid, name, true)));
+            } catch (SQLException e) {
+                WhitelistSync2.LOGGER.error("Error querying a page of opped players from database!");
+                WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            }
+        } else {
+            WhitelistSync2.LOGGER.error("Op list syncing is currently disabled in your config. "
+                    + "Please enable it and restart the server to use this feature.");
+        }
+
+        return null;
+    }
+
+    @Override
+    public int countWhitelistedPlayers() {
         try {
-            // Connect to database.
-            Connection conn = DriverManager.getConnection(url, username, password);
-            long startTime = System.currentTimeMillis();
-            // Loop through local whitelist and insert into database.
-            for (WhitelistedPlayer player : whitelistedPlayers) {
-
-                if (player.getUuid() != null && player.getName() != null) {
-                    PreparedStatement stmt = conn.prepareStatement("INSERT IGNORE INTO " + databaseName + ".whitelist(uuid, name, whitelisted) VALUES (?, ?, true)");
-                    stmt.setString(1, player.getUuid());
-                    stmt.setString(2, player.getName());
-                    stmt.executeUpdate();
-                    stmt.close();
+            return withConnection(conn -> PageQuery.count(conn, databaseName + ".whitelist", "whitelisted"));
+        } catch (SQLException e) {
+            WhitelistSync2.LOGGER.error("Error counting whitelisted players in database!");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+        }
 
-                    records++;
-                }
+        return -1;
+    }
+
+    @Override
+    public int countOppedPlayers() {
+        if (Config.SYNC_OP_LIST.get()) {
+            try {
+                return withConnection(conn -> PageQuery.count(conn, databaseName + ".op", "isOp"));
+            } catch (SQLException e) {
+                WhitelistSync2.LOGGER.error("Error counting opped players in database!");
+                WhitelistSync2.LOGGER.error(e.getMessage(), e);
             }
-            // Record time taken.
-            long timeTaken = System.currentTimeMillis() - startTime;
-            WhitelistSync2.LOGGER.debug("Whitelist table updated | Took " + timeTaken + "ms | Wrote " + records + " records.");
-            conn.close();
+        } else {
+            WhitelistSync2.LOGGER.error("Op list syncing is currently disabled in your config. "
+                    + "Please enable it and restart the server to use this feature.");
+        }
 
-            return true;
+        return -1;
+    }
+
+    @Override
+    public boolean copyLocalWhitelistedPlayersToDatabase(CopyProgressListener listener) {
+        // Load local whitelist to memory.
+        ArrayList<WhitelistedPlayer> whitelistedPlayers = localState.getWhitelistedPlayers();
+
+        try {
+            return withConnection(conn -> {
+                long startTime = System.currentTimeMillis();
+                // Insert local whitelist into database in chunked batches.
+                int records = whitelistCopy.copy(conn, "INSERT IGNORE INTO " + databaseName + ".whitelist(uuid, name, whitelisted) VALUES (?, ?, true)",
+                        whitelistedPlayers, Config.BULK_COPY_CHUNK_SIZE.get(), listener);
+
+                ringDoorbell();
+
+                // Record time taken.
+                long timeTaken = System.currentTimeMillis() - startTime;
+                WhitelistSync2.LOGGER.debug("Whitelist table updated | Took " + timeTaken + "ms | Wrote " + records + " records.");
+
+                return true;
+            });
         } catch (SQLException e) {
             WhitelistSync2.LOGGER.error("Failed to update database with local records.");
             WhitelistSync2.LOGGER.error(e.getMessage(), e);
@@ -293,37 +816,26 @@ public class MySqlService implements BaseService {
     }
 
     @Override
-    public boolean copyLocalOppedPlayersToDatabase() {
+    public boolean copyLocalOppedPlayersToDatabase(CopyProgressListener listener) {
         // Load local opped players to memory.
-        ArrayList<OppedPlayer> oppedPlayers = OppedPlayersFileUtilities.getOppedPlayers();
+        ArrayList<OppedPlayer> oppedPlayers = localState.getOppedPlayers();
 
         if (Config.SYNC_OP_LIST.get()) {
-            // TODO: Start job on thread to avoid lag?
-            // Keep track of records.
-            int records = 0;
             try {
-                // Connect to database.
-                Connection conn = DriverManager.getConnection(url, username, password);
-                long startTime = System.currentTimeMillis();
-                // Loop through local whitelist and insert into database.
-                for (OppedPlayer player : oppedPlayers) {
+                return withConnection(conn -> {
+                    long startTime = System.currentTimeMillis();
+                    // Insert local opped players into database in chunked batches.
+                    int records = opCopy.copy(conn, "INSERT IGNORE INTO " + databaseName + ".op(uuid, name, isOp) VALUES (?, ?, true)",
+                            oppedPlayers, Config.BULK_COPY_CHUNK_SIZE.get(), listener);
 
-                    if (player.getUuid() != null && player.getName() != null) {
-                        PreparedStatement stmt = conn.prepareStatement("INSERT IGNORE INTO " + databaseName + ".op(uuid, name, isOp) VALUES (?, ?, true)");
-                        stmt.setString(1, player.getUuid());
-                        stmt.setString(2, player.getName());
-                        stmt.executeUpdate();
-                        stmt.close();
+                    ringDoorbell();
 
-                        records++;
-                    }
-                }
-                // Record time taken.
-                long timeTaken = System.currentTimeMillis() - startTime;
-                WhitelistSync2.LOGGER.debug("Op table updated | Took " + timeTaken + "ms | Wrote " + records + " records.");
-                conn.close();
+                    // Record time taken.
+                    long timeTaken = System.currentTimeMillis() - startTime;
+                    WhitelistSync2.LOGGER.debug("Op table updated | Took " + timeTaken + "ms | Wrote " + records + " records.");
 
-                return true;
+                    return true;
+                });
             } catch (SQLException e) {
                 WhitelistSync2.LOGGER.error("Failed to update database with local records.");
                 WhitelistSync2.LOGGER.error(e.getMessage(), e);
@@ -337,145 +849,436 @@ public class MySqlService implements BaseService {
     }
 
     @Override
-    public boolean copyDatabaseWhitelistedPlayersToLocal(MinecraftServer server) {
+    public int copyDatabaseWhitelistedPlayersToLocal(MinecraftServer server, boolean fullSync) {
+        long startTime = System.currentTimeMillis();
+        ChangeJournal.PendingRead read;
+
         try {
-            int records = 0;
+            read = withConnection(conn -> {
+                // One row says whether any server wrote the table since this server last read it
+                ChangeJournal.PendingRead whitelistRead = readWhitelistChanges(conn, fullSync, whitelistJournal.readRevision(conn));
+                whitelistJournal.compactIfDue(conn);
 
-            // Open connection
-            Connection conn = DriverManager.getConnection(url, username, password);
-            long startTime = System.currentTimeMillis();
+                return whitelistRead;
+            });
+        } catch (SQLException e) {
+            WhitelistSync2.LOGGER.error("Error querying whitelisted players from database!");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            return -1;
+        }
 
-            String sql = "SELECT name, uuid, whitelisted FROM " + databaseName + ".whitelist";
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            ResultSet rs = stmt.executeQuery();
-
-            ArrayList<WhitelistedPlayer> localWhitelistedPlayers = WhitelistedPlayersFileUtilities.getWhitelistedPlayers();
-
-            while (rs.next()) {
-                String uuid = rs.getString("uuid");
-                String name = rs.getString("name");
-                int whitelisted = rs.getInt("whitelisted");
-
-                GameProfile player = new GameProfile(UUID.fromString(uuid), name);
-
-                if (whitelisted == 1) {
-                    if (localWhitelistedPlayers.stream().noneMatch(o -> o.getUuid().equals(uuid))) {
-                        try {
-                            server.getPlayerList().getWhiteList().add(new WhitelistEntry(player));
-                            WhitelistSync2.LOGGER.debug("Added " + name + " to whitelist.");
-                            records++;
-                        } catch (NullPointerException e) {
-                            WhitelistSync2.LOGGER.error("Player is null?");
-                            WhitelistSync2.LOGGER.error(e.getMessage(), e);
-                        }
-                    }
-                } else {
-                    if (localWhitelistedPlayers.stream().anyMatch(o -> o.getUuid().equals(uuid))) {
-                        server.getPlayerList().getWhiteList().remove(player);
-                        WhitelistSync2.LOGGER.debug("Removed " + name + " from whitelist.");
-                        records++;
+        // Applied once the database is released, the server thread may be waiting on it
+        int records = localState.applyWhitelistChanges(server, read.getChanges());
+        if (records < 0) {
+            WhitelistSync2.LOGGER.error("Failed to apply whitelist changes from database, the next sync reads them again.");
+            return -1;
+        }
+        // Only now, so changes that weren't applied aren't skipped by the next sync
+        whitelistJournal.commit(read);
+
+        long timeTaken = System.currentTimeMillis() - startTime;
+        WhitelistSync2.LOGGER.debug("Copied whitelist database to local | Took " + timeTaken + "ms | Wrote " + records + " records.");
+        return records;
+    }
+
+    @Override
+    public int copyDatabaseToLocal(MinecraftServer server, boolean fullSync) {
+        long startTime = System.currentTimeMillis();
+        boolean syncOps = Config.SYNC_OP_LIST.get();
+        ChangeJournal.PendingRead[] reads;
+
+        try {
+            reads = withConnection(conn -> {
+                ChangeJournal.PendingRead whitelistRead;
+                ChangeJournal.PendingRead opRead = null;
+
+                // Both lists are read in one read only transaction, which sees a single snapshot at the default
+                // REPEATABLE READ isolation
+                Statement stmt = conn.createStatement();
+                stmt.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT, READ ONLY");
+                try {
+                    // One query for the revisions of both tables
+                    Map<String, Long> revisions = ChangeJournal.readRevisions(conn, databaseName + ".sync_revision");
+                    whitelistRead = readWhitelistChanges(conn, fullSync, whitelistJournal.getRevision(revisions));
+                    if (syncOps) {
+                        opRead = readOpChanges(conn, fullSync, opJournal.getRevision(revisions));
                     }
+                    stmt.execute("COMMIT");
+                } catch (SQLException e) {
+                    stmt.execute("ROLLBACK");
+                    throw e;
+                } finally {
+                    stmt.close();
                 }
 
-            }
-            long timeTaken = System.currentTimeMillis() - startTime;
-            WhitelistSync2.LOGGER.debug("Copied whitelist database to local | Took " + timeTaken + "ms | Wrote " + records + " records.");
+                // Compacting writes, so it runs after the read only transaction
+                whitelistJournal.compactIfDue(conn);
+                if (syncOps) {
+                    opJournal.compactIfDue(conn);
+                }
 
-            rs.close();
-            stmt.close();
-            conn.close();
-            return true;
+                return new ChangeJournal.PendingRead[] {whitelistRead, opRead};
+            });
         } catch (SQLException e) {
-            WhitelistSync2.LOGGER.error("Error querying whitelisted players from database!");
+            WhitelistSync2.LOGGER.error("Error querying whitelisted and opped players from database!");
             WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            return -1;
+        }
+        ChangeJournal.PendingRead whitelistRead = reads[0];
+        ChangeJournal.PendingRead opRead = reads[1];
+
+        // Applied once the database is released, the server thread may be waiting on it
+        List<LocalStateProvider.PendingChange> opChanges = opRead != null ? opRead.getChanges() : new ArrayList<>();
+        int records = localState.applyChanges(server, whitelistRead.getChanges(), opChanges);
+        if (records < 0) {
+            WhitelistSync2.LOGGER.error("Failed to apply whitelist and op changes from database, the next sync reads them again.");
+            return -1;
+        }
+        // Neither list moves on unless both were applied
+        whitelistJournal.commit(whitelistRead);
+        if (opRead != null) {
+            opJournal.commit(opRead);
         }
 
-        return false;
+        long timeTaken = System.currentTimeMillis() - startTime;
+        WhitelistSync2.LOGGER.debug("Copied whitelist and op database to local | Took " + timeTaken + "ms | Wrote " + records + " records.");
+        return records;
+    }
+
+    // Reads the changes since the last sync, from the journal if possible. Skips the table if its revision hasn't changed.
+    // Nothing moves past them until the returned read is committed.
+    private ChangeJournal.PendingRead readWhitelistChanges(Connection conn, boolean fullSync, long revision) throws SQLException {
+        ChangeJournal.PendingRead read = whitelistJournal.startRead(revision);
+        if (!fullSync && whitelistJournal.isUnchanged(revision)) {
+            Metrics.TABLES_UNCHANGED.increment();
+        } else if (!fullSync && whitelistJournal.isTailing()) {
+            // Read only the journal entries written since the last sync
+            for (ChangeJournal.Change change : whitelistJournal.readNewChanges(conn, read)) {
+                GameProfile player = change.toProfile();
+                if (player != null) {
+                    read.getChanges().add(new LocalStateProvider.PendingChange(player, change.state));
+                }
+            }
+        } else {
+            // Find the journal position before reading the table so nothing written meanwhile is missed
+            long journalStart = Config.USE_CHANGE_JOURNAL.get() ? whitelistJournal.findStartPosition(conn) : -1;
+            readWhitelistTableChanges(conn, fullSync, read);
+            if (journalStart >= 0) {
+                read.startAt(journalStart);
+            }
+        }
+        return read;
+    }
+
+    // Diffs the whitelist table against the local whitelist, adding the rows that differ to the read
+    private void readWhitelistTableChanges(Connection conn, boolean fullSync, ChangeJournal.PendingRead read) throws SQLException {
+        // Only pull rows changed since the last sync, unless a full sync was asked for
+        long highWater = read.getHighWater();
+        boolean delta = !fullSync && highWater > 0;
+
+        String sql = "SELECT name, uuid, whitelisted, updated_at FROM " + databaseName + ".whitelist"
+                + (delta ? " WHERE updated_at >= ?" : "");
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        if (delta) {
+            stmt.setTimestamp(1, new Timestamp(highWater - SYNC_OVERLAP_MILLIS));
+        }
+        ResultSet rs = stmt.executeQuery();
+
+        // Index the local whitelist by UUID so each row is a constant-time lookup
+        UuidSet localWhitelisted = localState.getWhitelistedUuids();
+
+        UuidCodec uuidCodec = UuidCodec.of(rs, "uuid");
+        long[] bits = new long[2];
+
+        int records = 0;
+        while (rs.next()) {
+            records++;
+            highWater = Math.max(highWater, rs.getTimestamp("updated_at").getTime());
+            int whitelisted = rs.getInt("whitelisted");
+
+            try {
+                uuidCodec.read(rs, "uuid", bits);
+            } catch (IllegalArgumentException e) {
+                WhitelistSync2.LOGGER.error("Skipping whitelist row with invalid uuid. " + e.getMessage());
+                continue;
+            }
+            long msb = bits[0];
+            long lsb = bits[1];
+
+            // Rows that already match the local list need no further work
+            if ((whitelisted == 1) == localWhitelisted.contains(msb, lsb)) {
+                continue;
+            }
+
+            // The index reflects the last saved file, the live list is checked again when the changes are applied
+            GameProfile player = new GameProfile(new UUID(msb, lsb), rs.getString("name"));
+            read.getChanges().add(new LocalStateProvider.PendingChange(player, whitelisted == 1));
+        }
+        read.setHighWater(highWater);
+        Metrics.rowsRead("whitelist").add(records);
+
+        rs.close();
+        stmt.close();
     }
 
     @Override
-    public boolean copyDatabaseOppedPlayersToLocal(MinecraftServer server) {
+    public int copyDatabaseOppedPlayersToLocal(MinecraftServer server, boolean fullSync) {
         if (Config.SYNC_OP_LIST.get()) {
+            long startTime = System.currentTimeMillis();
+            ChangeJournal.PendingRead read;
 
             try {
-                int records = 0;
+                read = withConnection(conn -> {
+                    // One row says whether any server wrote the table since this server last read it
+                    ChangeJournal.PendingRead opRead = readOpChanges(conn, fullSync, opJournal.readRevision(conn));
+                    opJournal.compactIfDue(conn);
 
-                // Open connection
-                Connection conn = DriverManager.getConnection(url, username, password);
-                long startTime = System.currentTimeMillis();
+                    return opRead;
+                });
+            } catch (SQLException e) {
+                WhitelistSync2.LOGGER.error("Error querying opped players from database!");
+                WhitelistSync2.LOGGER.error(e.getMessage(), e);
+                return -1;
+            }
 
-                String sql = "SELECT name, uuid, isOp FROM " + databaseName + ".op";
-                PreparedStatement stmt = conn.prepareStatement(sql);
-                ResultSet rs = stmt.executeQuery();
+            // Applied once the database is released, the server thread may be waiting on it
+            int records = localState.applyOpChanges(server, read.getChanges());
+            if (records < 0) {
+                WhitelistSync2.LOGGER.error("Failed to apply op changes from database, the next sync reads them again.");
+                return -1;
+            }
+            // Only now, so changes that weren't applied aren't skipped by the next sync
+            opJournal.commit(read);
 
-                ArrayList<OppedPlayer> localOppedPlayers = OppedPlayersFileUtilities.getOppedPlayers();
+            long timeTaken = System.currentTimeMillis() - startTime;
+            WhitelistSync2.LOGGER.debug("Copied op database to local | Took " + timeTaken + "ms | Wrote " + records + " records.");
+            return records;
+        } else {
+            WhitelistSync2.LOGGER.error("Op list syncing is currently disabled in your config. "
+                    + "Please enable it and restart the server to use this feature.");
+        }
 
-                while (rs.next()) {
-                    String uuid = rs.getString("uuid");
-                    String name = rs.getString("name");
-                    int opped = rs.getInt("isOp");
-
-                    GameProfile player = new GameProfile(UUID.fromString(uuid), name);
-
-                    if (opped == 1) {
-                        if (localOppedPlayers.stream().noneMatch(o -> o.getUuid().equals(uuid))) {
-                            try {
-                                server.getPlayerList().op(player);
-                                WhitelistSync2.LOGGER.debug("Opped " + name + ".");
-                                records++;
-                            } catch (NullPointerException e) {
-                                WhitelistSync2.LOGGER.error("Player is null?");
-                                WhitelistSync2.LOGGER.error(e.getMessage(), e);
-                            }
-                        }
-                    } else {
-                        if (localOppedPlayers.stream().anyMatch(o -> o.getUuid().equals(uuid))) {
-                            server.getPlayerList().deop(player);
-                            WhitelistSync2.LOGGER.debug("Deopped " + name + ".");
-                            records++;
-                        }
-                    }
+        return -1;
+    }
 
+    // Reads the changes since the last sync, from the journal if possible. Skips the table if its revision hasn't changed.
+    // Nothing moves past them until the returned read is committed.
+    private ChangeJournal.PendingRead readOpChanges(Connection conn, boolean fullSync, long revision) throws SQLException {
+        ChangeJournal.PendingRead read = opJournal.startRead(revision);
+        if (!fullSync && opJournal.isUnchanged(revision)) {
+            Metrics.TABLES_UNCHANGED.increment();
+        } else if (!fullSync && opJournal.isTailing()) {
+            // Read only the journal entries written since the last sync
+            for (ChangeJournal.Change change : opJournal.readNewChanges(conn, read)) {
+                GameProfile player = change.toProfile();
+                if (player != null) {
+                    read.getChanges().add(new LocalStateProvider.PendingChange(player, change.state));
                 }
-                long timeTaken = System.currentTimeMillis() - startTime;
-                WhitelistSync2.LOGGER.debug("Copied op database to local | Took " + timeTaken + "ms | Wrote " + records + " records.");
+            }
+        } else {
+            // Find the journal position before reading the table so nothing written meanwhile is missed
+            long journalStart = Config.USE_CHANGE_JOURNAL.get() ? opJournal.findStartPosition(conn) : -1;
+            readOpTableChanges(conn, fullSync, read);
+            if (journalStart >= 0) {
+                read.startAt(journalStart);
+            }
+        }
+        return read;
+    }
 
-                rs.close();
-                stmt.close();
-                conn.close();
-                return true;
+    // Diffs the op table against the local op list, adding the rows that differ to the read
+    private void readOpTableChanges(Connection conn, boolean fullSync, ChangeJournal.PendingRead read) throws SQLException {
+        // Only pull rows changed since the last sync, unless a full sync was asked for
+        long highWater = read.getHighWater();
+        boolean delta = !fullSync && highWater > 0;
+
+        String sql = "SELECT name, uuid, isOp, updated_at FROM " + databaseName + ".op"
+                + (delta ? " WHERE updated_at >= ?" : "");
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        if (delta) {
+            stmt.setTimestamp(1, new Timestamp(highWater - SYNC_OVERLAP_MILLIS));
+        }
+        ResultSet rs = stmt.executeQuery();
+
+        // Index the local op list by UUID so each row is a constant-time lookup
+        UuidSet localOpped = localState.getOppedUuids();
+
+        UuidCodec uuidCodec = UuidCodec.of(rs, "uuid");
+        long[] bits = new long[2];
+
+        int records = 0;
+        while (rs.next()) {
+            records++;
+            highWater = Math.max(highWater, rs.getTimestamp("updated_at").getTime());
+            int opped = rs.getInt("isOp");
+
+            try {
+                uuidCodec.read(rs, "uuid", bits);
+            } catch (IllegalArgumentException e) {
+                WhitelistSync2.LOGGER.error("Skipping op row with invalid uuid. " + e.getMessage());
+                continue;
+            }
+            long msb = bits[0];
+            long lsb = bits[1];
+
+            // Rows that already match the local list need no further work
+            if ((opped == 1) == localOpped.contains(msb, lsb)) {
+                continue;
+            }
+
+            // The index reflects the last saved file, the live list is checked again when the changes are applied
+            GameProfile player = new GameProfile(new UUID(msb, lsb), rs.getString("name"));
+            read.getChanges().add(new LocalStateProvider.PendingChange(player, opped == 1));
+        }
+        read.setHighWater(highWater);
+        Metrics.rowsRead("op").add(records);
+
+        rs.close();
+        stmt.close();
+    }
+
+    @Override
+    public Reconciliation.Result reconcileWhitelist(MinecraftServer server, boolean repair) {
+        ArrayList<WhitelistedPlayer> whitelistedPlayers = localState.getWhitelistedPlayers();
+        Reconciliation.Result result;
+
+        try {
+            result = withConnection(conn -> whitelistReconciliation.run(conn, whitelistedPlayers));
+        } catch (SQLException e) {
+            WhitelistSync2.LOGGER.error("Error comparing the whitelist with the database!");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            return null;
+        }
+
+        if (repair) {
+            // Applied once the database is released, the server thread may be waiting on it
+            int repaired = localState.applyWhitelistChanges(server, result.getChanges());
+            if (repaired < 0) {
+                WhitelistSync2.LOGGER.error("Failed to repair the local whitelist.");
+                return null;
+            }
+            result.setRepaired(repaired);
+        }
+        return result;
+    }
+
+    @Override
+    public Reconciliation.Result reconcileOps(MinecraftServer server, boolean repair) {
+        if (Config.SYNC_OP_LIST.get()) {
+            ArrayList<OppedPlayer> oppedPlayers = localState.getOppedPlayers();
+            Reconciliation.Result result;
+
+            try {
+                result = withConnection(conn -> opReconciliation.run(conn, oppedPlayers));
             } catch (SQLException e) {
-                WhitelistSync2.LOGGER.error("Error querying opped players from database!");
+                WhitelistSync2.LOGGER.error("Error comparing the op list with the database!");
                 WhitelistSync2.LOGGER.error(e.getMessage(), e);
+                return null;
+            }
+
+            if (repair) {
+                // Applied once the database is released, the server thread may be waiting on it
+                int repaired = localState.applyOpChanges(server, result.getChanges());
+                if (repaired < 0) {
+                    WhitelistSync2.LOGGER.error("Failed to repair the local op list.");
+                    return null;
+                }
+                result.setRepaired(repaired);
             }
+            return result;
         } else {
             WhitelistSync2.LOGGER.error("Op list syncing is currently disabled in your config. "
                     + "Please enable it and restart the server to use this feature.");
         }
 
-        return false;
+        return null;
+    }
+
+    // MySQL digests the rows itself, so only one row per range is sent
+    private int readDigests(Connection conn, ChangeJournal journal, byte[] prefix, Reconciliation.Digests digests) throws SQLException {
+        UuidCodec uuidCodec = journal.getUuidCodec();
+        // The uuid byte after the prefix
+        String bucket = uuidCodec == UuidCodec.BINARY ? "ORD(SUBSTRING(uuid, " + (prefix.length + 1) + ", 1))"
+                : "CONV(SUBSTRING(uuid, " + (prefix.length * 2 + 1) + ", 2), 16, 10)";
+
+        String table = journal.getStateTable();
+        String sql = "SELECT " + bucket + " AS bucket, COUNT(*) AS players, BIT_XOR(CRC32(uuid)) AS crc_xor, SUM(CRC32(uuid)) AS crc_sum "
+                + "FROM " + table + " WHERE " + journal.getStateColumn() + " = 1 AND uuid >= ? AND uuid <= ? "
+                + "GROUP BY bucket";
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        uuidCodec.bindPrefixRange(stmt, 1, prefix);
+        ResultSet rs = stmt.executeQuery();
+
+        int records = 0;
+        while (rs.next()) {
+            records++;
+            int index = rs.getInt("bucket");
+            if (index >= 0 && index < 256) {
+                digests.set(index, rs.getLong("players"), rs.getLong("crc_xor"), rs.getLong("crc_sum"));
+            }
+        }
+        rs.close();
+        stmt.close();
+
+        Metrics.rowsRead(table).add(records);
+        return records;
+    }
+
+    // Writes a player's state and its journal entry in one transaction
+    private void writeState(Connection conn, ChangeJournal journal, GameProfile player, boolean state) throws SQLException {
+        writeStates(conn, journal, Collections.singletonList(new LocalStateProvider.PendingChange(player, state)));
+    }
+
+    // Writes the states of several players and their journal entries in one transaction
+    private void writeStates(Connection conn, ChangeJournal journal, List<LocalStateProvider.PendingChange> changes) throws SQLException {
+        conn.setAutoCommit(false);
+        try {
+            // Another server may have converted the uuid columns since this one started
+            UuidCodec uuidCodec = journal.checkUuidLayout(conn);
+            String sql = "REPLACE INTO " + journal.getStateTable() + "(uuid, name, " + journal.getStateColumn() + ") VALUES (?, ?, ?)";
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            for (LocalStateProvider.PendingChange change : changes) {
+                uuidCodec.bind(stmt, 1, change.player.getId());
+                stmt.setString(2, change.player.getName());
+                stmt.setBoolean(3, change.state);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            stmt.close();
+
+            journal.record(conn, changes);
+            conn.commit();
+            Metrics.rowsWritten(journal.getStateTable()).add(changes.size());
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+
+        ringDoorbell();
+    }
+
+    // Lets other servers know to sync now
+    private void ringDoorbell() {
+        if (WhitelistSync2.doorbell != null) {
+            WhitelistSync2.doorbell.ring();
+        }
     }
 
     @Override
     public boolean addWhitelistPlayer(GameProfile player) {
         try {
-            // Open connection=
-            Connection conn = DriverManager.getConnection(url, username, password);
-            long startTime = System.currentTimeMillis();
+            return withConnection(conn -> {
+                long startTime = System.currentTimeMillis();
 
-            String sql = "REPLACE INTO " + databaseName + ".whitelist(uuid, name, whitelisted) VALUES (?, ?, true)";
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            stmt.setString(1, player.getId().toString());
-            stmt.setString(2, player.getName());
-            stmt.executeUpdate();
-
-            // Time taken.
-            long timeTaken = System.currentTimeMillis() - startTime;
-            WhitelistSync2.LOGGER.debug("Added " + player.getName() + " to whitelist | Took " + timeTaken + "ms");
-            stmt.close();
-            conn.close();
-            return true;
+                writeState(conn, whitelistJournal, player, true);
 
+                // Time taken.
+                long timeTaken = System.currentTimeMillis() - startTime;
+                WhitelistSync2.LOGGER.debug("Added " + player.getName() + " to whitelist | Took " + timeTaken + "ms");
+                return true;
+            });
         } catch (SQLException e) {
             WhitelistSync2.LOGGER.error("Error adding " + player.getName() + " to whitelist database!");
             WhitelistSync2.LOGGER.error(e.getMessage(), e);
@@ -488,23 +1291,16 @@ public class MySqlService implements BaseService {
     public boolean addOppedPlayer(GameProfile player) {
         if (Config.SYNC_OP_LIST.get()) {
             try {
-                // Open connection=
-                Connection conn = DriverManager.getConnection(url, username, password);
-                long startTime = System.currentTimeMillis();
+                return withConnection(conn -> {
+                    long startTime = System.currentTimeMillis();
 
-                String sql = "REPLACE INTO " + databaseName + ".op(uuid, name, isOp) VALUES (?, ?, true)";
-                PreparedStatement stmt = conn.prepareStatement(sql);
-                stmt.setString(1, player.getId().toString());
-                stmt.setString(2, player.getName());
-                stmt.executeUpdate();
-
-                // Time taken.
-                long timeTaken = System.currentTimeMillis() - startTime;
-                WhitelistSync2.LOGGER.debug("Database opped " + player.getName() + " | Took " + timeTaken + "ms");
-                stmt.close();
-                conn.close();
-                return true;
+                    writeState(conn, opJournal, player, true);
 
+                    // Time taken.
+                    long timeTaken = System.currentTimeMillis() - startTime;
+                    WhitelistSync2.LOGGER.debug("Database opped " + player.getName() + " | Took " + timeTaken + "ms");
+                    return true;
+                });
             } catch (SQLException e) {
                 WhitelistSync2.LOGGER.error("Error opping " + player.getName() + " !");
                 WhitelistSync2.LOGGER.error(e.getMessage(), e);
@@ -520,23 +1316,16 @@ public class MySqlService implements BaseService {
     @Override
     public boolean removeWhitelistPlayer(GameProfile player) {
         try {
-            // Open connection=
-            Connection conn = DriverManager.getConnection(url, username, password);
-            long startTime = System.currentTimeMillis();
+            return withConnection(conn -> {
+                long startTime = System.currentTimeMillis();
 
-            String sql = "REPLACE INTO " + databaseName + ".whitelist(uuid, name, whitelisted) VALUES (?, ?, false)";
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            stmt.setString(1, player.getId().toString());
-            stmt.setString(2, player.getName());
-            stmt.executeUpdate();
-
-            // Time taken.
-            long timeTaken = System.currentTimeMillis() - startTime;
-            WhitelistSync2.LOGGER.debug("Removed " + player.getName() + " from whitelist | Took " + timeTaken + "ms");
-            stmt.close();
-            conn.close();
-            return true;
+                writeState(conn, whitelistJournal, player, false);
 
+                // Time taken.
+                long timeTaken = System.currentTimeMillis() - startTime;
+                WhitelistSync2.LOGGER.debug("Removed " + player.getName() + " from whitelist | Took " + timeTaken + "ms");
+                return true;
+            });
         } catch (SQLException e) {
             WhitelistSync2.LOGGER.error("Error removing " + player.getName() + " to whitelist database!");
             WhitelistSync2.LOGGER.error(e.getMessage(), e);
@@ -549,32 +1338,72 @@ public class MySqlService implements BaseService {
     public boolean removeOppedPlayer(GameProfile player) {
         if (Config.SYNC_OP_LIST.get()) {
             try {
-                // Open connection=
-                Connection conn = DriverManager.getConnection(url, username, password);
+                return withConnection(conn -> {
+                    long startTime = System.currentTimeMillis();
+
+                    writeState(conn, opJournal, player, false);
+
+                    // Time taken.
+                    long timeTaken = System.currentTimeMillis() - startTime;
+                    WhitelistSync2.LOGGER.debug("Deopped " + player.getName() + " | Took " + timeTaken + "ms");
+                    return true;
+                });
+            } catch (SQLException e) {
+                WhitelistSync2.LOGGER.error("Error deopping " + player.getName() + ".");
+                WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            }
+        } else {
+            WhitelistSync2.LOGGER.error("Op list syncing is currently disabled in your config. "
+                    + "Please enable it and restart the server to use this feature.");
+        }
+
+        return false;
+    }
+
+    @Override
+    public WriteResult writeWhitelistStates(List<LocalStateProvider.PendingChange> changes) {
+        try {
+            return withConnection(conn -> {
                 long startTime = System.currentTimeMillis();
 
-                String sql = "REPLACE INTO " + databaseName + ".op(uuid, name, isOp) VALUES (?, ?, false)";
-                PreparedStatement stmt = conn.prepareStatement(sql);
-                stmt.setString(1, player.getId().toString());
-                stmt.setString(2, player.getName());
-                stmt.executeUpdate();
+                writeStates(conn, whitelistJournal, changes);
 
                 // Time taken.
                 long timeTaken = System.currentTimeMillis() - startTime;
-                WhitelistSync2.LOGGER.debug("Deopped " + player.getName() + " | Took " + timeTaken + "ms");
-                stmt.close();
-                conn.close();
-                return true;
+                WhitelistSync2.LOGGER.debug("Wrote " + changes.size() + " whitelist changes | Took " + timeTaken + "ms");
+                return WriteResult.WRITTEN;
+            });
+        } catch (SQLException e) {
+            WhitelistSync2.LOGGER.error("Error writing " + changes.size() + " whitelist changes to the database!");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            return writeResult(e);
+        }
+    }
 
+    @Override
+    public WriteResult writeOpStates(List<LocalStateProvider.PendingChange> changes) {
+        if (Config.SYNC_OP_LIST.get()) {
+            try {
+                return withConnection(conn -> {
+                    long startTime = System.currentTimeMillis();
+
+                    writeStates(conn, opJournal, changes);
+
+                    // Time taken.
+                    long timeTaken = System.currentTimeMillis() - startTime;
+                    WhitelistSync2.LOGGER.debug("Wrote " + changes.size() + " op changes | Took " + timeTaken + "ms");
+                    return WriteResult.WRITTEN;
+                });
             } catch (SQLException e) {
-                WhitelistSync2.LOGGER.error("Error deopping " + player.getName() + ".");
+                WhitelistSync2.LOGGER.error("Error writing " + changes.size() + " op changes to the database!");
                 WhitelistSync2.LOGGER.error(e.getMessage(), e);
+                return writeResult(e);
             }
         } else {
             WhitelistSync2.LOGGER.error("Op list syncing is currently disabled in your config. "
                     + "Please enable it and restart the server to use this feature.");
         }
 
-        return false;
+        return WriteResult.FAILED;
     }
 }
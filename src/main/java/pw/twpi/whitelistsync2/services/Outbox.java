@@ -0,0 +1,184 @@
+package pw.twpi.whitelistsync2.services;
+
+import com.mojang.authlib.GameProfile;
+import pw.twpi.whitelistsync2.WhitelistSync2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * Append-only file of player changes that have not reached the database yet.
+ *
+ * Each change is written and fsynced before the command is told it succeeded, and removed again once the
+ * database has it. Changes left over from a crash or a database outage are loaded when the server starts.
+ * One change per line: seq, list (W or O), uuid, state (1 or 0), queued at (epoch millis), name. Tab separated.
+ */
+class Outbox {
+
+    private final Path path;
+    private FileChannel channel;
+
+    // Guarded by this, in the order they were appended
+    private final List<Entry> entries = new ArrayList<>();
+    private long lastSeq;
+
+    Outbox(Path path) {
+        this.path = path;
+    }
+
+    // Opens the file and returns the changes left in it
+    synchronized List<Entry> open() throws IOException {
+        entries.clear();
+
+        if (Files.exists(path)) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Entry entry = Entry.parse(line);
+                    if (entry != null) {
+                        entries.add(entry);
+                        lastSeq = Math.max(lastSeq, entry.seq);
+                    } else if (!line.isEmpty()) {
+                        // Most likely a line cut off by a crash while it was being written
+                        WhitelistSync2.LOGGER.warn("Skipping unreadable outbox line: " + line);
+                    }
+                }
+            }
+        }
+
+        // Drops anything unreadable so the file only holds whole lines before appending to it
+        rewrite();
+        return new ArrayList<>(entries);
+    }
+
+    // Appends a change and waits for it to reach the disk
+    synchronized Entry append(boolean whitelist, GameProfile player, boolean state) throws IOException {
+        Entry entry = new Entry(++lastSeq, whitelist, player, state, System.currentTimeMillis());
+        channel.write(ByteBuffer.wrap((entry.format() + "\n").getBytes(StandardCharsets.UTF_8)));
+        channel.force(false);
+        entries.add(entry);
+        return entry;
+    }
+
+    // Removes every change up to and including seq, once the database has them
+    synchronized void removeThrough(long seq) throws IOException {
+        remove(entry -> entry.seq <= seq);
+    }
+
+    // Removes one list's changes up to and including seq, leaving the other list's waiting
+    synchronized void removeThrough(long seq, boolean whitelist) throws IOException {
+        remove(entry -> entry.seq <= seq && entry.whitelist == whitelist);
+    }
+
+    private void remove(Predicate<Entry> done) throws IOException {
+        if (!entries.removeIf(done)) {
+            return;
+        }
+
+        if (entries.isEmpty()) {
+            channel.truncate(0);
+            channel.force(false);
+        } else {
+            rewrite();
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    // When the oldest change still waiting was queued, or 0 if none are
+    synchronized long getOldestQueuedAt() {
+        return entries.isEmpty() ? 0 : entries.get(0).queuedAt;
+    }
+
+    synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) { }
+            channel = null;
+        }
+    }
+
+    // Replaces the file with the entries in memory
+    private void rewrite() throws IOException {
+        close();
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder content = new StringBuilder();
+            for (Entry entry : entries) {
+                content.append(entry.format()).append('\n');
+            }
+            out.write(ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8)));
+            out.force(false);
+        }
+
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    static class Entry {
+        final long seq;
+        final boolean whitelist;
+        final GameProfile player;
+        final boolean state;
+        final long queuedAt;
+
+        Entry(long seq, boolean whitelist, GameProfile player, boolean state, long queuedAt) {
+            this.seq = seq;
+            this.whitelist = whitelist;
+            this.player = player;
+            this.state = state;
+            this.queuedAt = queuedAt;
+        }
+
+        String format() {
+            return seq + "\t" + (whitelist ? "W" : "O") + "\t" + player.getId() + "\t" + (state ? "1" : "0")
+                    + "\t" + queuedAt + "\t" + player.getName();
+        }
+
+        // Returns null if the line isn't a whole entry
+        static Entry parse(String line) {
+            String[] fields = line.split("\t", 6);
+            if (fields.length != 6) {
+                return null;
+            }
+
+            try {
+                if (!fields[1].equals("W") && !fields[1].equals("O")) {
+                    return null;
+                }
+                if (!fields[3].equals("1") && !fields[3].equals("0")) {
+                    return null;
+                }
+
+                GameProfile player = new GameProfile(UUID.fromString(fields[2]), fields[5]);
+                return new Entry(Long.parseLong(fields[0]), fields[1].equals("W"), player, fields[3].equals("1"),
+                        Long.parseLong(fields[4]));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package pw.twpi.whitelistsync2.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.function.BiFunction;
+
+/**
+ * Reads one page of a state table (whitelist or op) ordered by name, for the list commands.
+ *
+ * Pages are found by name instead of by position, so a page deep into the list costs the same as the first
+ * one: "WHERE name > ? ORDER BY name LIMIT ?" walks the (state, name, uuid) index from the given name and
+ * stops after one page. Names aren't unique, so the uuid breaks ties and a page boundary between two players
+ * with the same name neither skips nor repeats either of them. The SQL is the same for MySQL and SQLite.
+ */
+class PageQuery {
+
+    /**
+     * @param table state table, qualified with the database name if needed
+     * @param afterName the page starts after this name, null to start at the first player
+     * @param afterUuid with afterName, the page starts after this player. Null starts after every player with afterName.
+     * @param beforeName the page ends before this name, only used if afterName is null
+     * @param beforeUuid with beforeName, the page ends before this player. Null ends before every player with beforeName.
+     * @param offset players skipped from the first player, only used if both names are null
+     * @param uuidCodec layout of the table's uuid column, for binding the uuids of the cursor
+     * @param toPlayer makes a player from the uuid and name of a row
+     * @return up to limit players in name and uuid order
+     */
+    static <T> ArrayList<T> read(Connection conn, String table, String stateColumn, String afterName, String afterUuid,
+                                 String beforeName, String beforeUuid, int offset, int limit, UuidCodec uuidCodec,
+                                 BiFunction<String, String, T> toPlayer) throws SQLException {
+        // Pages ending before a name are read backwards from it, then put back in order
+        boolean backwards = afterName == null && beforeName != null;
+        String name = backwards ? beforeName : afterName;
+        // A uuid the column can't hold can't be compared with it either, so it goes past the whole name
+        String uuid = backwards ? beforeUuid : afterUuid;
+        if (uuid != null && !uuidCodec.accepts(uuid)) {
+            uuid = null;
+        }
+        String comparison = backwards ? " < ?" : " > ?";
+
+        String sql = "SELECT uuid, name FROM " + table + " WHERE " + stateColumn + " = 1"
+                + (name == null ? "" : uuid == null ? " AND name" + comparison
+                        : " AND (name" + comparison + " OR (name = ? AND uuid" + comparison + "))")
+                + (backwards ? " ORDER BY name DESC, uuid DESC" : " ORDER BY name, uuid")
+                + " LIMIT ?" + (name == null && offset > 0 ? " OFFSET ?" : "");
+
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        int parameter = 1;
+        if (name != null) {
+            stmt.setString(parameter++, name);
+            if (uuid != null) {
+                stmt.setString(parameter++, name);
+                uuidCodec.bind(stmt, parameter++, uuid);
+            }
+        }
+        stmt.setInt(parameter++, limit);
+        if (name == null && offset > 0) {
+            stmt.setInt(parameter, offset);
+        }
+
+        ArrayList<T> players = new ArrayList<>(limit);
+        ResultSet rs = stmt.executeQuery();
+        UuidCodec rowCodec = UuidCodec.of(rs, "uuid");
+        while (rs.next()) {
+            players.add(toPlayer.apply(rowCodec.read(rs, "uuid"), rs.getString("name")));
+        }
+        rs.close();
+        stmt.close();
+
+        if (backwards) {
+            Collections.reverse(players);
+        }
+        Metrics.rowsRead(table).add(players.size());
+        return players;
+    }
+
+    // Number of players in the list, answered from the (state, name, uuid) index
+    static int count(Connection conn, String table, String stateColumn) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM " + table + " WHERE " + stateColumn + " = 1");
+        ResultSet rs = stmt.executeQuery();
+        rs.next();
+        int count = rs.getInt(1);
+        rs.close();
+        stmt.close();
+        return count;
+    }
+
+}
@@ -0,0 +1,316 @@
+package pw.twpi.whitelistsync2.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+import com.mojang.authlib.GameProfile;
+import pw.twpi.whitelistsync2.WhitelistSync2;
+
+/**
+ * Finds where a local list and its state table differ by comparing digests of uuid ranges instead of rows.
+ *
+ * The listed players are split into 256 buckets by the first byte of their uuid, and each bucket into 256 leaves
+ * by the second byte. A range's digest is its number of players and the xor and sum of the CRC32 of each stored
+ * uuid, which MySQL can compute itself. Two lists that match cost one digest row per bucket, then only the leaves
+ * of differing buckets are compared, and only the players of differing leaves are read.
+ *
+ * The database is taken as right, like regular syncs do. The changes that make the local list match it are
+ * returned, the services apply them for a repair.
+ */
+public class Reconciliation<T> {
+
+    // Ranges per level, one per value of a uuid byte
+    private static final int BUCKETS = 256;
+
+    private final String listName;
+    private final ChangeJournal journal;
+    private final Function<T, String> uuidGetter;
+    private final Function<T, String> nameGetter;
+    private final DigestReader digestReader;
+
+    Reconciliation(String listName, ChangeJournal journal, Function<T, String> uuidGetter, Function<T, String> nameGetter, DigestReader digestReader) {
+        this.listName = listName;
+        this.journal = journal;
+        this.uuidGetter = uuidGetter;
+        this.nameGetter = nameGetter;
+        this.digestReader = digestReader;
+    }
+
+    // Compares the local players with the state table
+    Result run(Connection conn, List<T> localPlayers) throws SQLException {
+        long startTime = System.currentTimeMillis();
+        // The ranges and checksums depend on the layout, so make sure it is the current one
+        UuidCodec uuidCodec = journal.checkUuidLayout(conn);
+
+        // Decode the local uuids once, entries with an invalid uuid are left out like syncs leave them out
+        int size = 0;
+        long[] localMsb = new long[localPlayers.size()];
+        long[] localLsb = new long[localPlayers.size()];
+        String[] localNames = new String[localPlayers.size()];
+        for (T player : localPlayers) {
+            String uuid = uuidGetter.apply(player);
+            if (uuid == null) {
+                continue;
+            }
+            try {
+                localMsb[size] = UuidSet.mostSignificantBits(uuid);
+                localLsb[size] = UuidSet.leastSignificantBits(uuid);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            localNames[size++] = nameGetter.apply(player);
+        }
+
+        // Local digests of every leaf, the bucket digests are summed from them
+        Digests localLeaves = new Digests(BUCKETS * BUCKETS);
+        for (int i = 0; i < size; i++) {
+            localLeaves.add(leaf(localMsb[i]), uuidCodec.checksum(localMsb[i], localLsb[i]));
+        }
+        Digests localBuckets = new Digests(BUCKETS);
+        for (int leaf = 0; leaf < BUCKETS * BUCKETS; leaf++) {
+            localBuckets.merge(leaf / BUCKETS, localLeaves, leaf);
+        }
+
+        int rowsRead = 0;
+        int rangesCompared = BUCKETS;
+        Digests buckets = new Digests(BUCKETS);
+        rowsRead += digestReader.read(conn, journal, new byte[0], buckets);
+
+        boolean[] differingLeaves = new boolean[BUCKETS * BUCKETS];
+        int differingLeafCount = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (buckets.matches(bucket, localBuckets, bucket)) {
+                continue;
+            }
+
+            Digests leaves = new Digests(BUCKETS);
+            rowsRead += digestReader.read(conn, journal, new byte[] {(byte) bucket}, leaves);
+            rangesCompared += BUCKETS;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                int leaf = bucket * BUCKETS + i;
+                if (!leaves.matches(i, localLeaves, leaf)) {
+                    differingLeaves[leaf] = true;
+                    differingLeafCount++;
+                }
+            }
+        }
+
+        List<LocalStateProvider.PendingChange> changes = new ArrayList<>();
+        int missingLocally = 0;
+        int notInDatabase = 0;
+        if (differingLeafCount > 0) {
+            // Local players of the differing leaves
+            Map<UUID, String> local = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                if (differingLeaves[leaf(localMsb[i])]) {
+                    local.put(new UUID(localMsb[i], localLsb[i]), localNames[i]);
+                }
+            }
+
+            Map<UUID, String> database = new HashMap<>();
+            for (int leaf = 0; leaf < differingLeaves.length; leaf++) {
+                if (differingLeaves[leaf]) {
+                    rowsRead += readPlayers(conn, uuidCodec, new byte[] {(byte) (leaf / BUCKETS), (byte) leaf}, database);
+                }
+            }
+
+            for (Map.Entry<UUID, String> player : database.entrySet()) {
+                if (!local.containsKey(player.getKey())) {
+                    changes.add(new LocalStateProvider.PendingChange(new GameProfile(player.getKey(), player.getValue()), true));
+                    missingLocally++;
+                }
+            }
+            for (Map.Entry<UUID, String> player : local.entrySet()) {
+                if (!database.containsKey(player.getKey())) {
+                    changes.add(new LocalStateProvider.PendingChange(new GameProfile(player.getKey(), player.getValue()), false));
+                    notInDatabase++;
+                }
+            }
+        }
+
+        long timeTaken = System.currentTimeMillis() - startTime;
+        WhitelistSync2.LOGGER.debug("Compared " + listName + " with database | Took " + timeTaken + "ms | Compared " + rangesCompared
+                + " ranges | Read " + rowsRead + " rows.");
+        return new Result(listName, rangesCompared, differingLeafCount, rowsRead, missingLocally, notInDatabase, changes, timeTaken);
+    }
+
+    // Adds the listed players of the state table whose uuid starts with the prefix to players
+    private int readPlayers(Connection conn, UuidCodec uuidCodec, byte[] prefix, Map<UUID, String> players) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT uuid, name FROM " + journal.getStateTable()
+                + " WHERE " + journal.getStateColumn() + " = 1 AND uuid >= ? AND uuid <= ?");
+        uuidCodec.bindPrefixRange(stmt, 1, prefix);
+        ResultSet rs = stmt.executeQuery();
+        long[] bits = new long[2];
+
+        int records = 0;
+        while (rs.next()) {
+            records++;
+            try {
+                uuidCodec.read(rs, "uuid", bits);
+            } catch (IllegalArgumentException e) {
+                WhitelistSync2.LOGGER.error("Skipping " + listName + " row with invalid uuid. " + e.getMessage());
+                continue;
+            }
+            players.put(new UUID(bits[0], bits[1]), rs.getString("name"));
+        }
+        rs.close();
+        stmt.close();
+
+        Metrics.rowsRead(journal.getStateTable()).add(records);
+        return records;
+    }
+
+    /**
+     * Digests the listed players by reading their uuids, for databases that can't compute CRC32 themselves.
+     * Reads one row per player, so it is only meant for a local database file.
+     */
+    static int digestRows(Connection conn, ChangeJournal journal, byte[] prefix, Digests digests) throws SQLException {
+        UuidCodec uuidCodec = journal.getUuidCodec();
+        PreparedStatement stmt = conn.prepareStatement("SELECT uuid FROM " + journal.getStateTable()
+                + " WHERE " + journal.getStateColumn() + " = 1 AND uuid >= ? AND uuid <= ?");
+        uuidCodec.bindPrefixRange(stmt, 1, prefix);
+        ResultSet rs = stmt.executeQuery();
+        long[] bits = new long[2];
+
+        int records = 0;
+        while (rs.next()) {
+            records++;
+            try {
+                uuidCodec.read(rs, "uuid", bits);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            int bucket = (int) (bits[0] >>> (56 - prefix.length * 8)) & 0xff;
+            digests.add(bucket, uuidCodec.checksum(bits[0], bits[1]));
+        }
+        rs.close();
+        stmt.close();
+
+        Metrics.rowsRead(journal.getStateTable()).add(records);
+        return records;
+    }
+
+    // First two bytes of the uuid
+    private static int leaf(long msb) {
+        return (int) (msb >>> 48) & 0xffff;
+    }
+
+    interface DigestReader {
+        /**
+         * Adds the digests of the listed players whose uuid starts with the prefix to digests, by the uuid byte
+         * after the prefix.
+         * @return the number of rows read
+         */
+        int read(Connection conn, ChangeJournal journal, byte[] prefix, Digests digests) throws SQLException;
+    }
+
+    // Digests of a number of uuid ranges
+    static class Digests {
+        private final long[] counts;
+        private final long[] xors;
+        private final long[] sums;
+
+        Digests(int ranges) {
+            counts = new long[ranges];
+            xors = new long[ranges];
+            sums = new long[ranges];
+        }
+
+        void add(int range, long checksum) {
+            counts[range]++;
+            xors[range] ^= checksum;
+            sums[range] += checksum;
+        }
+
+        void set(int range, long count, long xor, long sum) {
+            counts[range] = count;
+            xors[range] = xor;
+            sums[range] = sum;
+        }
+
+        void merge(int range, Digests other, int otherRange) {
+            counts[range] += other.counts[otherRange];
+            xors[range] ^= other.xors[otherRange];
+            sums[range] += other.sums[otherRange];
+        }
+
+        boolean matches(int range, Digests other, int otherRange) {
+            return counts[range] == other.counts[otherRange]
+                    && xors[range] == other.xors[otherRange]
+                    && sums[range] == other.sums[otherRange];
+        }
+    }
+
+    public static class Result {
+        private final String listName;
+        private final int rangesCompared;
+        private final int differingRanges;
+        private final int rowsRead;
+        private final int missingLocally;
+        private final int notInDatabase;
+        private final List<LocalStateProvider.PendingChange> changes;
+        private final long timeTaken;
+        private int repaired = -1;
+
+        Result(String listName, int rangesCompared, int differingRanges, int rowsRead, int missingLocally, int notInDatabase,
+               List<LocalStateProvider.PendingChange> changes, long timeTaken) {
+            this.listName = listName;
+            this.rangesCompared = rangesCompared;
+            this.differingRanges = differingRanges;
+            this.rowsRead = rowsRead;
+            this.missingLocally = missingLocally;
+            this.notInDatabase = notInDatabase;
+            this.changes = changes;
+            this.timeTaken = timeTaken;
+        }
+
+        public boolean isInSync() {
+            return changes.isEmpty();
+        }
+
+        public int getDifferingRanges() {
+            return differingRanges;
+        }
+
+        public int getMissingLocally() {
+            return missingLocally;
+        }
+
+        public int getNotInDatabase() {
+            return notInDatabase;
+        }
+
+        List<LocalStateProvider.PendingChange> getChanges() {
+            return changes;
+        }
+
+        // Players changed by a repair, -1 if this was only a verify
+        public int getRepaired() {
+            return repaired;
+        }
+
+        void setRepaired(int repaired) {
+            this.repaired = repaired;
+        }
+
+        // One line summary for the commands
+        public String describe() {
+            String stats = " | Took " + timeTaken + "ms | Compared " + rangesCompared + " ranges | Read " + rowsRead + " rows.";
+            if (isInSync()) {
+                return "Local " + listName + " matches the database" + stats;
+            }
+            return "Local " + listName + " differs from the database in " + differingRanges + " ranges: " + missingLocally
+                    + " players missing locally, " + notInDatabase + " not in the database" + stats;
+        }
+    }
+
+}
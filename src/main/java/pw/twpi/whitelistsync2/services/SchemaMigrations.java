@@ -0,0 +1,158 @@
+package pw.twpi.whitelistsync2.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import pw.twpi.whitelistsync2.WhitelistSync2;
+
+/**
+ * Ordered list of schema changes, applied once per database and recorded in the schema_version table.
+ *
+ * A server starting against an up to date database only reads the schema version. Otherwise it takes the
+ * backend's migration lock, so servers starting together don't migrate at the same time, and applies the
+ * migrations newer than the recorded version in order. Each migration is recorded in the same transaction
+ * that applied it. MySQL commits DDL on its own, so the steps are written to be safe to run again.
+ *
+ * Databases made by versions without schema_version start at 0 and run every step, which only adds
+ * what is missing.
+ */
+class SchemaMigrations {
+
+    // Append only, a version is never reused or changed once released
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+            new Migration(1, "Create the whitelist and op tables", Schema::createStateTables),
+            new Migration(2, "Add the updated_at columns", Schema::addUpdatedAtColumns),
+            new Migration(3, "Create the change journals", Schema::createJournalTables),
+            new Migration(4, "Add the sync and list indexes", Schema::createIndexes),
+            new Migration(5, "Drop the unused op columns", Schema::dropUnusedOpColumns),
+            new Migration(6, "Create the revision table", Schema::createRevisionTable),
+            new Migration(7, "Add the uuid to the name indexes", Schema::widenNameIndexes)
+    );
+
+    static int latestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    // Brings the schema up to date
+    static void migrate(Connection conn, Schema schema) throws SQLException {
+        int version = readVersion(conn, schema);
+        if (version >= latestVersion()) {
+            if (version > latestVersion()) {
+                WhitelistSync2.LOGGER.warn("The database schema is at version " + version + ", newer than this version of the mod knows ("
+                        + latestVersion() + "). Update the mod on this server.");
+            }
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        schema.lock(conn);
+        try {
+            schema.createVersionTable(conn);
+
+            // Another server may have migrated while we waited for the lock
+            version = readVersion(conn, schema);
+            int applied = 0;
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version <= version) {
+                    continue;
+                }
+
+                WhitelistSync2.LOGGER.info("Migrating database schema to version " + migration.version + ": " + migration.description + ".");
+                conn.setAutoCommit(false);
+                try {
+                    migration.step.apply(schema, conn);
+
+                    PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + schema.getVersionTable()
+                            + "(version, description, applied_at, applied_by) VALUES (?, ?, ?, ?)");
+                    stmt.setInt(1, migration.version);
+                    stmt.setString(2, migration.description);
+                    stmt.setLong(3, System.currentTimeMillis());
+                    stmt.setString(4, WhitelistSync2.SERVER_ID);
+                    stmt.execute();
+                    stmt.close();
+
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+                applied++;
+            }
+
+            long timeTaken = System.currentTimeMillis() - startTime;
+            WhitelistSync2.LOGGER.info("Database schema is up to date | Took " + timeTaken + "ms | Applied " + applied + " migrations.");
+        } finally {
+            schema.unlock(conn);
+        }
+    }
+
+    // Recorded schema version, 0 if the version table doesn't exist yet
+    private static int readVersion(Connection conn, Schema schema) {
+        try {
+            PreparedStatement stmt = conn.prepareStatement("SELECT MAX(version) FROM " + schema.getVersionTable());
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            int version = rs.getInt(1);
+            rs.close();
+            stmt.close();
+            return version;
+        } catch (SQLException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Backend specific SQL for the migrations, implemented by each service.
+     */
+    interface Schema {
+
+        String getVersionTable();
+
+        // Creates the version table, and the database holding it if needed
+        void createVersionTable(Connection conn) throws SQLException;
+
+        // Waits for and takes the lock that keeps other servers from changing the schema at the same time
+        void lock(Connection conn) throws SQLException;
+
+        void unlock(Connection conn) throws SQLException;
+
+        void createStateTables(Connection conn) throws SQLException;
+
+        void addUpdatedAtColumns(Connection conn) throws SQLException;
+
+        void createJournalTables(Connection conn) throws SQLException;
+
+        void createIndexes(Connection conn) throws SQLException;
+
+        void dropUnusedOpColumns(Connection conn) throws SQLException;
+
+        // One row per state table, starting at revision 0
+        void createRevisionTable(Connection conn) throws SQLException;
+
+        // Makes the list commands' name indexes (state, name, uuid), so pages can break ties between players with the same name
+        void widenNameIndexes(Connection conn) throws SQLException;
+    }
+
+    private interface Step {
+        void apply(Schema schema, Connection conn) throws SQLException;
+    }
+
+    private static class Migration {
+        final int version;
+        final String description;
+        final Step step;
+
+        Migration(int version, String description, Step step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+    }
+
+}
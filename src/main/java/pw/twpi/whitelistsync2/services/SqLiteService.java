@@ -3,16 +3,21 @@ package pw.twpi.whitelistsync2.services;
 import com.mojang.authlib.GameProfile;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import net.minecraft.server.MinecraftServer;
-import net.minecraft.server.management.WhitelistEntry;
 import pw.twpi.whitelistsync2.Config;
 import pw.twpi.whitelistsync2.WhitelistSync2;
-import pw.twpi.whitelistsync2.json.OppedPlayersFileUtilities;
-import pw.twpi.whitelistsync2.json.WhitelistedPlayersFileUtilities;
 import pw.twpi.whitelistsync2.models.OppedPlayer;
 import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
 
@@ -23,6 +28,48 @@ import pw.twpi.whitelistsync2.models.WhitelistedPlayer;
  */
 public class SqLiteService implements BaseService {
 
+    // Current time in epoch milliseconds, evaluated by SQLite so every server sharing the file uses the same clock
+    private static final String NOW_MILLIS = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    // SQLite primary result codes, see writeResult
+    private static final int SQLITE_BUSY = 5;
+    private static final int SQLITE_LOCKED = 6;
+    private static final int SQLITE_IOERR = 10;
+    private static final int SQLITE_CANTOPEN = 14;
+
+    // Long-lived connection shared by every call, guarded by this service's monitor
+    private Connection connection;
+
+    // Change journals and this server's position in them
+    private final ChangeJournal whitelistJournal = new ChangeJournal("whitelist_changes", "whitelist", "whitelisted", NOW_MILLIS, "sync_revision");
+    private final ChangeJournal opJournal = new ChangeJournal("op_changes", "op", "isOp", NOW_MILLIS, "sync_revision");
+
+    // Bulk copy state, kept so a failed copy can resume
+    private final BulkCopy<WhitelistedPlayer> whitelistCopy = new BulkCopy<>("whitelist", whitelistJournal, true, WhitelistedPlayer::getUuid, WhitelistedPlayer::getName);
+    private final BulkCopy<OppedPlayer> opCopy = new BulkCopy<>("op list", opJournal, true, OppedPlayer::getUuid, OppedPlayer::getName);
+
+    // Compares the local lists with the database for the verify and repair commands. SQLite has no CRC32,
+    // the uuids are read and digested here instead, which is cheap since the file is local.
+    private final Reconciliation<WhitelistedPlayer> whitelistReconciliation = new Reconciliation<>("whitelist", whitelistJournal,
+            WhitelistedPlayer::getUuid, WhitelistedPlayer::getName, Reconciliation::digestRows);
+    private final Reconciliation<OppedPlayer> opReconciliation = new Reconciliation<>("op list", opJournal,
+            OppedPlayer::getUuid, OppedPlayer::getName, Reconciliation::digestRows);
+
+    // Local whitelist and op list, read from the live server where possible
+    private final LocalStateProvider localState;
+
+    // Table setup, see SchemaMigrations
+    private final SqLiteSchema schema = new SqLiteSchema();
+
+    public SqLiteService() {
+        this(new LocalStateProvider());
+    }
+
+    // Tools that run the service without a server pass their own local state
+    public SqLiteService(LocalStateProvider localState) {
+        this.localState = localState;
+    }
+
     // Function used to initialize the database file
     @Override
     public boolean initializeDatabase() {
@@ -38,17 +85,18 @@ public class SqLiteService implements BaseService {
             isSuccess = false;
         }
 
-        // If database does not exist, create a new one
-        if (!databaseFile.exists() && isSuccess) {
-            String url = "jdbc:sqlite:" + Config.SQLITE_DATABASE_PATH.get();
+        // Open the long-lived connection, creating the database if it does not exist
+        if (isSuccess) {
+            boolean isNewDatabase = !databaseFile.exists();
             try {
-                Connection conn = DriverManager.getConnection(url);
+                getConnection();
 
-                WhitelistSync2.LOGGER.info("A new database \"" + Config.SQLITE_DATABASE_PATH.get() + "\" has been created.");
-                conn.close();
+                if (isNewDatabase) {
+                    WhitelistSync2.LOGGER.info("A new database \"" + Config.SQLITE_DATABASE_PATH.get() + "\" has been created.");
+                }
             } catch (SQLException e) {
                 // Something is wrong...
-                WhitelistSync2.LOGGER.error("Failed to create new SQLite database file!");
+                WhitelistSync2.LOGGER.error("Failed to open SQLite database file!");
                 WhitelistSync2.LOGGER.error(e.getMessage(), e);
                 isSuccess = false;
             }
@@ -57,32 +105,18 @@ public class SqLiteService implements BaseService {
         // Create whitelist table if it doesn't exist.
         if (isSuccess) {
             try {
-                Connection conn = DriverManager.getConnection("jdbc:sqlite:" + Config.SQLITE_DATABASE_PATH.get());
+                Connection conn = getConnection();
 
                 // If the conn is valid, everything below this will run
                 WhitelistSync2.LOGGER.info("Connected to SQLite database successfully!");
 
-                // SQL statement for creating a new table
-                String sql = "CREATE TABLE IF NOT EXISTS whitelist (\n"
-                        + "	uuid text NOT NULL PRIMARY KEY,\n"
-                        + "	name text,\n"
-                        + " whitelisted integer NOT NULL);";
-                Statement stmt = conn.createStatement();
-                stmt.execute(sql);
-                stmt.close();
+                // Creates or updates the tables. Only reads the schema version if they are up to date.
+                SchemaMigrations.migrate(conn, schema);
 
+                setUpUuidColumns(conn, whitelistJournal);
                 if (Config.SYNC_OP_LIST.get()) {
-                    // SQL statement for creating a new table
-                    sql = "CREATE TABLE IF NOT EXISTS op (\n"
-                            + "	uuid text NOT NULL PRIMARY KEY,\n"
-                            + "	name text,\n"
-                            + " isOp integer NOT NULL);";
-                    Statement stmt2 = conn.createStatement();
-                    stmt2.execute(sql);
-                    stmt2.close();
+                    setUpUuidColumns(conn, opJournal);
                 }
-
-                conn.close();
             } catch (SQLException e) {
                 // Something is wrong...
                 WhitelistSync2.LOGGER.error("Error creating op or whitelist table!\n" + e.getMessage());
@@ -94,8 +128,374 @@ public class SqLiteService implements BaseService {
         return isSuccess;
     }
 
+    private static String stateTableDefinition(String table, String stateColumn, UuidCodec layout) {
+        if (layout == UuidCodec.BINARY) {
+            // Without a rowid the rows are stored in uuid order and every index carries the uuid,
+            // so the indexes made by createIndexes answer the sync and list queries on their own
+            return "CREATE TABLE IF NOT EXISTS " + table + " (\n"
+                    + "	uuid blob NOT NULL PRIMARY KEY,\n"
+                    + "	name text,\n"
+                    + " " + stateColumn + " integer NOT NULL,\n"
+                    + " updated_at integer NOT NULL DEFAULT 0) WITHOUT ROWID;";
+        }
+
+        return "CREATE TABLE IF NOT EXISTS " + table + " (\n"
+                + "	uuid text NOT NULL PRIMARY KEY,\n"
+                + "	name text,\n"
+                + " " + stateColumn + " integer NOT NULL,\n"
+                + " updated_at integer NOT NULL DEFAULT 0);";
+    }
+
+    private static String journalTableDefinition(String table, String stateColumn, UuidCodec layout) {
+        return "CREATE TABLE IF NOT EXISTS " + table + " (\n"
+                + "	seq integer PRIMARY KEY AUTOINCREMENT,\n"
+                + "	uuid " + (layout == UuidCodec.BINARY ? "blob" : "text") + " NOT NULL,\n"
+                + "	name text,\n"
+                + " " + stateColumn + " integer NOT NULL,\n"
+                + " origin text NOT NULL,\n"
+                + " changed_at integer NOT NULL);";
+    }
+
+    // Adds the updated_at column if the table predates change tracking
+    private void addUpdatedAtColumn(Connection conn, String table) throws SQLException {
+        boolean hasColumn = false;
+
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")");
+        while (rs.next()) {
+            if ("updated_at".equalsIgnoreCase(rs.getString("name"))) {
+                hasColumn = true;
+            }
+        }
+        rs.close();
+
+        if (!hasColumn) {
+            // SQLite can't add a column with a non-constant default, old rows start at 0 and get picked up by the first full sync
+            stmt.execute("ALTER TABLE " + table + " ADD COLUMN updated_at integer NOT NULL DEFAULT 0");
+            WhitelistSync2.LOGGER.info("Added \"updated_at\" column to " + table + " table.");
+        }
+        stmt.close();
+    }
+
+    // Indexes for regular syncs, which read rows by updated_at, and for the list commands, which page through
+    // the listed players by name and uuid and count them
+    private void createIndexes(Connection conn, String table, String changesTable, String stateColumn, UuidCodec layout) throws SQLException {
+        // Binary tables cover the whole sync query, text tables keep the index older versions made
+        String updatedAtColumns = layout == UuidCodec.BINARY ? "updated_at, " + stateColumn + ", name" : "updated_at";
+
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE INDEX IF NOT EXISTS " + table + "_updated_at ON " + table + "(" + updatedAtColumns + ")");
+        stmt.execute("CREATE INDEX IF NOT EXISTS " + table + "_name ON " + table + "(" + stateColumn + ", name, uuid)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS " + changesTable + "_changed_at ON " + changesTable + "(changed_at)");
+        stmt.close();
+    }
+
+    private static boolean indexHasColumn(Connection conn, String index, String column) throws SQLException {
+        boolean hasColumn = false;
+
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("PRAGMA index_info(" + index + ")");
+        while (rs.next()) {
+            if (column.equalsIgnoreCase(rs.getString("name"))) {
+                hasColumn = true;
+            }
+        }
+        rs.close();
+        stmt.close();
+
+        return hasColumn;
+    }
+
+    private static UuidCodec readUuidCodec(Connection conn, String table) throws SQLException {
+        UuidCodec codec = UuidCodec.TEXT;
+
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")");
+        while (rs.next()) {
+            if ("uuid".equalsIgnoreCase(rs.getString("name")) && "blob".equalsIgnoreCase(rs.getString("type"))) {
+                codec = UuidCodec.BINARY;
+            }
+        }
+        rs.close();
+        stmt.close();
+
+        return codec;
+    }
+
+    // Finds how a state table and its journal store uuids, converting them to binary first if the config asks for it
+    private void setUpUuidColumns(Connection conn, ChangeJournal journal) throws SQLException {
+        String table = journal.getStateTable();
+        String changesTable = journal.getChangesTable();
+        String stateColumn = journal.getStateColumn();
+        UuidCodec stateCodec = readUuidCodec(conn, table);
+        UuidCodec journalCodec = readUuidCodec(conn, changesTable);
+
+        if (Config.UUID_STORAGE.get() == Config.UuidStorage.BINARY && (stateCodec == UuidCodec.TEXT || journalCodec == UuidCodec.TEXT)) {
+            // Only one server converts, the others wait for it and then find the tables converted
+            schema.lock(conn);
+            try {
+                convertUuidColumns(conn, journal);
+            } finally {
+                schema.unlock(conn);
+            }
+            stateCodec = UuidCodec.BINARY;
+            journalCodec = UuidCodec.BINARY;
+        }
+
+        if (stateCodec != journalCodec) {
+            throw new SQLException("The " + table + " and " + changesTable + " tables store uuids differently. "
+                    + "Set uuidStorage to BINARY to convert both.");
+        }
+        journal.setUuidCodec(stateCodec);
+    }
+
+    // Copies the tables into binary ones while other servers keep using them, then swaps them in
+    private void convertUuidColumns(Connection conn, ChangeJournal journal) throws SQLException {
+        String table = journal.getStateTable();
+        String changesTable = journal.getChangesTable();
+        String stateColumn = journal.getStateColumn();
+
+        // Read again under the lock
+        List<UuidMigration> migrations = new ArrayList<>();
+        if (readUuidCodec(conn, table) == UuidCodec.TEXT) {
+            migrations.add(new UuidMigration(table, table + "_binary", stateTableDefinition(table + "_binary", stateColumn, UuidCodec.BINARY),
+                    Arrays.asList("uuid", "name", stateColumn, "updated_at"), "uuid", "updated_at",
+                    "INSERT OR REPLACE INTO", UuidCodec.TEXT, UuidCodec.BINARY));
+        }
+        if (readUuidCodec(conn, changesTable) == UuidCodec.TEXT) {
+            migrations.add(new UuidMigration(changesTable, changesTable + "_binary", journalTableDefinition(changesTable + "_binary", stateColumn, UuidCodec.BINARY),
+                    Arrays.asList("seq", "uuid", "name", stateColumn, "origin", "changed_at"), "seq", "seq",
+                    "INSERT OR REPLACE INTO", UuidCodec.TEXT, UuidCodec.BINARY));
+        }
+        if (migrations.isEmpty()) {
+            return;
+        }
+
+        WhitelistSync2.LOGGER.info("Converting the " + table + " tables to binary uuids...");
+        long startTime = System.currentTimeMillis();
+
+        Object[] watermarks = new Object[migrations.size()];
+        int records = 0;
+        for (int i = 0; i < migrations.size(); i++) {
+            UuidMigration migration = migrations.get(i);
+            migration.createTarget(conn);
+            watermarks[i] = migration.readWatermark(conn);
+            records += migration.copyAll(conn);
+        }
+
+        // Other servers' writes wait while the rows they wrote meanwhile are copied and the tables are swapped
+        Statement stmt = conn.createStatement();
+        stmt.execute("BEGIN IMMEDIATE");
+        try {
+            for (int i = 0; i < migrations.size(); i++) {
+                UuidMigration migration = migrations.get(i);
+                migration.copyChangedSince(conn, migration.getSource(), migration.getTarget(), watermarks[i]);
+                // Drops the old table's indexes too, createIndexes makes new ones
+                stmt.execute("DROP TABLE " + migration.getSource());
+                stmt.execute("ALTER TABLE " + migration.getTarget() + " RENAME TO " + migration.getSource());
+            }
+            stmt.execute("COMMIT");
+        } catch (SQLException e) {
+            stmt.execute("ROLLBACK");
+            throw e;
+        } finally {
+            stmt.close();
+        }
+        createIndexes(conn, table, changesTable, stateColumn, UuidCodec.BINARY);
+
+        long timeTaken = System.currentTimeMillis() - startTime;
+        WhitelistSync2.LOGGER.info("Converted the " + table + " tables to binary uuids | Took " + timeTaken + "ms | Copied " + records + " records.");
+    }
+
+    private class SqLiteSchema implements SchemaMigrations.Schema {
+
+        // Held while migrating or converting
+        private FileChannel lockChannel;
+        private FileLock lock;
+
+        @Override
+        public String getVersionTable() {
+            return "schema_version";
+        }
+
+        @Override
+        public void createVersionTable(Connection conn) throws SQLException {
+            Statement stmt = conn.createStatement();
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + getVersionTable() + " (\n"
+                    + "	version integer NOT NULL PRIMARY KEY,\n"
+                    + "	description text NOT NULL,\n"
+                    + " applied_at integer NOT NULL,\n"
+                    + " applied_by text NOT NULL);");
+            stmt.close();
+        }
+
+        // SQLite has no named locks, so servers sharing the file take an OS lock on a file next to it.
+        // The OS drops it if the server holding it dies.
+        @Override
+        public void lock(Connection conn) throws SQLException {
+            File lockFile = new File(Config.SQLITE_DATABASE_PATH.get() + ".migrate.lock");
+            try {
+                lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                lock = lockChannel.tryLock();
+                if (lock == null) {
+                    WhitelistSync2.LOGGER.info("Waiting for another server to finish setting up the database...");
+                    lock = lockChannel.lock();
+                }
+            } catch (IOException e) {
+                unlock(conn);
+                throw new SQLException("Failed to lock " + lockFile + ".", e);
+            }
+        }
+
+        @Override
+        public void unlock(Connection conn) throws SQLException {
+            try {
+                if (lock != null) {
+                    lock.release();
+                }
+                if (lockChannel != null) {
+                    lockChannel.close();
+                }
+            } catch (IOException e) {
+                throw new SQLException("Failed to release the schema lock.", e);
+            } finally {
+                lock = null;
+                lockChannel = null;
+            }
+        }
+
+        @Override
+        public void createStateTables(Connection conn) throws SQLException {
+            // New tables get the configured uuid layout
+            UuidCodec layout = Config.UUID_STORAGE.get() == Config.UuidStorage.BINARY ? UuidCodec.BINARY : UuidCodec.TEXT;
+
+            Statement stmt = conn.createStatement();
+            stmt.execute(stateTableDefinition("whitelist", "whitelisted", layout));
+            stmt.execute(stateTableDefinition("op", "isOp", layout));
+            stmt.close();
+        }
+
+        // Tables made by versions before change tracking
+        @Override
+        public void addUpdatedAtColumns(Connection conn) throws SQLException {
+            addUpdatedAtColumn(conn, "whitelist");
+            addUpdatedAtColumn(conn, "op");
+        }
+
+        // Journals store uuids like their state table
+        @Override
+        public void createJournalTables(Connection conn) throws SQLException {
+            Statement stmt = conn.createStatement();
+            stmt.execute(journalTableDefinition("whitelist_changes", "whitelisted", readUuidCodec(conn, "whitelist")));
+            stmt.execute(journalTableDefinition("op_changes", "isOp", readUuidCodec(conn, "op")));
+            stmt.close();
+        }
+
+        @Override
+        public void createIndexes(Connection conn) throws SQLException {
+            SqLiteService.this.createIndexes(conn, "whitelist", "whitelist_changes", "whitelisted", readUuidCodec(conn, "whitelist"));
+            SqLiteService.this.createIndexes(conn, "op", "op_changes", "isOp", readUuidCodec(conn, "op"));
+        }
+
+        // SQLite tables never had the old op columns
+        @Override
+        public void dropUnusedOpColumns(Connection conn) {
+        }
+
+        @Override
+        public void createRevisionTable(Connection conn) throws SQLException {
+            Statement stmt = conn.createStatement();
+            stmt.execute("CREATE TABLE IF NOT EXISTS sync_revision (\n"
+                    + "	table_name text NOT NULL PRIMARY KEY,\n"
+                    + "	revision integer NOT NULL);");
+            stmt.execute("INSERT OR IGNORE INTO sync_revision(table_name, revision) VALUES ('whitelist', 0), ('op', 0)");
+            stmt.close();
+        }
+
+        // Name indexes made before the uuid was added are dropped, createIndexes makes them again
+        @Override
+        public void widenNameIndexes(Connection conn) throws SQLException {
+            for (String table : new String[] {"whitelist", "op"}) {
+                if (!indexHasColumn(conn, table + "_name", "uuid")) {
+                    Statement stmt = conn.createStatement();
+                    stmt.execute("DROP INDEX IF EXISTS " + table + "_name");
+                    stmt.close();
+                }
+            }
+            createIndexes(conn);
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        if (connection != null) {
+            try {
+                connection.close();
+                WhitelistSync2.LOGGER.info("Closed SQLite database connection.");
+            } catch (SQLException e) {
+                WhitelistSync2.LOGGER.error("Error closing SQLite database connection.");
+                WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            }
+            connection = null;
+        }
+    }
+
+    // Returns the shared connection, opening it if it was never opened or has been closed.
+    private synchronized Connection getConnection() throws SQLException {
+        if (connection == null || connection.isClosed()) {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + Config.SQLITE_DATABASE_PATH.get());
+            applyPragmas(connection);
+        }
+
+        return connection;
+    }
+
+    private void applyPragmas(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+
+        // busy_timeout goes first so the journal mode switch waits out a concurrent writer instead of failing
+        stmt.execute("PRAGMA busy_timeout = " + Config.SQLITE_BUSY_TIMEOUT.get());
+
+        // WAL lets readers on other servers keep going while one server writes.
+        // Note: WAL needs shared memory, so the database must be on a local disk and not a network share.
+        ResultSet rs = stmt.executeQuery("PRAGMA journal_mode = WAL");
+        if (rs.next() && !"wal".equalsIgnoreCase(rs.getString(1))) {
+            WhitelistSync2.LOGGER.warn("SQLite refused WAL journaling, staying in " + rs.getString(1) + " mode.");
+        }
+        rs.close();
+
+        stmt.execute("PRAGMA synchronous = " + Config.SQLITE_SYNCHRONOUS.get().name());
+        stmt.execute("PRAGMA mmap_size = " + (Config.SQLITE_MMAP_SIZE.get() * 1024L * 1024L));
+        // Negative cache_size is in KiB rather than pages
+        stmt.execute("PRAGMA cache_size = -" + Config.SQLITE_CACHE_SIZE.get());
+        stmt.close();
+
+        WhitelistSync2.LOGGER.debug("Applied SQLite pragmas to new connection.");
+    }
+
+    @Override
+    public boolean isAvailable() {
+        // The database is a local file
+        return true;
+    }
+
+    // Writes that hit a lock held by another server or couldn't reach the file are worth trying again,
+    // anything else (constraints, mismatched types) would fail the same way. Extended result codes keep
+    // the primary code in the low byte.
+    private static WriteResult writeResult(SQLException e) {
+        switch (e.getErrorCode() & 0xff) {
+            case SQLITE_BUSY:
+            case SQLITE_LOCKED:
+            case SQLITE_IOERR:
+            case SQLITE_CANTOPEN:
+                return WriteResult.RETRY;
+            default:
+                return WriteResult.FAILED;
+        }
+    }
+
     @Override
-    public ArrayList<WhitelistedPlayer> getWhitelistedPlayersFromDatabase() {
+    public synchronized ArrayList<WhitelistedPlayer> getWhitelistedPlayersFromDatabase() {
         // ArrayList for whitelisted players.
         ArrayList<WhitelistedPlayer> whitelistedPlayers = new ArrayList<>();
 
@@ -103,17 +503,17 @@ public class SqLiteService implements BaseService {
             // Keep track of records.
             int records = 0;
 
-            // Connect to database.
-            Connection conn = DriverManager.getConnection("jdbc:sqlite:" + Config.SQLITE_DATABASE_PATH.get());
+            Connection conn = getConnection();
             long startTime = System.currentTimeMillis();
 
             String sql = "SELECT uuid, name, whitelisted FROM whitelist WHERE whitelisted = 1;";
             PreparedStatement stmt = conn.prepareStatement(sql);
             ResultSet rs = stmt.executeQuery();
+            UuidCodec uuidCodec = UuidCodec.of(rs, "uuid");
 
             // Save queried return to names list.
             while (rs.next()) {
-                whitelistedPlayers.add(new WhitelistedPlayer(rs.getString("uuid"), rs.getString("name"), true));
+                whitelistedPlayers.add(new WhitelistedPlayer(uuidCodec.read(rs, "uuid"), rs.getString("name"), true));
                 records++;
             }
 
@@ -121,9 +521,9 @@ public class SqLiteService implements BaseService {
             long timeTaken = System.currentTimeMillis() - startTime;
 
             WhitelistSync2.LOGGER.debug("Database pulled whitelisted players | Took " + timeTaken + "ms | Read " + records + " records.");
+            Metrics.rowsRead("whitelist").add(records);
 
             stmt.close();
-            conn.close();
         } catch (SQLException e) {
             WhitelistSync2.LOGGER.error("Error querying whitelisted players from database!");
             WhitelistSync2.LOGGER.error(e.getMessage(), e);
@@ -133,7 +533,7 @@ public class SqLiteService implements BaseService {
     }
 
     @Override
-    public ArrayList<OppedPlayer> getOppedPlayersFromDatabase() {
+    public synchronized ArrayList<OppedPlayer> getOppedPlayersFromDatabase() {
         // ArrayList for opped players.
         ArrayList<OppedPlayer> oppedPlayers = new ArrayList<>();
 
@@ -142,17 +542,17 @@ public class SqLiteService implements BaseService {
                 // Keep track of records.
                 int records = 0;
 
-                // Connect to database.
-                Connection conn = DriverManager.getConnection("jdbc:sqlite:" + Config.SQLITE_DATABASE_PATH.get());
+                Connection conn = getConnection();
                 long startTime = System.currentTimeMillis();
 
                 String sql = "SELECT uuid, name FROM op WHERE isOp = 1;";
                 PreparedStatement stmt = conn.prepareStatement(sql);
                 ResultSet rs = stmt.executeQuery();
+                UuidCodec uuidCodec = UuidCodec.of(rs, "uuid");
 
                 // Save queried return to names list.
                 while (rs.next()) {
-                    oppedPlayers.add(new OppedPlayer(rs.getString("uuid"), rs.getString("name"), true));
+                    oppedPlayers.add(new OppedPlayer(uuidCodec.read(rs, "uuid"), rs.getString("name"), true));
                     records++;
                 }
 
@@ -160,9 +560,9 @@ public class SqLiteService implements BaseService {
                 long timeTaken = System.currentTimeMillis() - startTime;
 
                 WhitelistSync2.LOGGER.debug("Database pulled opped players | Took " + timeTaken + "ms | Read " + records + " records.");
+                Metrics.rowsRead("op").add(records);
 
                 stmt.close();
-                conn.close();
             } catch (SQLException e) {
                 WhitelistSync2.LOGGER.error("Error querying opped players from database!");
                 WhitelistSync2.LOGGER.error(e.getMessage(), e);
@@ -178,43 +578,91 @@ public class SqLiteService implements BaseService {
 
     @Override
     public ArrayList<WhitelistedPlayer> getWhitelistedPlayersFromLocal() {
-        return WhitelistedPlayersFileUtilities.getWhitelistedPlayers();
+        return localState.getWhitelistedPlayers();
     }
 
     @Override
     public ArrayList<OppedPlayer> getOppedPlayersFromLocal() {
-        return OppedPlayersFileUtilities.getOppedPlayers();
+        return localState.getOppedPlayers();
     }
 
     @Override
-    public boolean copyLocalWhitelistedPlayersToDatabase() {
+    public synchronized ArrayList<WhitelistedPlayer> getWhitelistedPlayersPage(String afterName, String afterUuid, String beforeName, String beforeUuid, int offset, int limit) {
+        try {
+            return PageQuery.read(getConnection(), "whitelist", "whitelisted", afterName, afterUuid,
+                    beforeName, beforeUuid, offset, limit, whitelistJournal.getUuidCodec(), (uuid, name) -> new WhitelistedPlayer(uuid, name, true));
+        } catch (SQLException e) {
+            WhitelistSync2.LOGGER.error("Error querying a page of whitelisted players from database!");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+        }
+
+        return null;
+    }
+
+    @Override
+    public synchronized ArrayList<OppedPlayer> getOppedPlayersPage(String afterName, String afterUuid, String beforeName, String beforeUuid, int offset, int limit) {
+        if (Config.SYNC_OP_LIST.get()) {
+            try {
+                return PageQuery.read(getConnection(), "op", "isOp", afterName, afterUuid,
+                        beforeName, beforeUuid, offset, limit, opJournal.getUuidCodec(), (uuid, name) -> new OppedPlayer(uuid, name, true));
+            } catch (SQLException e) {
+                WhitelistSync2.LOGGER.error("Error querying a page of opped players from database!");
+                WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            }
+        } else {
+            WhitelistSync2.LOGGER.error("Op list syncing is currently disabled in your config. "
+                    + "Please enable it and restart the server to use this feature.");
+        }
+
+        return null;
+    }
+
+    @Override
+    public synchronized int countWhitelistedPlayers() {
+        try {
+            return PageQuery.count(getConnection(), "whitelist", "whitelisted");
+        } catch (SQLException e) {
+            WhitelistSync2.LOGGER.error("Error counting whitelisted players in database!");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+        }
+
+        return -1;
+    }
+
+    @Override
+    public synchronized int countOppedPlayers() {
+        if (Config.SYNC_OP_LIST.get()) {
+            try {
+                return PageQuery.count(getConnection(), "op", "isOp");
+            } catch (SQLException e) {
+                WhitelistSync2.LOGGER.error("Error counting opped players in database!");
+                WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            }
+        } else {
+            WhitelistSync2.LOGGER.error("Op list syncing is currently disabled in your config. "
+                    + "Please enable it and restart the server to use this feature.");
+        }
+
+        return -1;
+    }
+
+    @Override
+    public synchronized boolean copyLocalWhitelistedPlayersToDatabase(CopyProgressListener listener) {
         // Load local whitelist to memory.
-        ArrayList<WhitelistedPlayer> whitelistedPlayers = WhitelistedPlayersFileUtilities.getWhitelistedPlayers();
+        ArrayList<WhitelistedPlayer> whitelistedPlayers = localState.getWhitelistedPlayers();
 
-        // TODO: Start job on thread to avoid lag?
-        // Keep track of records.
-        int records = 0;
         try {
-            // Connect to database.
-            Connection conn = DriverManager.getConnection("jdbc:sqlite:" + Config.SQLITE_DATABASE_PATH.get());
+            Connection conn = getConnection();
             long startTime = System.currentTimeMillis();
-            // Loop through local whitelist and insert into database.
-            for (WhitelistedPlayer player : whitelistedPlayers) {
-
-                if (player.getUuid() != null && player.getName() != null) {
-                    PreparedStatement stmt = conn.prepareStatement("INSERT OR REPLACE INTO whitelist(uuid, name, whitelisted) VALUES (?, ?, 1)");
-                    stmt.setString(1, player.getUuid());
-                    stmt.setString(2, player.getName());
-                    stmt.executeUpdate();
-                    stmt.close();
+            // Insert local whitelist into database in chunked batches.
+            int records = whitelistCopy.copy(conn, "INSERT OR REPLACE INTO whitelist(uuid, name, whitelisted, updated_at) VALUES (?, ?, 1, " + NOW_MILLIS + ")",
+                    whitelistedPlayers, Config.BULK_COPY_CHUNK_SIZE.get(), listener);
+
+            ringDoorbell();
 
-                    records++;
-                }
-            }
             // Record time taken.
             long timeTaken = System.currentTimeMillis() - startTime;
             WhitelistSync2.LOGGER.debug("Whitelist table updated | Took " + timeTaken + "ms | Wrote " + records + " records.");
-            conn.close();
 
             return true;
         } catch (SQLException e) {
@@ -226,35 +674,23 @@ public class SqLiteService implements BaseService {
     }
 
     @Override
-    public boolean copyLocalOppedPlayersToDatabase() {
+    public synchronized boolean copyLocalOppedPlayersToDatabase(CopyProgressListener listener) {
         // Load local opped players to memory.
-        ArrayList<OppedPlayer> oppedPlayers = OppedPlayersFileUtilities.getOppedPlayers();
+        ArrayList<OppedPlayer> oppedPlayers = localState.getOppedPlayers();
 
         if (Config.SYNC_OP_LIST.get()) {
-            // TODO: Start job on thread to avoid lag?
-            // Keep track of records.
-            int records = 0;
             try {
-                // Connect to database.
-                Connection conn = DriverManager.getConnection("jdbc:sqlite:" + Config.SQLITE_DATABASE_PATH.get());
+                Connection conn = getConnection();
                 long startTime = System.currentTimeMillis();
-                // Loop through local opped players and insert into database.
-                for (OppedPlayer player : oppedPlayers) {
+                // Insert local opped players into database in chunked batches.
+                int records = opCopy.copy(conn, "INSERT OR REPLACE INTO op(uuid, name, isOp, updated_at) VALUES (?, ?, 1, " + NOW_MILLIS + ")",
+                        oppedPlayers, Config.BULK_COPY_CHUNK_SIZE.get(), listener);
 
-                    if (player.getUuid() != null && player.getName() != null) {
-                        PreparedStatement stmt = conn.prepareStatement("INSERT OR REPLACE INTO op(uuid, name, isOp) VALUES (?, ?, 1)");
-                        stmt.setString(1, player.getUuid());
-                        stmt.setString(2, player.getName());
-                        stmt.executeUpdate();
-                        stmt.close();
+                ringDoorbell();
 
-                        records++;
-                    }
-                }
                 // Record time taken.
                 long timeTaken = System.currentTimeMillis() - startTime;
                 WhitelistSync2.LOGGER.debug("Op table updated | Took " + timeTaken + "ms | Wrote " + records + " records.");
-                conn.close();
 
                 return true;
             } catch (SQLException e) {
@@ -270,142 +706,408 @@ public class SqLiteService implements BaseService {
     }
 
     @Override
-    public boolean copyDatabaseWhitelistedPlayersToLocal(MinecraftServer server) {
-        try {
-            int records = 0;
+    public int copyDatabaseWhitelistedPlayersToLocal(MinecraftServer server, boolean fullSync) {
+        long startTime = System.currentTimeMillis();
+        ChangeJournal.PendingRead read;
 
-            Connection conn = DriverManager.getConnection("jdbc:sqlite:" + Config.SQLITE_DATABASE_PATH.get());
-            long startTime = System.currentTimeMillis();
+        synchronized (this) {
+            try {
+                Connection conn = getConnection();
 
-            String sql = "SELECT name, uuid, whitelisted FROM whitelist;";
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            ResultSet rs = stmt.executeQuery();
+                // One row says whether any server wrote the table since this server last read it
+                read = readWhitelistChanges(conn, fullSync, whitelistJournal.readRevision(conn));
+                whitelistJournal.compactIfDue(conn);
+            } catch (SQLException e) {
+                WhitelistSync2.LOGGER.error("Error querying whitelisted players from database!");
+                WhitelistSync2.LOGGER.error(e.getMessage(), e);
+                return -1;
+            }
+        }
 
-            ArrayList<WhitelistedPlayer> localWhitelistedPlayers = WhitelistedPlayersFileUtilities.getWhitelistedPlayers();
+        // Applied once the database is released, the server thread may be waiting on it
+        int records = localState.applyWhitelistChanges(server, read.getChanges());
+        if (records < 0) {
+            WhitelistSync2.LOGGER.error("Failed to apply whitelist changes from database, the next sync reads them again.");
+            return -1;
+        }
+        // Only now, so changes that weren't applied aren't skipped by the next sync
+        whitelistJournal.commit(read);
 
-            while (rs.next()) {
-                String uuid = rs.getString("uuid");
-                String name = rs.getString("name");
-                int whitelisted = rs.getInt("whitelisted");
-
-                GameProfile player = new GameProfile(UUID.fromString(uuid), name);
-
-                if (whitelisted == 1) {
-                    if (localWhitelistedPlayers.stream().noneMatch(o -> o.getUuid().equals(uuid))) {
-                        try {
-                            server.getPlayerList().getWhiteList().add(new WhitelistEntry(player));
-                            WhitelistSync2.LOGGER.debug("Added " + name + " to whitelist.");
-                            records++;
-                        } catch (NullPointerException e) {
-                            WhitelistSync2.LOGGER.error("Player is null?");
-                            WhitelistSync2.LOGGER.error(e.getMessage(), e);
-                        }
-                    }
-                } else {
-                    if (localWhitelistedPlayers.stream().anyMatch(o -> o.getUuid().equals(uuid))) {
-                        server.getPlayerList().getWhiteList().remove(player);
-                        WhitelistSync2.LOGGER.debug("Removed " + name + " from whitelist.");
-                        records++;
+        long timeTaken = System.currentTimeMillis() - startTime;
+        WhitelistSync2.LOGGER.debug("Copied whitelist database to local | Took " + timeTaken + "ms | Wrote " + records + " records.");
+        return records;
+    }
+
+    @Override
+    public int copyDatabaseToLocal(MinecraftServer server, boolean fullSync) {
+        long startTime = System.currentTimeMillis();
+        boolean syncOps = Config.SYNC_OP_LIST.get();
+        ChangeJournal.PendingRead whitelistRead;
+        ChangeJournal.PendingRead opRead = null;
+
+        synchronized (this) {
+            try {
+                Connection conn = getConnection();
+
+                // Both lists are read in one transaction, which in WAL mode sees a single snapshot of the file.
+                // Deferred, so it stays a read transaction and doesn't block writers.
+                Statement stmt = conn.createStatement();
+                stmt.execute("BEGIN");
+                try {
+                    // One query for the revisions of both tables
+                    Map<String, Long> revisions = ChangeJournal.readRevisions(conn, "sync_revision");
+                    whitelistRead = readWhitelistChanges(conn, fullSync, whitelistJournal.getRevision(revisions));
+                    if (syncOps) {
+                        opRead = readOpChanges(conn, fullSync, opJournal.getRevision(revisions));
                     }
+                    stmt.execute("COMMIT");
+                } catch (SQLException e) {
+                    stmt.execute("ROLLBACK");
+                    throw e;
+                } finally {
+                    stmt.close();
                 }
 
+                // Compacting writes, which would fail in a read transaction that another server wrote after
+                whitelistJournal.compactIfDue(conn);
+                if (syncOps) {
+                    opJournal.compactIfDue(conn);
+                }
+            } catch (SQLException e) {
+                WhitelistSync2.LOGGER.error("Error querying whitelisted and opped players from database!");
+                WhitelistSync2.LOGGER.error(e.getMessage(), e);
+                return -1;
             }
-            long timeTaken = System.currentTimeMillis() - startTime;
-            WhitelistSync2.LOGGER.debug("Copied whitelist database to local | Took " + timeTaken + "ms | Wrote " + records + " records.");
+        }
 
-            stmt.close();
-            conn.close();
-            return true;
+        // Applied once the database is released, the server thread may be waiting on it
+        List<LocalStateProvider.PendingChange> opChanges = opRead != null ? opRead.getChanges() : new ArrayList<>();
+        int records = localState.applyChanges(server, whitelistRead.getChanges(), opChanges);
+        if (records < 0) {
+            WhitelistSync2.LOGGER.error("Failed to apply whitelist and op changes from database, the next sync reads them again.");
+            return -1;
+        }
+        // Neither list moves on unless both were applied
+        whitelistJournal.commit(whitelistRead);
+        if (opRead != null) {
+            opJournal.commit(opRead);
+        }
 
-        } catch (SQLException e) {
-            WhitelistSync2.LOGGER.error("Error querying whitelisted players from database!");
-            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+        long timeTaken = System.currentTimeMillis() - startTime;
+        WhitelistSync2.LOGGER.debug("Copied whitelist and op database to local | Took " + timeTaken + "ms | Wrote " + records + " records.");
+        return records;
+    }
+
+    // Reads the changes since the last sync, from the journal if possible. Skips the table if its revision hasn't changed.
+    // Nothing moves past them until the returned read is committed.
+    private ChangeJournal.PendingRead readWhitelistChanges(Connection conn, boolean fullSync, long revision) throws SQLException {
+        ChangeJournal.PendingRead read = whitelistJournal.startRead(revision);
+        if (!fullSync && whitelistJournal.isUnchanged(revision)) {
+            Metrics.TABLES_UNCHANGED.increment();
+        } else if (!fullSync && whitelistJournal.isTailing()) {
+            // Read only the journal entries written since the last sync
+            for (ChangeJournal.Change change : whitelistJournal.readNewChanges(conn, read)) {
+                GameProfile player = change.toProfile();
+                if (player != null) {
+                    read.getChanges().add(new LocalStateProvider.PendingChange(player, change.state));
+                }
+            }
+        } else {
+            // Find the journal position before reading the table so nothing written meanwhile is missed
+            long journalStart = Config.USE_CHANGE_JOURNAL.get() ? whitelistJournal.findStartPosition(conn) : -1;
+            readWhitelistTableChanges(conn, fullSync, read);
+            if (journalStart >= 0) {
+                read.startAt(journalStart);
+            }
         }
+        return read;
+    }
 
-        return false;
+    // Diffs the whitelist table against the local whitelist, adding the rows that differ to the read
+    private void readWhitelistTableChanges(Connection conn, boolean fullSync, ChangeJournal.PendingRead read) throws SQLException {
+        // Only pull rows changed since the last sync, unless a full sync was asked for
+        long highWater = read.getHighWater();
+        boolean delta = !fullSync && highWater > 0;
+
+        String sql = "SELECT name, uuid, whitelisted, updated_at FROM whitelist"
+                + (delta ? " WHERE updated_at >= ?" : "");
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        if (delta) {
+            stmt.setLong(1, highWater - SYNC_OVERLAP_MILLIS);
+        }
+        ResultSet rs = stmt.executeQuery();
+
+        // Index the local whitelist by UUID so each row is a constant-time lookup
+        UuidSet localWhitelisted = localState.getWhitelistedUuids();
+
+        UuidCodec uuidCodec = UuidCodec.of(rs, "uuid");
+        long[] bits = new long[2];
+
+        int records = 0;
+        while (rs.next()) {
+            records++;
+            highWater = Math.max(highWater, rs.getLong("updated_at"));
+            int whitelisted = rs.getInt("whitelisted");
+
+            try {
+                uuidCodec.read(rs, "uuid", bits);
+            } catch (IllegalArgumentException e) {
+                WhitelistSync2.LOGGER.error("Skipping whitelist row with invalid uuid. " + e.getMessage());
+                continue;
+            }
+            long msb = bits[0];
+            long lsb = bits[1];
+
+            // Rows that already match the local list need no further work
+            if ((whitelisted == 1) == localWhitelisted.contains(msb, lsb)) {
+                continue;
+            }
+
+            // The index reflects the last saved file, the live list is checked again when the changes are applied
+            GameProfile player = new GameProfile(new UUID(msb, lsb), rs.getString("name"));
+            read.getChanges().add(new LocalStateProvider.PendingChange(player, whitelisted == 1));
+        }
+        read.setHighWater(highWater);
+        Metrics.rowsRead("whitelist").add(records);
+
+        rs.close();
+        stmt.close();
     }
 
     @Override
-    public boolean copyDatabaseOppedPlayersToLocal(MinecraftServer server) {
-
+    public int copyDatabaseOppedPlayersToLocal(MinecraftServer server, boolean fullSync) {
         if (Config.SYNC_OP_LIST.get()) {
+            long startTime = System.currentTimeMillis();
+            ChangeJournal.PendingRead read;
+
+            synchronized (this) {
+                try {
+                    Connection conn = getConnection();
+
+                    // One row says whether any server wrote the table since this server last read it
+                    read = readOpChanges(conn, fullSync, opJournal.readRevision(conn));
+                    opJournal.compactIfDue(conn);
+                } catch (SQLException e) {
+                    WhitelistSync2.LOGGER.error("Error querying opped players from database!");
+                    WhitelistSync2.LOGGER.error(e.getMessage(), e);
+                    return -1;
+                }
+            }
+
+            // Applied once the database is released, the server thread may be waiting on it
+            int records = localState.applyOpChanges(server, read.getChanges());
+            if (records < 0) {
+                WhitelistSync2.LOGGER.error("Failed to apply op changes from database, the next sync reads them again.");
+                return -1;
+            }
+            // Only now, so changes that weren't applied aren't skipped by the next sync
+            opJournal.commit(read);
+
+            long timeTaken = System.currentTimeMillis() - startTime;
+            WhitelistSync2.LOGGER.debug("Copied op database to local | Took " + timeTaken + "ms | Wrote " + records + " records.");
+            return records;
+        } else {
+            WhitelistSync2.LOGGER.error("Op list syncing is currently disabled in your config. "
+                    + "Please enable it and restart the server to use this feature.");
+        }
+
+        return -1;
+    }
+
+    // Reads the changes since the last sync, from the journal if possible. Skips the table if its revision hasn't changed.
+    // Nothing moves past them until the returned read is committed.
+    private ChangeJournal.PendingRead readOpChanges(Connection conn, boolean fullSync, long revision) throws SQLException {
+        ChangeJournal.PendingRead read = opJournal.startRead(revision);
+        if (!fullSync && opJournal.isUnchanged(revision)) {
+            Metrics.TABLES_UNCHANGED.increment();
+        } else if (!fullSync && opJournal.isTailing()) {
+            // Read only the journal entries written since the last sync
+            for (ChangeJournal.Change change : opJournal.readNewChanges(conn, read)) {
+                GameProfile player = change.toProfile();
+                if (player != null) {
+                    read.getChanges().add(new LocalStateProvider.PendingChange(player, change.state));
+                }
+            }
+        } else {
+            // Find the journal position before reading the table so nothing written meanwhile is missed
+            long journalStart = Config.USE_CHANGE_JOURNAL.get() ? opJournal.findStartPosition(conn) : -1;
+            readOpTableChanges(conn, fullSync, read);
+            if (journalStart >= 0) {
+                read.startAt(journalStart);
+            }
+        }
+        return read;
+    }
+
+    // Diffs the op table against the local op list, adding the rows that differ to the read
+    private void readOpTableChanges(Connection conn, boolean fullSync, ChangeJournal.PendingRead read) throws SQLException {
+        // Only pull rows changed since the last sync, unless a full sync was asked for
+        long highWater = read.getHighWater();
+        boolean delta = !fullSync && highWater > 0;
+
+        String sql = "SELECT name, uuid, isOp, updated_at FROM op"
+                + (delta ? " WHERE updated_at >= ?" : "");
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        if (delta) {
+            stmt.setLong(1, highWater - SYNC_OVERLAP_MILLIS);
+        }
+        ResultSet rs = stmt.executeQuery();
+
+        // Index the local op list by UUID so each row is a constant-time lookup
+        UuidSet localOpped = localState.getOppedUuids();
+
+        UuidCodec uuidCodec = UuidCodec.of(rs, "uuid");
+        long[] bits = new long[2];
+
+        int records = 0;
+        while (rs.next()) {
+            records++;
+            highWater = Math.max(highWater, rs.getLong("updated_at"));
+            int opped = rs.getInt("isOp");
 
             try {
-                int records = 0;
+                uuidCodec.read(rs, "uuid", bits);
+            } catch (IllegalArgumentException e) {
+                WhitelistSync2.LOGGER.error("Skipping op row with invalid uuid. " + e.getMessage());
+                continue;
+            }
+            long msb = bits[0];
+            long lsb = bits[1];
 
-                Connection conn = DriverManager.getConnection("jdbc:sqlite:" + Config.SQLITE_DATABASE_PATH.get());
-                long startTime = System.currentTimeMillis();
+            // Rows that already match the local list need no further work
+            if ((opped == 1) == localOpped.contains(msb, lsb)) {
+                continue;
+            }
 
-                String sql = "SELECT name, uuid, isOp FROM op;";
-                PreparedStatement stmt = conn.prepareStatement(sql);
-                ResultSet rs = stmt.executeQuery();
+            // The index reflects the last saved file, the live list is checked again when the changes are applied
+            GameProfile player = new GameProfile(new UUID(msb, lsb), rs.getString("name"));
+            read.getChanges().add(new LocalStateProvider.PendingChange(player, opped == 1));
+        }
+        read.setHighWater(highWater);
+        Metrics.rowsRead("op").add(records);
 
-                ArrayList<OppedPlayer> localOppedPlayers = OppedPlayersFileUtilities.getOppedPlayers();
+        rs.close();
+        stmt.close();
+    }
 
-                while (rs.next()) {
-                    String uuid = rs.getString("uuid");
-                    String name = rs.getString("name");
-                    int opped = rs.getInt("isOp");
-
-                    GameProfile player = new GameProfile(UUID.fromString(uuid), name);
-
-                    if (opped == 1) {
-                        if (localOppedPlayers.stream().noneMatch(o -> o.getUuid().equals(uuid))) {
-                            try {
-                                server.getPlayerList().op(player);
-                                WhitelistSync2.LOGGER.debug("Opped " + name + ".");
-                                records++;
-                            } catch (NullPointerException e) {
-                                WhitelistSync2.LOGGER.error("Player is null?");
-                                WhitelistSync2.LOGGER.error(e.getMessage(), e);
-                            }
-                        }
-                    } else {
-                        if (localOppedPlayers.stream().anyMatch(o -> o.getUuid().equals(uuid))) {
-                            server.getPlayerList().deop(player);
-                            WhitelistSync2.LOGGER.debug("Deopped " + name + ".");
-                            records++;
-                        }
-                    }
-                }
-                long timeTaken = System.currentTimeMillis() - startTime;
-                WhitelistSync2.LOGGER.debug("Copied op database to local | Took " + timeTaken + "ms | Wrote " + records + " records.");
+    @Override
+    public Reconciliation.Result reconcileWhitelist(MinecraftServer server, boolean repair) {
+        ArrayList<WhitelistedPlayer> whitelistedPlayers = localState.getWhitelistedPlayers();
+        Reconciliation.Result result;
 
-                stmt.close();
-                conn.close();
-                return true;
+        synchronized (this) {
+            try {
+                result = whitelistReconciliation.run(getConnection(), whitelistedPlayers);
             } catch (SQLException e) {
-                WhitelistSync2.LOGGER.error("Error querying opped players from database!");
+                WhitelistSync2.LOGGER.error("Error comparing the whitelist with the database!");
                 WhitelistSync2.LOGGER.error(e.getMessage(), e);
+                return null;
+            }
+        }
+
+        if (repair) {
+            // Applied once the database is released, the server thread may be waiting on it
+            int repaired = localState.applyWhitelistChanges(server, result.getChanges());
+            if (repaired < 0) {
+                WhitelistSync2.LOGGER.error("Failed to repair the local whitelist.");
+                return null;
+            }
+            result.setRepaired(repaired);
+        }
+        return result;
+    }
+
+    @Override
+    public Reconciliation.Result reconcileOps(MinecraftServer server, boolean repair) {
+        if (Config.SYNC_OP_LIST.get()) {
+            ArrayList<OppedPlayer> oppedPlayers = localState.getOppedPlayers();
+            Reconciliation.Result result;
+
+            synchronized (this) {
+                try {
+                    result = opReconciliation.run(getConnection(), oppedPlayers);
+                } catch (SQLException e) {
+                    WhitelistSync2.LOGGER.error("Error comparing the op list with the database!");
+                    WhitelistSync2.LOGGER.error(e.getMessage(), e);
+                    return null;
+                }
             }
+
+            if (repair) {
+                // Applied once the database is released, the server thread may be waiting on it
+                int repaired = localState.applyOpChanges(server, result.getChanges());
+                if (repaired < 0) {
+                    WhitelistSync2.LOGGER.error("Failed to repair the local op list.");
+                    return null;
+                }
+                result.setRepaired(repaired);
+            }
+            return result;
         } else {
             WhitelistSync2.LOGGER.error("Op list syncing is currently disabled in your config. "
                     + "Please enable it and restart the server to use this feature.");
         }
 
-        return false;
+        return null;
     }
 
-    @Override
-    public boolean addWhitelistPlayer(GameProfile player) {
+    // Writes a player's state and its journal entry in one transaction
+    private void writeState(Connection conn, ChangeJournal journal, GameProfile player, boolean state) throws SQLException {
+        writeStates(conn, journal, Collections.singletonList(new LocalStateProvider.PendingChange(player, state)));
+    }
+
+    // Writes the states of several players and their journal entries in one transaction
+    private void writeStates(Connection conn, ChangeJournal journal, List<LocalStateProvider.PendingChange> changes) throws SQLException {
+        // Immediate, so the layout check already holds the write lock. A deferred transaction that reads first
+        // fails with SQLITE_BUSY on its first write if another server committed in between, busy_timeout doesn't help.
+        Statement stmt = conn.createStatement();
+        stmt.execute("BEGIN IMMEDIATE");
         try {
-            // Open connection
-            Connection conn = DriverManager.getConnection("jdbc:sqlite:" + Config.SQLITE_DATABASE_PATH.get());
+            // Another server may have converted the uuid columns since this one started
+            UuidCodec uuidCodec = journal.checkUuidLayout(conn);
+            String sql = "INSERT OR REPLACE INTO " + journal.getStateTable() + "(uuid, name, " + journal.getStateColumn() + ", updated_at) "
+                    + "VALUES (?, ?, ?, " + NOW_MILLIS + ")";
+            PreparedStatement insertStmt = conn.prepareStatement(sql);
+            for (LocalStateProvider.PendingChange change : changes) {
+                uuidCodec.bind(insertStmt, 1, change.player.getId());
+                insertStmt.setString(2, change.player.getName());
+                insertStmt.setBoolean(3, change.state);
+                insertStmt.addBatch();
+            }
+            insertStmt.executeBatch();
+            insertStmt.close();
+
+            journal.record(conn, changes);
+            stmt.execute("COMMIT");
+            Metrics.rowsWritten(journal.getStateTable()).add(changes.size());
+        } catch (SQLException e) {
+            stmt.execute("ROLLBACK");
+            throw e;
+        } finally {
+            stmt.close();
+        }
+
+        ringDoorbell();
+    }
+
+    // Lets other servers know to sync now
+    private void ringDoorbell() {
+        if (WhitelistSync2.doorbell != null) {
+            WhitelistSync2.doorbell.ring();
+        }
+    }
 
-            // Start time.
+    @Override
+    public synchronized boolean addWhitelistPlayer(GameProfile player) {
+        try {
+            Connection conn = getConnection();
             long startTime = System.currentTimeMillis();
 
-            String sql = "INSERT OR REPLACE INTO whitelist(uuid, name, whitelisted) VALUES (?, ?, 1)";
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            stmt.setString(1, player.getId().toString());
-            stmt.setString(2, player.getName());
-            stmt.executeUpdate();
+            writeState(conn, whitelistJournal, player, true);
 
             // Time taken.
             long timeTaken = System.currentTimeMillis() - startTime;
             WhitelistSync2.LOGGER.debug("Added " + player.getName() + " to whitelist | Took " + timeTaken + "ms");
-            stmt.close();
-            conn.close();
             return true;
 
         } catch (SQLException e) {
@@ -417,25 +1119,17 @@ public class SqLiteService implements BaseService {
     }
 
     @Override
-    public boolean addOppedPlayer(GameProfile player) {
+    public synchronized boolean addOppedPlayer(GameProfile player) {
         if (Config.SYNC_OP_LIST.get()) {
             try {
-                // Open connection
-                Connection conn = DriverManager.getConnection("jdbc:sqlite:" + Config.SQLITE_DATABASE_PATH.get());
-
-                // Start time.
+                Connection conn = getConnection();
                 long startTime = System.currentTimeMillis();
 
-                PreparedStatement stmt = conn.prepareStatement("INSERT OR REPLACE INTO op(uuid, name, isOp) VALUES (?, ?, 1)");
-                stmt.setString(1, player.getId().toString());
-                stmt.setString(2, player.getName());
-                stmt.executeUpdate();
+                writeState(conn, opJournal, player, true);
 
                 // Time taken.
                 long timeTaken = System.currentTimeMillis() - startTime;
                 WhitelistSync2.LOGGER.debug("Database opped " + player.getName() + " | Took " + timeTaken + "ms");
-                stmt.close();
-                conn.close();
                 return true;
 
             } catch (SQLException e) {
@@ -451,24 +1145,16 @@ public class SqLiteService implements BaseService {
     }
 
     @Override
-    public boolean removeWhitelistPlayer(GameProfile player) {
+    public synchronized boolean removeWhitelistPlayer(GameProfile player) {
         try {
-            // Open connection
-            Connection conn = DriverManager.getConnection("jdbc:sqlite:" + Config.SQLITE_DATABASE_PATH.get());
-
-            // Start time.
+            Connection conn = getConnection();
             long startTime = System.currentTimeMillis();
 
-            PreparedStatement stmt = conn.prepareStatement("INSERT OR REPLACE INTO whitelist(uuid, name, whitelisted) VALUES (?, ?, 0)");
-            stmt.setString(1, player.getId().toString());
-            stmt.setString(2, player.getName());
-            stmt.executeUpdate();
+            writeState(conn, whitelistJournal, player, false);
 
             // Time taken.
             long timeTaken = System.currentTimeMillis() - startTime;
             WhitelistSync2.LOGGER.debug("Removed " + player.getName() + " from whitelist | Took " + timeTaken + "ms");
-            stmt.close();
-            conn.close();
             return true;
 
         } catch (SQLException e) {
@@ -480,25 +1166,17 @@ public class SqLiteService implements BaseService {
     }
 
     @Override
-    public boolean removeOppedPlayer(GameProfile player) {
+    public synchronized boolean removeOppedPlayer(GameProfile player) {
         if (Config.SYNC_OP_LIST.get()) {
             try {
-                // Open connection
-                Connection conn = DriverManager.getConnection("jdbc:sqlite:" + Config.SQLITE_DATABASE_PATH.get());
-
-                // Start time.
+                Connection conn = getConnection();
                 long startTime = System.currentTimeMillis();
 
-                PreparedStatement stmt = conn.prepareStatement("INSERT OR REPLACE INTO op(uuid, name, isOp) VALUES (?, ?, 0)");
-                stmt.setString(1, player.getId().toString());
-                stmt.setString(2, player.getName());
-                stmt.executeUpdate();
+                writeState(conn, opJournal, player, false);
 
-                // Time taken
+                // Time taken.
                 long timeTaken = System.currentTimeMillis() - startTime;
                 WhitelistSync2.LOGGER.debug("Deopped " + player.getName() + " | Took " + timeTaken + "ms");
-                stmt.close();
-                conn.close();
                 return true;
 
             } catch (SQLException e) {
@@ -512,4 +1190,51 @@ public class SqLiteService implements BaseService {
 
         return false;
     }
+
+    @Override
+    public synchronized WriteResult writeWhitelistStates(List<LocalStateProvider.PendingChange> changes) {
+        try {
+            Connection conn = getConnection();
+            long startTime = System.currentTimeMillis();
+
+            writeStates(conn, whitelistJournal, changes);
+
+            // Time taken.
+            long timeTaken = System.currentTimeMillis() - startTime;
+            WhitelistSync2.LOGGER.debug("Wrote " + changes.size() + " whitelist changes | Took " + timeTaken + "ms");
+            return WriteResult.WRITTEN;
+
+        } catch (SQLException e) {
+            WhitelistSync2.LOGGER.error("Error writing " + changes.size() + " whitelist changes to the database!");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            return writeResult(e);
+        }
+    }
+
+    @Override
+    public synchronized WriteResult writeOpStates(List<LocalStateProvider.PendingChange> changes) {
+        if (Config.SYNC_OP_LIST.get()) {
+            try {
+                Connection conn = getConnection();
+                long startTime = System.currentTimeMillis();
+
+                writeStates(conn, opJournal, changes);
+
+                // Time taken.
+                long timeTaken = System.currentTimeMillis() - startTime;
+                WhitelistSync2.LOGGER.debug("Wrote " + changes.size() + " op changes | Took " + timeTaken + "ms");
+                return WriteResult.WRITTEN;
+
+            } catch (SQLException e) {
+                WhitelistSync2.LOGGER.error("Error writing " + changes.size() + " op changes to the database!");
+                WhitelistSync2.LOGGER.error(e.getMessage(), e);
+                return writeResult(e);
+            }
+        } else {
+            WhitelistSync2.LOGGER.error("Op list syncing is currently disabled in your config. "
+                    + "Please enable it and restart the server to use this feature.");
+        }
+
+        return WriteResult.FAILED;
+    }
 }
@@ -0,0 +1,147 @@
+package pw.twpi.whitelistsync2.services;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import pw.twpi.whitelistsync2.WhitelistSync2;
+
+/**
+ * Tells other servers sharing the database that something changed, so they sync right away instead of
+ * waiting for their next poll.
+ *
+ * Rings are single UDP datagrams holding a magic prefix and the sender's server id. They carry no data,
+ * a server that receives one just runs a sync, so a lost datagram only delays a change until the next poll.
+ * Datagrams are only accepted from hosts in the peer list.
+ */
+public class SyncDoorbell {
+
+    private static final byte[] MAGIC = "WLS2".getBytes(StandardCharsets.US_ASCII);
+
+    private final int port;
+    private final List<InetSocketAddress> peers = new ArrayList<>();
+    private final Set<InetAddress> peerHosts = new HashSet<>();
+    private final Runnable onRing;
+
+    private DatagramSocket socket;
+    private Thread listener;
+
+    /**
+     * @param peerAddresses "host:port" of every other server
+     * @param onRing called on the listener thread when a peer rings
+     */
+    public SyncDoorbell(int port, List<? extends String> peerAddresses, Runnable onRing) {
+        this.port = port;
+        this.onRing = onRing;
+
+        for (String address : peerAddresses) {
+            int separator = address.lastIndexOf(':');
+            try {
+                InetSocketAddress peer = new InetSocketAddress(address.substring(0, separator).trim(),
+                        Integer.parseInt(address.substring(separator + 1).trim()));
+                if (peer.isUnresolved()) {
+                    WhitelistSync2.LOGGER.error("Could not resolve doorbell peer \"" + address + "\".");
+                    continue;
+                }
+                peers.add(peer);
+                peerHosts.add(peer.getAddress());
+            } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+                WhitelistSync2.LOGGER.error("Invalid doorbell peer \"" + address + "\", expected host:port.");
+            }
+        }
+    }
+
+    // Binds the socket and starts listening. Returns false if the port could not be bound.
+    public boolean start() {
+        try {
+            socket = new DatagramSocket(port);
+        } catch (SocketException e) {
+            WhitelistSync2.LOGGER.error("Failed to bind sync doorbell to port " + port + ".");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            return false;
+        }
+
+        listener = new Thread(this::listen, "WhitelistSync2-Doorbell");
+        listener.setDaemon(true);
+        listener.start();
+
+        WhitelistSync2.LOGGER.info("Sync doorbell listening on port " + port + " with " + peers.size() + " peers.");
+        return true;
+    }
+
+    // Tells every peer to sync. Never blocks on the network and never throws.
+    public void ring() {
+        DatagramSocket socket = this.socket;
+        if (socket == null) {
+            return;
+        }
+
+        byte[] id = WhitelistSync2.SERVER_ID.getBytes(StandardCharsets.UTF_8);
+        byte[] message = new byte[MAGIC.length + id.length];
+        System.arraycopy(MAGIC, 0, message, 0, MAGIC.length);
+        System.arraycopy(id, 0, message, MAGIC.length, id.length);
+
+        for (InetSocketAddress peer : peers) {
+            try {
+                socket.send(new DatagramPacket(message, message.length, peer));
+            } catch (IOException e) {
+                WhitelistSync2.LOGGER.debug("Failed to ring doorbell of " + peer + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public void close() {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    private void listen() {
+        byte[] buffer = new byte[512];
+        DatagramSocket socket = this.socket;
+
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                // Closed on shutdown
+                break;
+            }
+
+            if (!peerHosts.contains(packet.getAddress()) || !hasMagic(packet)) {
+                continue;
+            }
+
+            String sender = new String(packet.getData(), MAGIC.length, packet.getLength() - MAGIC.length, StandardCharsets.UTF_8);
+            if (sender.equals(WhitelistSync2.SERVER_ID)) {
+                continue;
+            }
+
+            WhitelistSync2.LOGGER.debug("Sync doorbell rung by " + sender + ".");
+            onRing.run();
+        }
+    }
+
+    private static boolean hasMagic(DatagramPacket packet) {
+        if (packet.getLength() < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (packet.getData()[packet.getOffset() + i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,263 @@
+package pw.twpi.whitelistsync2.services;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import net.minecraft.server.MinecraftServer;
+import pw.twpi.whitelistsync2.Config;
+import pw.twpi.whitelistsync2.WhitelistSync2;
+
+
+/**
+ * Runs the regular database to local syncs on a single scheduler thread.
+ *
+ * The interval adapts: it drops to the minimum after a sync that changed something, doubles after each
+ * sync that found nothing or failed, up to the configured timer, and never goes below a multiple of how
+ * long the last sync took. wake() runs a sync right away, for the doorbell and the SQLite file watcher.
+ *
+ * @author Richard Nader, Jr. <rmnader@svsu.edu>
+ */
+public class SyncScheduler {
+
+    // Longest a burst of database writes can hold back a sync
+    private static final long MAX_WATCH_DEBOUNCE_MILLIS = 1000;
+
+    // Shortest gap between the start of two syncs, so a flood of wakes can't hammer the database
+    private static final long MIN_WAKE_GAP_MILLIS = 250;
+
+    // The next sync waits at least this many times as long as the last one took
+    private static final int LATENCY_FACTOR = 10;
+
+    private final MinecraftServer server;
+    private final BaseService service;
+    private final ScheduledExecutorService executor;
+
+    // Watch Listener
+    private FileSystem fileSystem;
+    private WatchService watcher;
+
+    // Guarded by this
+    private ScheduledFuture<?> nextSync;
+    private boolean syncRunning;
+    private boolean wakeRequested;
+    private long intervalMillis;
+    private long lastSyncStart;
+
+    public SyncScheduler(MinecraftServer server, BaseService service) {
+        this.server = server;
+        this.service = service;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WhitelistSync2-Sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public synchronized void start() {
+        intervalMillis = minIntervalMillis();
+        nextSync = executor.schedule(this::runSync, 0, TimeUnit.MILLISECONDS);
+
+        if (Config.DATABASE_MODE.get() == Config.DatabaseMode.SQLITE && Config.SQLITE_WATCH_DATABASE.get()) {
+            startDatabaseWatcher();
+        }
+    }
+
+    // Stops scheduling syncs and waits for a running one to finish, so the service can be shut down after
+    public void stop() {
+        stopDatabaseWatcher();
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                WhitelistSync2.LOGGER.warn("Sync still running after 10 seconds, stopping anyway.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Runs the next sync now instead of after the interval, e.g. when a peer rings the doorbell
+    public synchronized void wake() {
+        // Changes are coming in, so poll quickly for a while
+        intervalMillis = minIntervalMillis();
+
+        if (syncRunning) {
+            wakeRequested = true;
+            return;
+        }
+
+        if (nextSync != null && nextSync.cancel(false)) {
+            long delay = Math.max(0, lastSyncStart + MIN_WAKE_GAP_MILLIS - System.currentTimeMillis());
+            nextSync = schedule(delay);
+        }
+    }
+
+    private void runSync() {
+        if (!server.isRunning()) {
+            return;
+        }
+
+        synchronized (this) {
+            syncRunning = true;
+            wakeRequested = false;
+            lastSyncStart = System.currentTimeMillis();
+        }
+
+        // Failed unless the sync returns
+        int changes = -1;
+        try {
+            if (!service.isAvailable()) {
+                // The database is down, back off until it may be back
+                Metrics.SYNC_SKIPPED.increment();
+            } else {
+                long startNanos = System.nanoTime();
+                // Both lists in one connection checkout and one trip to the server thread
+                changes = service.copyDatabaseToLocal(server, false);
+                Metrics.recordSync(System.nanoTime() - startNanos, changes);
+            }
+        } catch (RuntimeException e) {
+            // The executor would swallow it and never run another sync
+            WhitelistSync2.LOGGER.error("Error syncing from the database!");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+        } finally {
+            reschedule(changes);
+        }
+    }
+
+    // Picks the next sync from how the last one went and schedules it
+    private synchronized void reschedule(int changes) {
+        long took = System.currentTimeMillis() - lastSyncStart;
+        long delay;
+
+        if (changes > 0) {
+            intervalMillis = minIntervalMillis();
+        } else {
+            // Nothing changed or the database is failing, back off
+            intervalMillis = Math.min(maxIntervalMillis(), intervalMillis * 2);
+        }
+        delay = Math.min(maxIntervalMillis(), Math.max(intervalMillis, took * LATENCY_FACTOR));
+
+        if (wakeRequested) {
+            delay = Math.max(0, lastSyncStart + MIN_WAKE_GAP_MILLIS - System.currentTimeMillis());
+        }
+
+        syncRunning = false;
+        if (server.isRunning() && !executor.isShutdown()) {
+            nextSync = schedule(delay);
+        }
+
+        WhitelistSync2.LOGGER.debug("Sync " + (changes < 0 ? "failed" : "made " + changes + " changes")
+                + " | Took " + took + "ms | Next in " + delay + "ms");
+    }
+
+    private ScheduledFuture<?> schedule(long delayMillis) {
+        try {
+            return executor.schedule(this::runSync, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped
+            return null;
+        }
+    }
+
+    private static long minIntervalMillis() {
+        return Math.min(Config.SYNC_INTERVAL_MIN.get() * 1000L, maxIntervalMillis());
+    }
+
+    private static long maxIntervalMillis() {
+        if (Config.DATABASE_MODE.get() == Config.DatabaseMode.SQLITE) {
+            return Config.SQLITE_SERVER_SYNC_TIMER.get() * 1000L;
+        }
+        return Config.MYSQL_SYNC_TIMER.get() * 1000L;
+    }
+
+    // Watches the directory of the SQLite database and wakes the sync when the database or its -wal file is written
+    private void startDatabaseWatcher() {
+        Path database = Paths.get(Config.SQLITE_DATABASE_PATH.get()).toAbsolutePath();
+        String databaseName = database.getFileName().toString();
+
+        try {
+            fileSystem = database.getFileSystem();
+            watcher = fileSystem.newWatchService();
+            database.getParent().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            WhitelistSync2.LOGGER.error("Failed to watch the SQLite database, falling back to the sync timer.");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            return;
+        }
+
+        WatchService databaseWatcher = watcher;
+        Thread watchThread = new Thread(() -> watchDatabase(databaseWatcher, databaseName), "WhitelistSync2-DatabaseWatcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+        WhitelistSync2.LOGGER.debug("Watching " + database + " for changes.");
+    }
+
+    private void watchDatabase(WatchService watcher, String databaseName) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = isDatabaseChange(key, databaseName);
+                key.reset();
+
+                if (!changed) {
+                    continue;
+                }
+
+                // A commit is several writes to the database and its -wal file, so wait for them to settle
+                long deadline = System.currentTimeMillis() + MAX_WATCH_DEBOUNCE_MILLIS;
+                WatchKey next;
+                while (System.currentTimeMillis() < deadline
+                        && (next = watcher.poll(Config.SQLITE_WATCH_DEBOUNCE.get(), TimeUnit.MILLISECONDS)) != null) {
+                    next.pollEvents();
+                    next.reset();
+                }
+
+                wake();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+            // Watcher closed on shutdown
+        }
+    }
+
+    private static boolean isDatabaseChange(WatchKey key, String databaseName) {
+        boolean changed = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                changed = true;
+            } else {
+                String fileName = event.context().toString();
+                if (fileName.equals(databaseName) || fileName.equals(databaseName + "-wal")) {
+                    changed = true;
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    private synchronized void stopDatabaseWatcher() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ignored) { }
+            watcher = null;
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package pw.twpi.whitelistsync2.services;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * How player uuids are stored in the uuid column of the state and journal tables.
+ *
+ * TEXT is the original layout, the 36 character string. BINARY stores the 16 raw bytes, which keeps the
+ * primary key and every secondary index (they all carry the key) less than half the size, and rows are
+ * decoded by reading two longs instead of parsing hex.
+ */
+enum UuidCodec {
+
+    TEXT {
+        @Override
+        void bind(PreparedStatement stmt, int index, String uuid) throws SQLException {
+            stmt.setString(index, uuid);
+        }
+
+        @Override
+        void bind(PreparedStatement stmt, int index, UUID uuid) throws SQLException {
+            stmt.setString(index, uuid.toString());
+        }
+
+        @Override
+        String read(ResultSet rs, String column) throws SQLException {
+            return rs.getString(column);
+        }
+
+        @Override
+        void read(ResultSet rs, String column, long[] bits) throws SQLException {
+            String uuid = rs.getString(column);
+            if (uuid == null) {
+                throw new IllegalArgumentException("Missing uuid");
+            }
+            bits[0] = UuidSet.mostSignificantBits(uuid);
+            bits[1] = UuidSet.leastSignificantBits(uuid);
+        }
+
+        @Override
+        boolean accepts(String uuid) {
+            return true;
+        }
+
+        @Override
+        void bindPrefixRange(PreparedStatement stmt, int index, byte[] prefix) throws SQLException {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : prefix) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            stmt.setString(index, hex.toString());
+            // Sorts after every lowercase hex digit
+            stmt.setString(index + 1, hex.append('g').toString());
+        }
+
+        @Override
+        long checksum(long msb, long lsb) {
+            CRC32 crc = new CRC32();
+            crc.update(new UUID(msb, lsb).toString().getBytes(StandardCharsets.US_ASCII));
+            return crc.getValue();
+        }
+    },
+
+    BINARY {
+        @Override
+        void bind(PreparedStatement stmt, int index, String uuid) throws SQLException {
+            stmt.setBytes(index, UuidSet.toBytes(UuidSet.mostSignificantBits(uuid), UuidSet.leastSignificantBits(uuid)));
+        }
+
+        @Override
+        void bind(PreparedStatement stmt, int index, UUID uuid) throws SQLException {
+            stmt.setBytes(index, UuidSet.toBytes(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+        }
+
+        @Override
+        String read(ResultSet rs, String column) throws SQLException {
+            byte[] uuid = rs.getBytes(column);
+            return uuid == null ? null : new UUID(UuidSet.mostSignificantBits(uuid), UuidSet.leastSignificantBits(uuid)).toString();
+        }
+
+        @Override
+        void read(ResultSet rs, String column, long[] bits) throws SQLException {
+            byte[] uuid = rs.getBytes(column);
+            bits[0] = UuidSet.mostSignificantBits(uuid);
+            bits[1] = UuidSet.leastSignificantBits(uuid);
+        }
+
+        @Override
+        boolean accepts(String uuid) {
+            try {
+                UuidSet.mostSignificantBits(uuid);
+                UuidSet.leastSignificantBits(uuid);
+                return true;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+        @Override
+        void bindPrefixRange(PreparedStatement stmt, int index, byte[] prefix) throws SQLException {
+            byte[] first = new byte[16];
+            byte[] last = new byte[16];
+            Arrays.fill(last, (byte) 0xff);
+            System.arraycopy(prefix, 0, first, 0, prefix.length);
+            System.arraycopy(prefix, 0, last, 0, prefix.length);
+            stmt.setBytes(index, first);
+            stmt.setBytes(index + 1, last);
+        }
+
+        @Override
+        long checksum(long msb, long lsb) {
+            CRC32 crc = new CRC32();
+            crc.update(UuidSet.toBytes(msb, lsb));
+            return crc.getValue();
+        }
+    };
+
+    // Binds a uuid in its string form. Throws IllegalArgumentException if BINARY can't parse it.
+    abstract void bind(PreparedStatement stmt, int index, String uuid) throws SQLException;
+
+    abstract void bind(PreparedStatement stmt, int index, UUID uuid) throws SQLException;
+
+    // Reads a uuid in its string form, null if the column is null
+    abstract String read(ResultSet rs, String column) throws SQLException;
+
+    // Reads the two halves of a uuid into bits without allocating. Throws IllegalArgumentException if the value is invalid.
+    abstract void read(ResultSet rs, String column, long[] bits) throws SQLException;
+
+    // True if the uuid can be stored, TEXT stores anything
+    abstract boolean accepts(String uuid);
+
+    // Binds the first and last stored value of the uuids starting with the prefix bytes, for "uuid >= ? AND uuid <= ?"
+    abstract void bindPrefixRange(PreparedStatement stmt, int index, byte[] prefix) throws SQLException;
+
+    // CRC32 of the stored value, what MySQL's CRC32(uuid) returns for it
+    abstract long checksum(long msb, long lsb);
+
+    /**
+     * Layout of a uuid column by its declared type, BINARY(16) in MySQL and blob in SQLite. Reading it from the
+     * result being decoded is always right, even if another server converted the table after this one started.
+     */
+    static UuidCodec of(ResultSetMetaData metaData, int column) throws SQLException {
+        String type = metaData.getColumnTypeName(column);
+        if (type == null) {
+            return TEXT;
+        }
+        type = type.toUpperCase(Locale.ROOT);
+        return type.contains("BINARY") || type.contains("BLOB") ? BINARY : TEXT;
+    }
+
+    static UuidCodec of(ResultSet rs, String column) throws SQLException {
+        return of(rs.getMetaData(), rs.findColumn(column));
+    }
+
+}
@@ -0,0 +1,185 @@
+package pw.twpi.whitelistsync2.services;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import pw.twpi.whitelistsync2.WhitelistSync2;
+
+/**
+ * Copies a state or journal table into a new table with a different uuid layout while other servers keep using it.
+ *
+ * Rows are copied in chunks of CHUNK_SIZE, each committed on its own so other servers' writes only wait for one
+ * chunk. Rows written meanwhile are found by a column that grows with every write (updated_at or seq) and copied
+ * again with copyChangedSince. The services swap the target table in, since the SQL for that differs.
+ */
+class UuidMigration {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private final String source;
+    private final String target;
+    private final String targetDefinition;
+    private final List<String> columns;
+    private final String keyColumn;
+    private final String watermarkColumn;
+    private final String replaceInto;
+    private final UuidCodec fromCodec;
+    private final UuidCodec toCodec;
+
+    /**
+     * @param targetDefinition CREATE TABLE statement for the target table
+     * @param columns every column to copy, including "uuid"
+     * @param keyColumn unique column the chunks are read in order of
+     * @param watermarkColumn column set to a greater value by every write
+     * @param replaceInto "REPLACE INTO" or "INSERT OR REPLACE INTO"
+     */
+    UuidMigration(String source, String target, String targetDefinition, List<String> columns, String keyColumn, String watermarkColumn,
+                  String replaceInto, UuidCodec fromCodec, UuidCodec toCodec) {
+        this.source = source;
+        this.target = target;
+        this.targetDefinition = targetDefinition;
+        this.columns = columns;
+        this.keyColumn = keyColumn;
+        this.watermarkColumn = watermarkColumn;
+        this.replaceInto = replaceInto;
+        this.fromCodec = fromCodec;
+        this.toCodec = toCodec;
+    }
+
+    String getSource() {
+        return source;
+    }
+
+    String getTarget() {
+        return target;
+    }
+
+    // Creates the target table, dropping what a conversion that failed partway through left behind
+    void createTarget(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("DROP TABLE IF EXISTS " + target);
+        stmt.execute(targetDefinition);
+        stmt.close();
+    }
+
+    // Newest watermark in the source table, null if it is empty
+    Object readWatermark(Connection conn) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT MAX(" + watermarkColumn + ") FROM " + source);
+        ResultSet rs = stmt.executeQuery();
+        rs.next();
+        Object watermark = rs.getObject(1);
+        rs.close();
+        stmt.close();
+        return watermark;
+    }
+
+    // Copies every row of the source table, one committed chunk at a time
+    int copyAll(Connection conn) throws SQLException {
+        String select = "SELECT " + String.join(", ", columns) + " FROM " + source;
+        int records = 0;
+        Object lastKey = null;
+
+        while (true) {
+            PreparedStatement stmt = conn.prepareStatement(select
+                    + (lastKey != null ? " WHERE " + keyColumn + " > ?" : "")
+                    + " ORDER BY " + keyColumn + " LIMIT " + CHUNK_SIZE);
+            if (lastKey != null) {
+                stmt.setObject(1, lastKey);
+            }
+            // Read before writing, so the chunk's transaction only holds the write
+            List<Object[]> rows = readRows(stmt);
+            if (rows.isEmpty()) {
+                return records;
+            }
+            lastKey = rows.get(rows.size() - 1)[columns.indexOf(keyColumn)];
+
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                writeRows(conn, target, rows);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+
+            records += rows.size();
+            if (rows.size() < CHUNK_SIZE) {
+                return records;
+            }
+            WhitelistSync2.LOGGER.info("Converted " + records + " rows of " + source + "...");
+        }
+    }
+
+    /**
+     * Copies the rows written at or after the given watermark, null copies every row. The tables are passed in
+     * since they may have been renamed by then. Runs in the caller's transaction, if any.
+     * @return the number of rows copied
+     */
+    int copyChangedSince(Connection conn, String from, String to, Object watermark) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT " + String.join(", ", columns) + " FROM " + from
+                + (watermark != null ? " WHERE " + watermarkColumn + " >= ?" : ""));
+        if (watermark != null) {
+            stmt.setObject(1, watermark);
+        }
+        List<Object[]> rows = readRows(stmt);
+        writeRows(conn, to, rows);
+        return rows.size();
+    }
+
+    // Reads the rows of a select of the columns, with the uuid in its string form. Closes the statement.
+    private List<Object[]> readRows(PreparedStatement stmt) throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        int uuidIndex = columns.indexOf("uuid");
+
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+            Object[] row = new Object[columns.size()];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = i == uuidIndex ? fromCodec.read(rs, "uuid") : rs.getObject(columns.get(i));
+            }
+            rows.add(row);
+        }
+        rs.close();
+        stmt.close();
+        return rows;
+    }
+
+    // Writes rows to the target table with their uuid re-encoded. Rows with an invalid uuid are skipped.
+    private void writeRows(Connection conn, String table, List<Object[]> rows) throws SQLException {
+        StringBuilder sql = new StringBuilder(replaceInto).append(' ').append(table)
+                .append('(').append(String.join(", ", columns)).append(") VALUES (");
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        PreparedStatement stmt = conn.prepareStatement(sql.append(')').toString());
+        int uuidIndex = columns.indexOf("uuid");
+
+        for (Object[] row : rows) {
+            String uuid = (String) row[uuidIndex];
+            if (uuid == null || !toCodec.accepts(uuid)) {
+                WhitelistSync2.LOGGER.error("Skipping " + source + " row with invalid uuid \"" + uuid + "\".");
+                continue;
+            }
+
+            for (int i = 0; i < row.length; i++) {
+                if (i == uuidIndex) {
+                    toCodec.bind(stmt, i + 1, uuid);
+                } else {
+                    stmt.setObject(i + 1, row[i]);
+                }
+            }
+            stmt.addBatch();
+        }
+        stmt.executeBatch();
+        stmt.close();
+    }
+
+}
@@ -0,0 +1,172 @@
+package pw.twpi.whitelistsync2.services;
+
+import java.util.UUID;
+
+/**
+ * Open-addressing hash set of UUIDs stored as their two 64 bit halves, so lookups don't allocate.
+ * Used to index the local lists when diffing them against database rows.
+ */
+public class UuidSet {
+
+    private long[] mostSigBits;
+    private long[] leastSigBits;
+    private boolean[] used;
+    private int size;
+
+    public UuidSet(int expectedSize) {
+        // Keep the table at most half full
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean add(String uuid) {
+        return add(mostSignificantBits(uuid), leastSignificantBits(uuid));
+    }
+
+    public boolean add(long msb, long lsb) {
+        if ((size + 1) * 2 > used.length) {
+            grow();
+        }
+
+        int mask = used.length - 1;
+        int i = hash(msb, lsb) & mask;
+        while (used[i]) {
+            if (mostSigBits[i] == msb && leastSigBits[i] == lsb) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+
+        used[i] = true;
+        mostSigBits[i] = msb;
+        leastSigBits[i] = lsb;
+        size++;
+        return true;
+    }
+
+    public boolean contains(String uuid) {
+        return contains(mostSignificantBits(uuid), leastSignificantBits(uuid));
+    }
+
+    public boolean contains(long msb, long lsb) {
+        int mask = used.length - 1;
+        int i = hash(msb, lsb) & mask;
+        while (used[i]) {
+            if (mostSigBits[i] == msb && leastSigBits[i] == lsb) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    private void allocate(int capacity) {
+        mostSigBits = new long[capacity];
+        leastSigBits = new long[capacity];
+        used = new boolean[capacity];
+    }
+
+    private void grow() {
+        long[] oldMost = mostSigBits;
+        long[] oldLeast = leastSigBits;
+        boolean[] oldUsed = used;
+
+        allocate(oldUsed.length * 2);
+        size = 0;
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (oldUsed[i]) {
+                add(oldMost[i], oldLeast[i]);
+            }
+        }
+    }
+
+    private static int hash(long msb, long lsb) {
+        // MurmurHash3 finalizer, player UUIDs share their version bits so the raw halves hash poorly
+        long h = msb * 31 + lsb;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+
+    // UUID string decoding without allocating a UUID object.
+    // Only the canonical 36 character form is parsed here, anything else goes through UUID.fromString.
+
+    public static long mostSignificantBits(String uuid) {
+        if (!isCanonical(uuid)) {
+            return UUID.fromString(uuid).getMostSignificantBits();
+        }
+        return (parseHex(uuid, 0, 8) << 32) | (parseHex(uuid, 9, 13) << 16) | parseHex(uuid, 14, 18);
+    }
+
+    public static long leastSignificantBits(String uuid) {
+        if (!isCanonical(uuid)) {
+            return UUID.fromString(uuid).getLeastSignificantBits();
+        }
+        return (parseHex(uuid, 19, 23) << 48) | parseHex(uuid, 24, 36);
+    }
+
+    // Binary form, the two halves big-endian as stored in BINARY(16) and blob uuid columns
+
+    public static long mostSignificantBits(byte[] uuid) {
+        checkLength(uuid);
+        return readLong(uuid, 0);
+    }
+
+    public static long leastSignificantBits(byte[] uuid) {
+        checkLength(uuid);
+        return readLong(uuid, 8);
+    }
+
+    public static byte[] toBytes(long msb, long lsb) {
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (msb >>> (56 - i * 8));
+            bytes[i + 8] = (byte) (lsb >>> (56 - i * 8));
+        }
+        return bytes;
+    }
+
+    private static void checkLength(byte[] uuid) {
+        if (uuid == null || uuid.length != 16) {
+            throw new IllegalArgumentException("Invalid UUID bytes of length " + (uuid == null ? 0 : uuid.length));
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    private static boolean isCanonical(String uuid) {
+        return uuid.length() == 36
+                && uuid.charAt(8) == '-' && uuid.charAt(13) == '-'
+                && uuid.charAt(18) == '-' && uuid.charAt(23) == '-';
+    }
+
+    private static long parseHex(String s, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(s.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid UUID string: " + s);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,413 @@
+package pw.twpi.whitelistsync2.services;
+
+import com.mojang.authlib.GameProfile;
+import pw.twpi.whitelistsync2.Config;
+import pw.twpi.whitelistsync2.WhitelistSync2;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Holds whitelist and op changes for a moment and writes them together, one transaction per list.
+ *
+ * A player changed several times before a flush is written once with the last state, and every caller's
+ * future completes with the result of that write. A flush starts when batchSize players are waiting or
+ * batchDelay milliseconds after the first change, whichever comes first.
+ *
+ * With an outbox, changes are acknowledged as soon as they are on disk. A write that failed because the
+ * database was unreachable or busy is kept and retried with a growing delay, ahead of anything queued since,
+ * and changes still waiting when the server stops are written after the next start. A write the database
+ * refused is logged and dropped, so it can't hold up the changes behind it.
+ */
+public class WriteBehindQueue {
+
+    private final BaseService service;
+    private final int batchSize;
+    private final long batchDelayMillis;
+    private final ScheduledExecutorService executor;
+
+    // Retry delays after a failed write, in milliseconds
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+    // Null when changes are only held in memory
+    private Outbox outbox;
+
+    // Guarded by this
+    private Map<UUID, Mutation> pendingWhitelist = new LinkedHashMap<>();
+    private Map<UUID, Mutation> pendingOps = new LinkedHashMap<>();
+    private int pendingSubmitted;
+    private ScheduledFuture<?> scheduledFlush;
+    private long pendingOutboxSeq;
+    private long retryDelayMillis;
+    private long retryAt;
+
+    // Flush metrics, guarded by this
+    private long flushCount;
+    private long submittedCount;
+    private long writtenCount;
+    private long totalFlushMillis;
+    private long maxFlushMillis;
+
+    public WriteBehindQueue(BaseService service, int batchSize, long batchDelayMillis) {
+        this.service = service;
+        this.batchSize = batchSize;
+        this.batchDelayMillis = batchDelayMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WhitelistSync2-Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Keeps queued changes in an outbox file at path and replays the changes left in it.
+     * Returns false if the file can't be used, in which case changes are only held in memory.
+     */
+    public boolean openOutbox(Path path) {
+        Outbox opened = new Outbox(path);
+        List<Outbox.Entry> leftOver;
+        try {
+            leftOver = opened.open();
+        } catch (IOException e) {
+            WhitelistSync2.LOGGER.error("Failed to open the outbox at " + path + ", changes will wait for the database.");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            opened.close();
+            return false;
+        }
+
+        synchronized (this) {
+            outbox = opened;
+            for (Outbox.Entry entry : leftOver) {
+                pendingOutboxSeq = entry.seq;
+                if (!entry.whitelist && !Config.SYNC_OP_LIST.get()) {
+                    WhitelistSync2.LOGGER.warn("Op list syncing is disabled, not replaying the op change for " + entry.player.getName() + ".");
+                    continue;
+                }
+                queue(entry.whitelist, entry.player, entry.state, null);
+            }
+            if (!leftOver.isEmpty()) {
+                WhitelistSync2.LOGGER.info("Replaying " + leftOver.size() + " changes left in the outbox.");
+                scheduleFlush(0);
+            }
+        }
+        return true;
+    }
+
+    // Queues a whitelist add (true) or removal (false). Completes with whether the database write succeeded.
+    public CompletableFuture<Boolean> writeWhitelist(GameProfile player, boolean whitelisted) {
+        return submit(true, player, whitelisted);
+    }
+
+    // Queues an op (true) or deop (false). Completes with whether the database write succeeded.
+    public CompletableFuture<Boolean> writeOp(GameProfile player, boolean opped) {
+        return submit(false, player, opped);
+    }
+
+    private synchronized CompletableFuture<Boolean> submit(boolean whitelist, GameProfile player, boolean state) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if (executor.isShutdown()) {
+            future.completeExceptionally(new RejectedExecutionException("Write queue is shut down"));
+            return future;
+        }
+
+        if (outbox != null) {
+            // Once the change is on disk it will reach the database, so the caller can go ahead
+            try {
+                pendingOutboxSeq = outbox.append(whitelist, player, state).seq;
+            } catch (IOException e) {
+                WhitelistSync2.LOGGER.error("Error adding " + player.getName() + " to the outbox!");
+                WhitelistSync2.LOGGER.error(e.getMessage(), e);
+                future.complete(false);
+                return future;
+            }
+            queue(whitelist, player, state, null);
+            future.complete(true);
+        } else {
+            queue(whitelist, player, state, future);
+        }
+        pendingSubmitted++;
+
+        if (pendingWhitelist.size() + pendingOps.size() >= batchSize) {
+            // Full batch, bring a waiting flush forward
+            if (scheduledFlush == null || scheduledFlush.cancel(false)) {
+                scheduledFlush = null;
+                scheduleFlush(0);
+            }
+        } else if (scheduledFlush == null) {
+            scheduleFlush(batchDelayMillis);
+        }
+
+        return future;
+    }
+
+    // Guarded by this
+    private void queue(boolean whitelist, GameProfile player, boolean state, CompletableFuture<Boolean> future) {
+        Map<UUID, Mutation> pending = whitelist ? pendingWhitelist : pendingOps;
+        Mutation mutation = pending.get(player.getId());
+        if (mutation == null) {
+            mutation = new Mutation();
+            pending.put(player.getId(), mutation);
+        }
+
+        // Last write wins
+        mutation.player = player;
+        mutation.state = state;
+        if (future != null) {
+            mutation.futures.add(future);
+        }
+    }
+
+    // Guarded by this. While retrying after a failure, flushes wait for the retry time.
+    private void scheduleFlush(long delayMillis) {
+        long delay = Math.max(delayMillis, retryAt - System.currentTimeMillis());
+        try {
+            scheduledFlush = executor.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down, changes in the outbox are replayed on the next start
+            scheduledFlush = null;
+        }
+    }
+
+    private void flush() {
+        Map<UUID, Mutation> whitelist;
+        Map<UUID, Mutation> ops;
+        int submitted;
+        long outboxSeq;
+
+        // Changes queued from here on go to the next flush
+        synchronized (this) {
+            whitelist = pendingWhitelist;
+            ops = pendingOps;
+            submitted = pendingSubmitted;
+            outboxSeq = pendingOutboxSeq;
+            pendingWhitelist = new LinkedHashMap<>();
+            pendingOps = new LinkedHashMap<>();
+            pendingSubmitted = 0;
+            scheduledFlush = null;
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        BaseService.WriteResult whitelistResult = write(whitelist, service::writeWhitelistStates);
+        BaseService.WriteResult opsResult;
+        if (outbox != null && whitelistResult == BaseService.WriteResult.RETRY) {
+            // The database is out of reach, the ops wait with the whitelist
+            opsResult = BaseService.WriteResult.RETRY;
+        } else {
+            opsResult = write(ops, service::writeOpStates);
+        }
+
+        long timeTaken = System.currentTimeMillis() - startTime;
+        int written = whitelist.size() + ops.size();
+        if (written == 0) {
+            return;
+        }
+
+        if (outbox != null) {
+            if (whitelistResult == BaseService.WriteResult.FAILED) {
+                drop("whitelist", whitelist);
+            }
+            if (opsResult == BaseService.WriteResult.FAILED) {
+                drop("op", ops);
+            }
+
+            boolean retryWhitelist = whitelistResult == BaseService.WriteResult.RETRY;
+            boolean retryOps = opsResult == BaseService.WriteResult.RETRY;
+            if (retryWhitelist || retryOps) {
+                // Only the list that didn't get through waits, the other one is done
+                if (!retryWhitelist) {
+                    removeFromOutbox(outboxSeq, true);
+                } else if (!retryOps) {
+                    removeFromOutbox(outboxSeq, false);
+                }
+                retry(retryWhitelist ? whitelist : new LinkedHashMap<>(), retryOps ? ops : new LinkedHashMap<>(), submitted);
+                return;
+            }
+            clearOutbox(outboxSeq);
+        } else {
+            complete(whitelist, whitelistResult == BaseService.WriteResult.WRITTEN);
+            complete(ops, opsResult == BaseService.WriteResult.WRITTEN);
+        }
+
+        synchronized (this) {
+            flushCount++;
+            submittedCount += submitted;
+            writtenCount += written;
+            totalFlushMillis += timeTaken;
+            maxFlushMillis = Math.max(maxFlushMillis, timeTaken);
+        }
+
+        WhitelistSync2.LOGGER.debug("Flushed " + written + " changes from " + submitted + " queued (coalescing ratio "
+                + String.format("%.2f", (double) submitted / written) + ") | Took " + timeTaken + "ms");
+    }
+
+    private void clearOutbox(long outboxSeq) {
+        synchronized (this) {
+            retryDelayMillis = 0;
+            retryAt = 0;
+        }
+
+        try {
+            outbox.removeThrough(outboxSeq);
+        } catch (IOException e) {
+            // The changes are in the database, writing them again on the next start is harmless
+            WhitelistSync2.LOGGER.error("Error removing written changes from the outbox!");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+        }
+    }
+
+    private void removeFromOutbox(long outboxSeq, boolean whitelist) {
+        try {
+            outbox.removeThrough(outboxSeq, whitelist);
+        } catch (IOException e) {
+            // Written or dropped, replaying them on the next start is harmless
+            WhitelistSync2.LOGGER.error("Error removing finished changes from the outbox!");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+        }
+    }
+
+    // The database refused these changes and would refuse them again, so they are not kept
+    private static void drop(String list, Map<UUID, Mutation> mutations) {
+        StringBuilder players = new StringBuilder();
+        for (Mutation mutation : mutations.values()) {
+            if (players.length() > 0) {
+                players.append(", ");
+            }
+            players.append(mutation.player.getName()).append(mutation.state ? " (add)" : " (remove)");
+        }
+        WhitelistSync2.LOGGER.error("Dropping " + mutations.size() + " " + list + " changes the database refused, "
+                + "they will not be retried: " + players);
+    }
+
+    // Puts failed changes back in front of anything queued since, and tries again later
+    private synchronized void retry(Map<UUID, Mutation> whitelist, Map<UUID, Mutation> ops, int submitted) {
+        pendingWhitelist = requeue(whitelist, pendingWhitelist);
+        pendingOps = requeue(ops, pendingOps);
+        pendingSubmitted += submitted;
+
+        retryDelayMillis = retryDelayMillis == 0 ? MIN_RETRY_DELAY_MILLIS : Math.min(MAX_RETRY_DELAY_MILLIS, retryDelayMillis * 2);
+        retryAt = System.currentTimeMillis() + retryDelayMillis;
+
+        WhitelistSync2.LOGGER.warn("Database write failed, " + outbox.size() + " changes are waiting in the outbox (oldest "
+                + getReplayLagMillis() / 1000 + "s). Retrying in " + retryDelayMillis / 1000 + "s.");
+
+        if (scheduledFlush == null || scheduledFlush.cancel(false)) {
+            scheduleFlush(0);
+        }
+    }
+
+    private static Map<UUID, Mutation> requeue(Map<UUID, Mutation> failed, Map<UUID, Mutation> newer) {
+        Map<UUID, Mutation> merged = new LinkedHashMap<>(failed);
+        merged.putAll(newer);
+        return merged;
+    }
+
+    private static BaseService.WriteResult write(Map<UUID, Mutation> mutations,
+            Function<List<LocalStateProvider.PendingChange>, BaseService.WriteResult> writer) {
+        if (mutations.isEmpty()) {
+            return BaseService.WriteResult.WRITTEN;
+        }
+
+        List<LocalStateProvider.PendingChange> changes = new ArrayList<>(mutations.size());
+        for (Mutation mutation : mutations.values()) {
+            changes.add(new LocalStateProvider.PendingChange(mutation.player, mutation.state));
+        }
+
+        try {
+            return writer.apply(changes);
+        } catch (RuntimeException e) {
+            // A bug rather than the database, trying again won't help
+            WhitelistSync2.LOGGER.error("Error writing queued changes to the database!");
+            WhitelistSync2.LOGGER.error(e.getMessage(), e);
+            return BaseService.WriteResult.FAILED;
+        }
+    }
+
+    private static void complete(Map<UUID, Mutation> mutations, boolean success) {
+        for (Mutation mutation : mutations.values()) {
+            for (CompletableFuture<Boolean> future : mutation.futures) {
+                future.complete(success);
+            }
+        }
+    }
+
+    // Changes acknowledged but not yet in the database
+    public int getOutboxDepth() {
+        return outbox == null ? 0 : outbox.size();
+    }
+
+    // How long the oldest change in the outbox has been waiting for the database, 0 if none are
+    public long getReplayLagMillis() {
+        long oldest = outbox == null ? 0 : outbox.getOldestQueuedAt();
+        return oldest == 0 ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    public synchronized long getFlushCount() {
+        return flushCount;
+    }
+
+    // Average players written per flush
+    public synchronized double getAverageBatchSize() {
+        return flushCount == 0 ? 0 : (double) writtenCount / flushCount;
+    }
+
+    // Changes queued per player written, 1 means nothing was coalesced
+    public synchronized double getCoalescingRatio() {
+        return writtenCount == 0 ? 1 : (double) submittedCount / writtenCount;
+    }
+
+    public synchronized double getAverageFlushMillis() {
+        return flushCount == 0 ? 0 : (double) totalFlushMillis / flushCount;
+    }
+
+    public synchronized long getMaxFlushMillis() {
+        return maxFlushMillis;
+    }
+
+    // Writes what is queued, then stops. Changes queued after this fail right away.
+    // Changes that could not be written stay in the outbox for the next start.
+    public void shutdown() {
+        synchronized (this) {
+            if (outbox != null && retryAt > System.currentTimeMillis()) {
+                // The database is down and the changes are safe on disk, no point waiting for the retry
+                executor.shutdownNow();
+            } else {
+                executor.shutdown();
+            }
+        }
+
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                WhitelistSync2.LOGGER.warn("Queued database writes still running after 10 seconds, stopping anyway.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    private static class Mutation {
+        GameProfile player;
+        boolean state;
+        final List<CompletableFuture<Boolean>> futures = new ArrayList<>(1);
+    }
+
+}